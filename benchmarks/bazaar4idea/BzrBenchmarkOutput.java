@@ -0,0 +1,142 @@
+package bazaar4idea;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic bzr output for the benchmarks, shaped like what bzr and the xmloutput plugin print. The same seed
+ * always gives the same output.
+ */
+public class BzrBenchmarkOutput {
+
+  private static final String[] DIRS = { "src", "src/bazaar4idea", "src/bazaar4idea/command", "resources", "tests" };
+  private static final String[] STATUS_GROUPS = { "modified", "added", "removed", "unknown" };
+  private static final String[] UPDATE_FLAGS = { " M ", "+N ", "-D ", " M*" };
+
+  /**
+   * The number of characters {@code OSProcessHandler} reads at a time, and so the size of the chunks handlers
+   * are fed.
+   */
+  public static final int CHUNK_SIZE = 8192;
+
+  private BzrBenchmarkOutput() {
+  }
+
+  public static String path(Random random, int i) {
+    return DIRS[random.nextInt(DIRS.length)] + "/File" + i + (i % 3 == 0 ? ".java" : ".txt");
+  }
+
+  public static String fileId(int i) {
+    return "file" + i + "-20100104101010-" + Integer.toHexString(i * 31 + 7) + "-1";
+  }
+
+  /**
+   * @return {@code bzr status --short}-like text with the given number of lines
+   */
+  public static String lines(int count) {
+    Random random = new Random(count);
+    StringBuilder builder = new StringBuilder(count * 40);
+    for (int i = 0; i < count; i++) {
+      builder.append(UPDATE_FLAGS[random.nextInt(UPDATE_FLAGS.length)]).append(path(random, i)).append('\n');
+    }
+    return builder.toString();
+  }
+
+  /**
+   * @return the stderr of {@code bzr pull} or {@code bzr update} reporting the given number of files
+   */
+  public static List<String> updateOutput(int count) {
+    Random random = new Random(count);
+    List<String> retval = new ArrayList<String>(count + 2);
+    retval.add("+N  .bzrignore");
+    for (int i = 0; i < count; i++) {
+      if (i % 50 == 49) {
+        retval.add("Text conflict in " + path(random, i));
+      } else {
+        retval.add(UPDATE_FLAGS[random.nextInt(UPDATE_FLAGS.length)] + path(random, i));
+      }
+    }
+    retval.add("All changes applied successfully.");
+    retval.add("Updated to revision " + count + ".");
+    return retval;
+  }
+
+  public static String xmlStatus(int count) {
+    Random random = new Random(count);
+    StringBuilder builder = new StringBuilder(count * 80);
+    builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    builder.append("<status workingtree_root=\"/home/user/project/\">\n");
+    int perGroup = (count + STATUS_GROUPS.length - 1) / STATUS_GROUPS.length;
+    int i = 0;
+    for (String group : STATUS_GROUPS) {
+      builder.append('<').append(group).append(">\n");
+      for (int j = 0; j < perGroup && i < count; j++, i++) {
+        builder.append("<file");
+        if (!"unknown".equals(group)) {
+          builder.append(" fid=\"").append(fileId(i)).append('"');
+        }
+        builder.append('>').append(path(random, i)).append("</file>\n");
+      }
+      builder.append("</").append(group).append(">\n");
+    }
+    builder.append("</status>\n");
+    return builder.toString();
+  }
+
+  public static String xmlLog(int count) {
+    StringBuilder builder = new StringBuilder(count * 300);
+    builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<logs>\n");
+    for (int i = count; i > 0; i--) {
+      builder.append("<log><revno>").append(i).append("</revno>")
+          .append("<revisionid>user@example.com-20100104101010-").append(Integer.toHexString(i * 131)).append("</revisionid>")
+          .append("<committer>A Developer &lt;user@example.com&gt;</committer>")
+          .append("<branch-nick>trunk</branch-nick>")
+          .append("<timestamp>Mon 2010-01-04 10:10:10 +0100</timestamp>")
+          .append("<message><![CDATA[Change number ").append(i).append("\n\nWith a longer description.]]></message>")
+          .append("</log>\n");
+    }
+    builder.append("</logs>\n");
+    return builder.toString();
+  }
+
+  public static String xmlAnnotate(int count) {
+    Random random = new Random(count);
+    StringBuilder builder = new StringBuilder(count * 120);
+    builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    builder.append("<annotation workingtree-root=\"/home/user/project/\" file=\"src/Main.java\">\n");
+    for (int i = 0; i < count; i++) {
+      int revno = 1 + random.nextInt(500);
+      builder.append("<entry revno=\"").append(revno).append("\" author=\"user@example.com\" date=\"20100104\" fid=\"")
+          .append(fileId(0)).append("\">    int value").append(i).append(" = compute(").append(i)
+          .append(") &amp;&amp; check();</entry>\n");
+    }
+    builder.append("</annotation>\n");
+    return builder.toString();
+  }
+
+  public static String xmlLs(int count) {
+    Random random = new Random(count);
+    StringBuilder builder = new StringBuilder(count * 120);
+    builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    builder.append("<list workingtree_root=\"/home/user/project/\">\n");
+    for (int i = 0; i < count; i++) {
+      builder.append("<item><kind>file</kind><path>").append(path(random, i)).append("</path><id>")
+          .append(fileId(i)).append("</id><status_kind>").append(i % 10 == 0 ? "I" : "V")
+          .append("</status_kind></item>\n");
+    }
+    builder.append("</list>\n");
+    return builder.toString();
+  }
+
+  /**
+   * @return the text split into the chunks a process handler would deliver it in
+   */
+  public static String[] chunks(String text) {
+    String[] retval = new String[(text.length() + CHUNK_SIZE - 1) / CHUNK_SIZE];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = text.substring(i * CHUNK_SIZE, Math.min(text.length(), (i + 1) * CHUNK_SIZE));
+    }
+    return retval;
+  }
+}
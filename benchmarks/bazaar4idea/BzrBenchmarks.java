@@ -0,0 +1,26 @@
+package bazaar4idea;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the output parsing layer with the GC profiler, so that every result comes with its
+ * allocation rate ({@code gc.alloc.rate.norm} is bytes allocated per operation) next to its throughput.
+ * <p/>
+ * The benchmarks module needs the jmh-core and jmh-generator-annprocess libraries and annotation processing
+ * enabled. An optional argument restricts the run to the benchmarks matching a regular expression, for example
+ * {@code BzrOutputBenchmark.xml}.
+ */
+public class BzrBenchmarks {
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(args.length > 0 ? args[0] : "bazaar4idea\\..*Benchmark")
+        .addProfiler(GCProfiler.class)
+        .build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,167 @@
+package bazaar4idea.command;
+
+import bazaar4idea.BzrBenchmarkOutput;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.testFramework.fixtures.IdeaProjectTestFixture;
+import com.intellij.testFramework.fixtures.IdeaTestFixtureFactory;
+import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.emergent.bzr4j.core.cli.BzrResultBridge;
+import org.emergent.bzr4j.core.cli.BzrXmlResult;
+import org.emergent.bzr4j.core.xmloutput.GenericChange;
+import org.emergent.bzr4j.core.xmloutput.XmlOutputHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the layer that turns bzr output into lines and entries: the line handlers as they are fed by
+ * {@code OSProcessHandler}, {@link ShellCommandResult#getOutputLines()}, and the SAX parsing of the xmloutput
+ * commands as done by {@link BzrXmlResult}. Each operation handles all of the output of one command.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BzrOutputBenchmark {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  @Param({"1000", "100000", "1000000"})
+  public int entries;
+
+  private IdeaProjectTestFixture myFixture;
+  private Project myProject;
+  private File myDirectory;
+  private String[] myChunks;
+  private byte[] myLines;
+  private byte[] myXmlStatus;
+  private byte[] myXmlLog;
+  private byte[] myXmlAnnotate;
+  private byte[] myXmlLs;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    // the handlers need a project, and services to look up
+    myFixture = IdeaTestFixtureFactory.getFixtureFactory().createLightFixtureBuilder().getFixture();
+    myFixture.setUp();
+    myProject = myFixture.getProject();
+    myDirectory = new File(System.getProperty("java.io.tmpdir"));
+    String lines = BzrBenchmarkOutput.lines(entries);
+    myChunks = BzrBenchmarkOutput.chunks(lines);
+    myLines = lines.getBytes(UTF8);
+    myXmlStatus = BzrBenchmarkOutput.xmlStatus(entries).getBytes(UTF8);
+    myXmlLog = BzrBenchmarkOutput.xmlLog(entries).getBytes(UTF8);
+    myXmlAnnotate = BzrBenchmarkOutput.xmlAnnotate(entries).getBytes(UTF8);
+    myXmlLs = BzrBenchmarkOutput.xmlLs(entries).getBytes(UTF8);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    myFixture.tearDown();
+  }
+
+  @Benchmark
+  public void lineHandler(final Blackhole blackhole) {
+    BzrLineHandler handler = new BzrLineHandler(myProject, myDirectory, BzrCommand.STATUS);
+    handler.addLineListener(new BzrLineHandlerListener() {
+      public void onLineAvailable(String line, Key outputType) {
+        blackhole.consume(line);
+      }
+
+      public void processTerminated(int exitCode) {
+      }
+
+      public void startFailed(Throwable exception) {
+      }
+    });
+    for (String chunk : myChunks) {
+      handler.onTextAvailable(chunk, ProcessOutputTypes.STDOUT);
+    }
+  }
+
+  @Benchmark
+  public String simpleHandler() {
+    BzrSimpleHandler handler = new BzrSimpleHandler(myProject, myDirectory, BzrCommand.STATUS);
+    for (String chunk : myChunks) {
+      handler.onTextAvailable(chunk, ProcessOutputTypes.STDOUT);
+    }
+    return handler.getStdout();
+  }
+
+  @Benchmark
+  public int shellCommandResultLines() throws InterruptedException {
+    ShellCommandResult result = new ShellCommandResult(UTF8);
+    relay(result, myLines);
+    return result.getOutputLines().size();
+  }
+
+  @Benchmark
+  public void xmlStatus(final Blackhole blackhole) throws InterruptedException {
+    relay(new BzrXmlResult(new XmlOutputHandler() {
+      @Override
+      public void handleGenericChange(GenericChange change) {
+        blackhole.consume(change);
+      }
+    }), myXmlStatus);
+  }
+
+  @Benchmark
+  public void xmlLog(final Blackhole blackhole) throws InterruptedException {
+    relay(new BzrXmlResult(new XmlOutputHandler() {
+      @Override
+      public void handleLog(String revno, String committer, String branchNick, Date timestamp, String message) {
+        blackhole.consume(timestamp);
+        blackhole.consume(message);
+      }
+    }), myXmlLog);
+  }
+
+  @Benchmark
+  public void xmlAnnotate(final Blackhole blackhole) throws InterruptedException {
+    relay(new BzrXmlResult(new XmlOutputHandler() {
+      @Override
+      public void handleAnnotationEntry(String content, String revno, String author, String date) {
+        blackhole.consume(content);
+        blackhole.consume(revno);
+      }
+    }), myXmlAnnotate);
+  }
+
+  @Benchmark
+  public void xmlLs(final Blackhole blackhole) throws InterruptedException {
+    relay(new BzrXmlResult(new XmlOutputHandler() {
+      @Override
+      public void handleItem(String id, String kind, String path, String statusKind) {
+        blackhole.consume(path);
+      }
+    }), myXmlLs);
+  }
+
+  /**
+   * Feeds output to a result the way a forked bzr process would.
+   */
+  private static void relay(BzrAbstractResult result, byte[] output) throws InterruptedException {
+    BzrResultBridge.startOutRelay(result, new ByteArrayInputStream(output)).join();
+  }
+}
@@ -0,0 +1,48 @@
+package bazaar4idea.provider.update;
+
+import bazaar4idea.BzrBenchmarkOutput;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of parsing the stderr of {@code bzr pull} in {@link BzrRegularUpdater}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class BzrRegularUpdaterBenchmark {
+
+  @Param({"1000", "100000", "1000000"})
+  public int entries;
+
+  private List<String> myLines;
+
+  @Setup
+  public void setUp() {
+    myLines = BzrBenchmarkOutput.updateOutput(entries);
+  }
+
+  @Benchmark
+  public Map<String, String> parseUpdateOutput() {
+    Map<String, String> changes = new TreeMap<String, String>();
+    BzrRegularUpdater.parseUpdateOutput(myLines, changes);
+    return changes;
+  }
+}
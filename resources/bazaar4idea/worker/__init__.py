@@ -0,0 +1,284 @@
+"""Command server used by the bazaar4idea IntelliJ IDEA plugin.
+
+The IDE starts ``bzr idea-worker`` once per branch root and sends it framed
+requests on stdin, which saves the interpreter startup and plugin loading cost
+of forking a fresh bzr for every read command.
+
+Requests::
+
+    run <n>\\n        followed by n fields, each "<length>\\n<utf-8 bytes>";
+                     the first field is the working directory, the rest argv
+    ping\\n           answered with "pong\\n"
+    quit\\n           terminates the worker
+
+Responses to ``run`` are a sequence of frames ending with the exit code::
+
+    o <length>\\n<bytes>     stdout of the command
+    e <length>\\n<bytes>     stderr of the command
+    x <exit code>\\n
+
+``bzr idea-status`` reports the changed, unknown and ignored files of a working
+tree and its revno from a single walk of the tree, in the xml formats of the
+xmloutput plugin's ``xmlstatus`` and ``xmlls`` wrapped in one root element::
+
+    <idea-status revno="..." workingtree_root="...">
+      <status workingtree_root="..."> ... </status>
+      <list> <item> ... <status_kind>ignored</status_kind></item> ... </list>
+    </idea-status>
+
+``bzr idea-cat`` writes the contents of several files at one revision, looking
+each up the way ``bzr cat`` does, as a sequence of::
+
+    <path length> <content length>\\n<utf-8 path><content>
+
+where the path is the argument as given and the content length is -1 for a
+file which is not in the revision, is not a regular file, or is larger than
+``--max-size``.
+"""
+
+import os
+import sys
+from xml.sax.saxutils import escape, quoteattr
+
+from bzrlib import commands, osutils, ui
+from bzrlib.option import Option
+
+PROTOCOL_VERSION = 1
+
+
+class _FramedStream(object):
+    """File-like object wrapping everything written to it into frames."""
+
+    def __init__(self, out, tag, encoding):
+        self._out = out
+        self._tag = tag
+        self.encoding = encoding
+
+    def write(self, data):
+        if isinstance(data, unicode):
+            data = data.encode(self.encoding, 'replace')
+        if not data:
+            return
+        self._out.write('%s %d\n' % (self._tag, len(data)))
+        self._out.write(data)
+        self._out.flush()
+
+    def writelines(self, lines):
+        for line in lines:
+            self.write(line)
+
+    def flush(self):
+        pass
+
+    def isatty(self):
+        return False
+
+
+def _read_field(inp):
+    length = int(inp.readline())
+    return inp.read(length).decode('utf-8')
+
+
+def _run(out, cwd, argv):
+    encoding = osutils.get_user_encoding()
+    cmd_out = _FramedStream(out, 'o', encoding)
+    cmd_err = _FramedStream(out, 'e', encoding)
+    factory = ui.ui_factory
+    saved = (sys.stdout, sys.stderr,
+             getattr(factory, 'stdout', None), getattr(factory, 'stderr', None))
+    sys.stdout, sys.stderr = cmd_out, cmd_err
+    if saved[2] is not None:
+        factory.stdout, factory.stderr = cmd_out, cmd_err
+    try:
+        os.chdir(cwd)
+        return commands.run_bzr_catch_errors(argv) or 0
+    finally:
+        sys.stdout, sys.stderr = saved[0], saved[1]
+        if saved[2] is not None:
+            factory.stdout, factory.stderr = saved[2], saved[3]
+
+
+def _serve(inp, out):
+    out.write('ready %d\n' % PROTOCOL_VERSION)
+    out.flush()
+    while True:
+        line = inp.readline()
+        if not line or line == 'quit\n':
+            return
+        if line == 'ping\n':
+            out.write('pong\n')
+            out.flush()
+            continue
+        verb, count = line.split()
+        fields = [_read_field(inp) for i in range(int(count))]
+        exit_code = _run(out, fields[0], fields[1:])
+        out.write('x %d\n' % exit_code)
+        out.flush()
+
+
+class cmd_idea_worker(commands.Command):
+    __doc__ = """Serve framed command requests on stdin (bazaar4idea internal)."""
+
+    hidden = True
+
+    def run(self):
+        if sys.platform == 'win32':
+            import msvcrt
+            msvcrt.setmode(sys.stdin.fileno(), os.O_BINARY)
+            msvcrt.setmode(sys.stdout.fileno(), os.O_BINARY)
+        _serve(sys.stdin, sys.stdout)
+
+
+commands.register_command(cmd_idea_worker)
+
+
+def _item_kind(kind):
+    # the kinds the xmloutput plugin reports; nested trees show as directories
+    if kind in ('directory', 'tree-reference'):
+        return 'directory'
+    if kind == 'symlink':
+        return 'symlink'
+    return 'file'
+
+
+def _write_status(out, wt, specific_files):
+    groups = {}
+    ignored = []
+
+    def add(group, kind, path, attrs=''):
+        groups.setdefault(group, []).append((kind, path, attrs))
+
+    basis = wt.basis_tree()
+    basis.lock_read()
+    try:
+        for (file_id, paths, changed_content, versioned, parent, name, kind,
+             executable) in wt.iter_changes(basis, specific_files=specific_files,
+                                            want_unversioned=True):
+            if not versioned[0] and not versioned[1]:
+                if wt.is_ignored(paths[1]):
+                    ignored.append((_item_kind(kind[1]), paths[1]))
+                else:
+                    add('unknown', _item_kind(kind[1]), paths[1])
+            elif not versioned[0]:
+                add('added', _item_kind(kind[1]), paths[1])
+            elif not versioned[1] or kind[1] is None:
+                # deleted from disk without "bzr rm" is reported as removed as well
+                add('removed', _item_kind(kind[0]), paths[0])
+            elif kind[0] != kind[1]:
+                add('kind_changed', _item_kind(kind[1]), paths[1],
+                    ' oldkind=%s' % quoteattr(kind[0]))
+            elif paths[0] != paths[1]:
+                add('renamed', _item_kind(kind[1]), paths[1],
+                    ' oldpath=%s' % quoteattr(paths[0]))
+            elif changed_content or executable[0] != executable[1]:
+                add('modified', _item_kind(kind[1]), paths[1])
+    finally:
+        basis.unlock()
+    for conflict in wt.conflicts():
+        path = conflict.path
+        if specific_files and not osutils.is_inside_any(specific_files, path):
+            continue
+        add('conflicts', 'conflict', path, ' type=%s' % quoteattr(conflict.typestring))
+
+    out.write('<status workingtree_root=%s>' % quoteattr(wt.basedir + '/'))
+    for group in ('added', 'removed', 'renamed', 'modified', 'kind_changed',
+                  'unknown', 'conflicts'):
+        entries = groups.get(group)
+        if not entries:
+            continue
+        out.write('<%s>' % group)
+        for kind, path, attrs in entries:
+            out.write('<%s%s>%s</%s>' % (kind, attrs, escape(path), kind))
+        out.write('</%s>' % group)
+    out.write('</status>')
+    out.write('<list>')
+    for kind, path in ignored:
+        out.write('<item><kind>%s</kind><path>%s</path>'
+                  '<status_kind>ignored</status_kind></item>' % (kind, escape(path)))
+    out.write('</list>')
+
+
+class cmd_idea_status(commands.Command):
+    __doc__ = """Show changed, unknown and ignored files and the revno (bazaar4idea internal)."""
+
+    hidden = True
+    takes_args = ['file*']
+    encoding_type = 'replace'
+
+    def run(self, file_list=None):
+        from bzrlib import workingtree
+        wt = workingtree.WorkingTree.open_containing(u'.')[0]
+        specific_files = None
+        if file_list:
+            specific_files = [wt.relpath(osutils.abspath(f)) for f in file_list]
+        wt.lock_read()
+        try:
+            # the branch revno, as "bzr revno" reports it
+            revno = wt.branch.last_revision_info()[0]
+            out = self.outf
+            out.write('<?xml version="1.0" encoding="%s"?>'
+                      % (getattr(out, 'encoding', None) or 'utf-8'))
+            out.write('<idea-status revno="%d" workingtree_root=%s>'
+                      % (revno, quoteattr(wt.basedir + '/')))
+            _write_status(out, wt, specific_files)
+            out.write('</idea-status>\n')
+        finally:
+            wt.unlock()
+
+
+commands.register_command(cmd_idea_status)
+
+
+class cmd_idea_cat(commands.Command):
+    __doc__ = """Write the contents of files at a revision (bazaar4idea internal)."""
+
+    hidden = True
+    takes_args = ['file*']
+    takes_options = ['revision',
+                     Option('max-size', type=int,
+                            help='Skip files larger than this many bytes.')]
+    encoding_type = 'exact'
+
+    def run(self, file_list=None, revision=None, max_size=None):
+        from bzrlib.bzrdir import BzrDir
+        tree, branch, relpath = BzrDir.open_containing_tree_or_branch(u'.')
+        branch.lock_read()
+        try:
+            if revision:
+                rev_tree = revision[0].as_tree(branch)
+            elif tree is not None:
+                rev_tree = tree.basis_tree()
+            else:
+                rev_tree = branch.basis_tree()
+            rev_tree.lock_read()
+            try:
+                for name in file_list or []:
+                    content = self._get_content(tree, rev_tree, name, max_size)
+                    name_bytes = name.encode('utf-8')
+                    if content is None:
+                        self.outf.write('%d -1\n%s' % (len(name_bytes), name_bytes))
+                    else:
+                        self.outf.write('%d %d\n%s' % (len(name_bytes), len(content), name_bytes))
+                        self.outf.write(content)
+            finally:
+                rev_tree.unlock()
+        finally:
+            branch.unlock()
+
+    def _get_content(self, tree, rev_tree, name, max_size):
+        path = name
+        file_id = None
+        if tree is not None:
+            path = tree.relpath(osutils.abspath(name))
+            # as bzr cat does, follow the file back through renames by its id
+            file_id = tree.path2id(path)
+        if file_id is None or not rev_tree.has_id(file_id):
+            file_id = rev_tree.path2id(path)
+        if file_id is None or rev_tree.kind(file_id) != 'file':
+            return None
+        if max_size is not None and rev_tree.get_file_size(file_id) > max_size:
+            return None
+        return rev_tree.get_file_text(file_id)
+
+
+commands.register_command(cmd_idea_cat)
@@ -10,11 +10,11 @@ import com.intellij.openapi.vcs.changes.ContentRevision;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsUtil;
-import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import bazaar4idea.command.BzrCatCommand;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 
@@ -31,6 +31,8 @@ public class BzrContentRevision implements ContentRevision {
 
   private final BzrRevisionNumber m_revisionNumber;
 
+  private byte[] m_bytes;
+
   private String m_content;
 
   private BzrContentRevision(Project project, FilePath path, BzrRevisionNumber revision) {
@@ -56,19 +58,37 @@ public class BzrContentRevision implements ContentRevision {
   }
 
   public String getContent() throws VcsException {
-    if (StringUtils.isBlank(m_content)) {
+    if (m_content == null) {
       FilePath fpath = getFile();
       if (fpath.isNonLocal()) {
         LOG.debug("nonLocal: " + fpath);
       }
-      if (fpath.isDirectory()) {
+      byte[] bytes = getContentAsBytes();
+      if (bytes == null) {
         return null;
       }
-      m_content = new BzrCatCommand(m_project).execute(fpath.getIOFile(), m_revisionNumber, fpath.getCharset());
+      m_content = new String(bytes, fpath.getCharset());
     }
     return m_content;
   }
 
+  /**
+   * @return the content as bzr wrote it, which is only decoded when {@link #getContent} is asked for, or null for
+   *         a directory or if {@code bzr cat} failed
+   */
+  @Nullable
+  public byte[] getContentAsBytes() {
+    if (m_bytes == null) {
+      FilePath fpath = getFile();
+      if (fpath.isDirectory()) {
+        return null;
+      }
+      // not kept when bzr failed, so that the next call tries again
+      m_bytes = new BzrCatCommand(m_project).executeBytes(fpath.getIOFile(), m_revisionNumber);
+    }
+    return m_bytes;
+  }
+
   @NotNull
   public FilePath getFile() {
     return m_filePath;
@@ -12,8 +12,6 @@ import org.emergent.bzr4j.core.utils.StringUtil;
 import bazaar4idea.command.BzrCatCommand;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.util.Date;
 
@@ -64,17 +62,8 @@ public class BzrFileRevision implements VcsFileRevision {
   }
 
   public byte[] loadContent() throws VcsException {
-    try {
-      Charset charset = m_file.toFilePath().getCharset();
-      String result = new BzrCatCommand(m_project).execute(m_file, m_revisionNumber, charset);
-      if (result == null) {
-        return new byte[0];
-      } else {
-        return result.getBytes(charset.name());
-      }
-    } catch (UnsupportedEncodingException e) {
-      throw new VcsException(e);
-    }
+    byte[] result = new BzrCatCommand(m_project).executeBytes(m_file, m_revisionNumber);
+    return result != null ? result : new byte[0];
   }
 
   public byte[] getContent() throws IOException, VcsException {
@@ -29,13 +29,32 @@ public class BzrGlobalSettings implements PersistentStateComponent<BzrGlobalSett
 
   public static final String DEFAULT_EXECUTABLE = "bzr";
   private static final int FIVE_MINUTES = 300;
+  private static final int DEFAULT_POOLED_WORKERS_PER_ROOT = 2;
+  private static final int DEFAULT_POOLED_WORKER_MAX_REQUESTS = 200;
+  private static final int DEFAULT_MAX_CONCURRENT_PROCESSES = 4;
+  private static final int DEFAULT_PRECISE_STATUS_MAX_PATHS = 200;
+  private static final int DEFAULT_MAX_UNKNOWN_DESCENDANTS = 2000;
+  private static final int DEFAULT_CONTENT_CACHE_MAX_MEGABYTES = 256;
+  private static final int DEFAULT_EDITOR_PREFETCH_NEIGHBOURS = 10;
 
   private final TreeMap<String, String> m_environmentVariables = new TreeMap<String, String>();
 
   private String m_bzrExecutable = DEFAULT_EXECUTABLE;
   private boolean m_annotationTrimmingEnabled;
   private boolean m_modalErrorPopupEnabled;
-  private boolean m_granularExecLockingEnabled;
+  private boolean m_granularExecLockingEnabled = true;
+  private boolean m_pooledExecEnabled;
+  private int m_pooledWorkersPerRoot = DEFAULT_POOLED_WORKERS_PER_ROOT;
+  private int m_pooledWorkerMaxRequests = DEFAULT_POOLED_WORKER_MAX_REQUESTS;
+  private int m_maxConcurrentProcesses = DEFAULT_MAX_CONCURRENT_PROCESSES;
+  private String m_execRecordingDir = "";
+  private boolean m_dirStateCheckEnabled = true;
+  private boolean m_combinedStatusEnabled = true;
+  private boolean m_basePrefetchEnabled = true;
+  private int m_editorPrefetchNeighbours = DEFAULT_EDITOR_PREFETCH_NEIGHBOURS;
+  private int m_preciseStatusMaxPaths = DEFAULT_PRECISE_STATUS_MAX_PATHS;
+  private int m_maxUnknownDescendants = DEFAULT_MAX_UNKNOWN_DESCENDANTS;
+  private int m_contentCacheMaxMegabytes = DEFAULT_CONTENT_CACHE_MAX_MEGABYTES;
 
   public static BzrGlobalSettings getInstance() {
     return ServiceManager.getService(BzrGlobalSettings.class);
@@ -77,6 +96,132 @@ public class BzrGlobalSettings implements PersistentStateComponent<BzrGlobalSett
     m_granularExecLockingEnabled = granularExecLockingEnabled;
   }
 
+  public boolean isPooledExecEnabled() {
+    return m_pooledExecEnabled;
+  }
+
+  public void setPooledExecEnabled(boolean pooledExecEnabled) {
+    m_pooledExecEnabled = pooledExecEnabled;
+  }
+
+  public int getPooledWorkersPerRoot() {
+    return m_pooledWorkersPerRoot;
+  }
+
+  public void setPooledWorkersPerRoot(int pooledWorkersPerRoot) {
+    m_pooledWorkersPerRoot = pooledWorkersPerRoot;
+  }
+
+  public int getPooledWorkerMaxRequests() {
+    return m_pooledWorkerMaxRequests;
+  }
+
+  public void setPooledWorkerMaxRequests(int pooledWorkerMaxRequests) {
+    m_pooledWorkerMaxRequests = pooledWorkerMaxRequests;
+  }
+
+  public int getMaxConcurrentProcesses() {
+    return m_maxConcurrentProcesses;
+  }
+
+  public void setMaxConcurrentProcesses(int maxConcurrentProcesses) {
+    m_maxConcurrentProcesses = maxConcurrentProcesses;
+  }
+
+  /**
+   * @return true if files the bzr dirstate shows to be unchanged are left out of change list refreshes
+   */
+  public boolean isDirStateCheckEnabled() {
+    return m_dirStateCheckEnabled;
+  }
+
+  public void setDirStateCheckEnabled(boolean dirStateCheckEnabled) {
+    m_dirStateCheckEnabled = dirStateCheckEnabled;
+  }
+
+  /**
+   * @return true if change list refreshes query changed, unknown and ignored files with a single invocation of the
+   *         bundled {@code idea-status} command rather than {@code xmlls} and {@code xmlstatus}
+   */
+  public boolean isCombinedStatusEnabled() {
+    return m_combinedStatusEnabled;
+  }
+
+  public void setCombinedStatusEnabled(boolean combinedStatusEnabled) {
+    m_combinedStatusEnabled = combinedStatusEnabled;
+  }
+
+  /**
+   * @return true if the base content of the files a change list refresh finds changed, and of files opened in
+   *         editors, is fetched in the background with the bundled {@code idea-cat} command, ahead of the diffs and
+   *         line status markers which show it
+   */
+  public boolean isBasePrefetchEnabled() {
+    return m_basePrefetchEnabled;
+  }
+
+  public void setBasePrefetchEnabled(boolean basePrefetchEnabled) {
+    m_basePrefetchEnabled = basePrefetchEnabled;
+  }
+
+  /**
+   * @return how many other files of the directory of a file opened in an editor have their base content prefetched
+   *         along with it
+   */
+  public int getEditorPrefetchNeighbours() {
+    return m_editorPrefetchNeighbours;
+  }
+
+  public void setEditorPrefetchNeighbours(int editorPrefetchNeighbours) {
+    m_editorPrefetchNeighbours = editorPrefetchNeighbours;
+  }
+
+  /**
+   * @return the largest number of dirty paths under a root that a change list refresh passes to bzr, rather than
+   *         having it walk the whole tree
+   */
+  public int getPreciseStatusMaxPaths() {
+    return m_preciseStatusMaxPaths;
+  }
+
+  public void setPreciseStatusMaxPaths(int preciseStatusMaxPaths) {
+    m_preciseStatusMaxPaths = preciseStatusMaxPaths;
+  }
+
+  /**
+   * @return how many files inside unknown directories a change list refresh reports as unversioned, beyond which
+   *         the remaining unknown directories are reported without their contents
+   */
+  public int getMaxUnknownDescendants() {
+    return m_maxUnknownDescendants;
+  }
+
+  public void setMaxUnknownDescendants(int maxUnknownDescendants) {
+    m_maxUnknownDescendants = maxUnknownDescendants;
+  }
+
+  /**
+   * @return how much compressed file content from past revisions is kept on disk, in megabytes
+   */
+  public int getContentCacheMaxMegabytes() {
+    return m_contentCacheMaxMegabytes;
+  }
+
+  public void setContentCacheMaxMegabytes(int contentCacheMaxMegabytes) {
+    m_contentCacheMaxMegabytes = contentCacheMaxMegabytes;
+  }
+
+  /**
+   * @return the directory bzr invocations are recorded into for replay, or an empty string if they are not
+   */
+  public String getExecRecordingDir() {
+    return m_execRecordingDir;
+  }
+
+  public void setExecRecordingDir(String execRecordingDir) {
+    m_execRecordingDir = execRecordingDir != null ? execRecordingDir : "";
+  }
+
   public boolean isModalErrorPopupEnabled() {
     return m_modalErrorPopupEnabled;
   }
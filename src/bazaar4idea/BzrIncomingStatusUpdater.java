@@ -52,7 +52,7 @@ class BzrIncomingStatusUpdater implements BzrUpdater {
             for (VcsRoot root : roots) {
               @SuppressWarnings("ConstantConditions")
               BzrFile hgFile = new BzrFile(root.getPath(), new File("."));
-              changesets.addAll(command.execute(hgFile, LIMIT - changesets.size()));
+              changesets.addAll(command.execute(hgFile, LIMIT - changesets.size(), indicator));
             }
             status.setChanges(changesets.size(), new IncomingChangesetFormatter(changesets));
           }
@@ -52,7 +52,7 @@ class BzrOutgoingStatusUpdater implements BzrUpdater {
             for (VcsRoot root : roots) {
               @SuppressWarnings("ConstantConditions")
               BzrFile hgFile = new BzrFile(root.getPath(), new File("."));
-              outgoing.addAll(command.execute(hgFile, LIMIT - outgoing.size()));
+              outgoing.addAll(command.execute(hgFile, LIMIT - outgoing.size(), indicator));
             }
             status.setChanges(outgoing.size(), new OutgoingChangesetFormatter(outgoing));
           }
@@ -171,7 +171,9 @@ public class BzrVcs extends AbstractVcs<CommittedChangeList> implements Disposab
     super(project, NAME);
 
 //    myConfigurable = new BzrProjectConfigurable(project);
-    myChangeProvider = new BzrChangeProvider(project, getKeyInstanceMethod());
+    BzrChangeProvider changeProvider = new BzrChangeProvider(project, getKeyInstanceMethod());
+    myChangeProvider = changeProvider;
+    myRootListeners.addListener(changeProvider);
     myVirtualFileListener = new BzrVirtualFileListener(project, this);
     myRollbackEnvironment = new BzrRollbackEnvironment(project);
     myDiffProvider = new BzrDiffProvider(project);
@@ -201,7 +203,12 @@ public class BzrVcs extends AbstractVcs<CommittedChangeList> implements Disposab
     myBzr = bzr;
     myVcsManager = bzrVcsManager;
     myAppSettings = bzrSettings;
-    myChangeProvider = project.isDefault() ? null : ServiceManager.getService(project, BzrChangeProvider.class);
+    BzrChangeProvider changeProvider =
+        project.isDefault() ? null : ServiceManager.getService(project, BzrChangeProvider.class);
+    myChangeProvider = changeProvider;
+    if (changeProvider != null) {
+      myRootListeners.addListener(changeProvider);
+    }
     myCheckinEnvironment = project.isDefault() ? null : ServiceManager.getService(project, BzrCheckinEnvironment.class);
     myAnnotationProvider = bzrAnnotationProvider;
     myDiffProvider = bzrDiffProvider;
@@ -33,6 +33,7 @@ public class BzrAnnotateCommand extends BzrAbstractCommand {
 
   public List<BzrAnnotationLine> execute(@NotNull final BzrFile hgFile) {
     BzrIdeaExec handler = BzrIdeaExec.createBzrIdeaExec(hgFile.getRepo(), "xmlannotate");
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
 
     ShellCommandService hgCommandService = ShellCommandService.getInstance(project);
 
@@ -12,25 +12,67 @@
 // limitations under the License.
 package bazaar4idea.command;
 
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
 import org.apache.commons.lang.StringUtils;
 import org.emergent.bzr4j.core.BazaarRoot;
+import org.emergent.bzr4j.core.cli.BzrBytesResult;
+import org.emergent.bzr4j.core.cli.BzrExecException;
 import org.emergent.bzr4j.core.cli.BzrStandardResult;
 import bazaar4idea.BzrFile;
 import bazaar4idea.BzrRevisionNumber;
+import bazaar4idea.BzrUtil;
+import bazaar4idea.repo.BzrContentCache;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BzrCatCommand extends BzrAbstractCommand {
 
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * How many files one {@code idea-cat} invocation fetches at most, and how long their paths may be together.
+   */
+  private static final int PREFETCH_CHUNK_FILES = 100;
+  private static final int PREFETCH_CHUNK_CHARS = 16 * 1024;
+
+  /**
+   * Files larger than this are left to be fetched when they are shown.
+   */
+  private static final int PREFETCH_MAX_FILE_SIZE = 1024 * 1024;
+
+  /**
+   * Roots whose base content is being prefetched.
+   */
+  private static final Set<File> sm_prefetchingRoots =
+      Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
   public BzrCatCommand(Project project) {
     super(project);
   }
 
   public String execute(BzrFile hgFile, BzrRevisionNumber vcsRevisionNumber, Charset charset) {
+    return decode(executeBytes(hgFile, vcsRevisionNumber), charset);
+  }
+
+  /**
+   * @return the content of the file at the revision as bzr wrote it, or null if {@code bzr cat} failed
+   */
+  @Nullable
+  public byte[] executeBytes(BzrFile hgFile, BzrRevisionNumber vcsRevisionNumber) {
     List<String> arguments = new LinkedList<String>();
     if (vcsRevisionNumber != null && StringUtils.isNotBlank(vcsRevisionNumber.asString())) {
       arguments.add("-r");
@@ -39,40 +81,302 @@ public class BzrCatCommand extends BzrAbstractCommand {
     arguments.add(hgFile.getRelativePath());
 
     ShellCommandService service = ShellCommandService.getInstance(project);
-    BzrStandardResult result = service.execute(hgFile.getRepo(), new BzrStandardResult(charset), "cat", arguments);
-    return result.getStdOutAsString();
+    BzrIdeaExec handler = service.createCommand(hgFile.getRepo(), "cat");
+    handler.addArguments(arguments);
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
+    return executeCached(handler, BazaarRoot.findBranchLocation(hgFile.getFile()), hgFile.getFile(),
+        vcsRevisionNumber);
   }
 
   public String execute(File vcsRootFile, File path, BzrRevisionNumber vcsRevisionNumber, Charset charset) {
-    BzrIdeaExec handler = new BzrIdeaExec(BazaarRoot.findBranchLocation(vcsRootFile), "cat");
+    BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(vcsRootFile);
+    BzrIdeaExec handler = new BzrIdeaExec(bzrRoot, "cat");
     if (vcsRevisionNumber != null && StringUtils.isNotBlank(vcsRevisionNumber.asString())) {
       handler.addArguments("-r",vcsRevisionNumber.asString());
     }
     handler.addArguments(path.getPath());
-    ShellCommandService service = ShellCommandService.getInstance(project);
-    BzrStandardResult result = service.execute(handler, new BzrStandardResult(charset));
-    return result.getStdOutAsString();
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
+    File file = path.isAbsolute() ? path : new File(getWorkingDir(bzrRoot, vcsRootFile), path.getPath());
+    return decode(executeCached(handler, bzrRoot, file, vcsRevisionNumber), charset);
   }
 
   public String execute(File file, BzrRevisionNumber vcsRevisionNumber, Charset charset) {
-    BzrIdeaExec handler = new BzrIdeaExec(BazaarRoot.findBranchLocation(file), "cat");
+    return decode(executeBytes(file, vcsRevisionNumber), charset);
+  }
+
+  /**
+   * @return the content of the file at the revision as bzr wrote it, or null if {@code bzr cat} failed
+   */
+  @Nullable
+  public byte[] executeBytes(File file, BzrRevisionNumber vcsRevisionNumber) {
+    BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(file);
+    BzrIdeaExec handler = new BzrIdeaExec(bzrRoot, "cat");
     if (vcsRevisionNumber != null && StringUtils.isNotBlank(vcsRevisionNumber.asString())) {
       handler.addArguments("-r",vcsRevisionNumber.asString());
     }
     handler.addRelativePaths(file);
-    ShellCommandService service = ShellCommandService.getInstance(project);
-    BzrStandardResult result = service.execute(handler, new BzrStandardResult(charset));
-    return result.getStdOutAsString();
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
+    return executeCached(handler, bzrRoot, file, vcsRevisionNumber);
   }
 
   public String execute(File vcsRoot, String relpath, BzrRevisionNumber vcsRevisionNumber, Charset charset) {
-    BzrIdeaExec handler = new BzrIdeaExec(BazaarRoot.findBranchLocation(vcsRoot), "cat");
+    BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(vcsRoot);
+    BzrIdeaExec handler = new BzrIdeaExec(bzrRoot, "cat");
     if (vcsRevisionNumber != null && StringUtils.isNotBlank(vcsRevisionNumber.asString())) {
       handler.addArguments("-r",vcsRevisionNumber.asString());
     }
     handler.addArguments(relpath);
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
+    File file = new File(getWorkingDir(bzrRoot, vcsRoot), relpath);
+    return decode(executeCached(handler, bzrRoot, file, vcsRevisionNumber), charset);
+  }
+
+  /**
+   * @return the directory which relative paths given to {@code bzr cat} are resolved against
+   */
+  private static File getWorkingDir(@Nullable BazaarRoot bzrRoot, File vcsRoot) {
+    return bzrRoot != null && bzrRoot.getFile() != null ? bzrRoot.getFile() : vcsRoot;
+  }
+
+  /**
+   * Queues runs of the bundled {@code idea-cat} command, with as few files each as the length of the command line
+   * allows, which fetch the content at the revision of those of the files which are not in {@link BzrContentCache}
+   * yet into it. A root is not prefetched again until its runs have finished, nor while the bundled plugin fails
+   * for it. A run which fails is only logged, as the content is then fetched file by file when it is shown.
+   */
+  public void prefetch(BazaarRoot bzrRoot, BzrRevisionNumber vcsRevisionNumber, Collection<File> files,
+                       @Nullable ProgressIndicator indicator) {
+    String revision = vcsRevisionNumber.asString();
+    File branch = bzrRoot.getFile();
+    if (branch == null || StringUtils.isBlank(revision)
+        || !BzrWorkerPool.getInstance().isHelperPluginAvailable(branch) || !sm_prefetchingRoots.add(branch)) {
+      return;
+    }
+    // one count for each queued run and one for this method, the last to finish releases the root
+    AtomicInteger pending = new AtomicInteger(1);
+    try {
+      String tip = getValidatedTip(bzrRoot);
+      if (tip == null) {
+        return;
+      }
+      BzrContentCache cache = BzrContentCache.getInstance();
+      List<List<String>> chunks = new ArrayList<List<String>>();
+      List<String> chunk = new ArrayList<String>();
+      int chunkChars = 0;
+      for (File file : files) {
+        String relpath = FileUtil.toSystemIndependentName(BzrUtil.relativePath(branch, file));
+        if (cache.contains(branch, tip, revision, relpath)) {
+          continue;
+        }
+        if (!chunk.isEmpty()
+            && (chunk.size() >= PREFETCH_CHUNK_FILES || chunkChars + relpath.length() > PREFETCH_CHUNK_CHARS)) {
+          chunks.add(chunk);
+          chunk = new ArrayList<String>();
+          chunkChars = 0;
+        }
+        chunk.add(relpath);
+        chunkChars += relpath.length() + 1;
+      }
+      if (!chunk.isEmpty()) {
+        chunks.add(chunk);
+      }
+      ShellCommandService service = ShellCommandService.getInstance(project);
+      for (List<String> relpaths : chunks) {
+        BzrIdeaExec handler = new BzrIdeaExec(bzrRoot, "idea-cat");
+        handler.setHelperPluginRequired(true);
+        handler.setPriority(BzrExecPriority.BACKGROUND);
+        handler.setStderrValidationEnabled(false);
+        handler.addArguments("-r", revision, "--max-size", String.valueOf(PREFETCH_MAX_FILE_SIZE), "--");
+        handler.addArguments(relpaths);
+        pending.incrementAndGet();
+        try {
+          service.submit(handler, new MyPrefetchTask(service, handler, branch, tip, revision, pending), indicator);
+        } catch (RejectedExecutionException e) {
+          pending.decrementAndGet();
+          LOG.debug(String.format("too many commands queued, prefetching no more of \"%s\"", branch));
+          break;
+        }
+      }
+    } finally {
+      if (pending.decrementAndGet() == 0) {
+        sm_prefetchingRoots.remove(branch);
+      }
+    }
+  }
+
+  /**
+   * Runs {@code idea-cat} on the thread of the exec queue and puts the content it writes into
+   * {@link BzrContentCache}.
+   */
+  private static class MyPrefetchTask implements Callable<BzrBytesResult> {
+
+    private final ShellCommandService m_service;
+    private final BzrIdeaExec m_handler;
+    private final File m_branch;
+    private final String m_tip;
+    private final String m_revision;
+    private final AtomicInteger m_pending;
+
+    MyPrefetchTask(ShellCommandService service, BzrIdeaExec handler, File branch, String tip, String revision,
+                   AtomicInteger pending) {
+      m_service = service;
+      m_handler = handler;
+      m_branch = branch;
+      m_tip = tip;
+      m_revision = revision;
+      m_pending = pending;
+    }
+
+    public BzrBytesResult call() throws BzrExecException {
+      BzrBytesResult result = new BzrBytesResult();
+      try {
+        m_service.executeUnsafe(m_handler, result);
+        int fetched = cacheContent(result);
+        LOG.debug(String.format("prefetched %d files at %s in \"%s\"", fetched, m_revision, m_branch));
+        return result;
+      } catch (BzrExecException e) {
+        LOG.debug(String.format("could not prefetch base content in \"%s\"", m_branch), e);
+        if (isHelperPluginMissing(result)) {
+          BzrWorkerPool.getInstance().helperPluginFailed(m_branch);
+        }
+        throw e;
+      } finally {
+        if (m_pending.decrementAndGet() == 0) {
+          sm_prefetchingRoots.remove(m_branch);
+        }
+      }
+    }
+
+    /**
+     * @return true if the run failed because the bundled plugin did not load into bzr, rather than for a reason of
+     *         its own such as a lock, a revision which is gone or a cancellation
+     */
+    private static boolean isHelperPluginMissing(BzrBytesResult result) {
+      if (result.getByteOut().length > 0) {
+        return false;
+      }
+      String stderr = result.getStdErrAsString();
+      return StringUtils.contains(stderr, "unknown command") || StringUtils.contains(stderr, "Unable to load plugin");
+    }
+
+    /**
+     * @return how many files were cached
+     */
+    private int cacheContent(BzrBytesResult result) throws BzrExecException {
+      byte[] out = result.getByteOut();
+      BzrContentCache cache = BzrContentCache.getInstance();
+      int retval = 0;
+      int pos = 0;
+      while (pos < out.length) {
+        int eol = pos;
+        while (eol < out.length && out[eol] != '\n') {
+          eol++;
+        }
+        if (eol == out.length) {
+          throw new BzrExecException("truncated idea-cat output");
+        }
+        String[] header = new String(out, pos, eol - pos, UTF8).split(" ");
+        int pathLength;
+        int contentLength;
+        try {
+          pathLength = Integer.parseInt(header[0]);
+          contentLength = Integer.parseInt(header[1]);
+        } catch (RuntimeException e) {
+          throw new BzrExecException("bad idea-cat header: " + StringUtils.join(header, ' '));
+        }
+        pos = eol + 1;
+        if (pos + pathLength + Math.max(contentLength, 0) > out.length) {
+          throw new BzrExecException("truncated idea-cat output");
+        }
+        String relpath = new String(out, pos, pathLength, UTF8);
+        pos += pathLength;
+        if (contentLength >= 0) {
+          byte[] content = new byte[contentLength];
+          System.arraycopy(out, pos, content, 0, contentLength);
+          pos += contentLength;
+          cache.put(m_branch, m_tip, m_revision, relpath, content);
+          retval++;
+        }
+      }
+      return retval;
+    }
+  }
+
+  private static String decode(@Nullable byte[] content, Charset charset) {
+    return content != null ? new String(content, charset) : "";
+  }
+
+  /**
+   * Runs the command, unless the content of the file at the revision is in {@link BzrContentCache}, and caches
+   * its output.
+   *
+   * @return the content, or null if the command failed
+   */
+  @Nullable
+  private byte[] executeCached(BzrIdeaExec handler, @Nullable BazaarRoot bzrRoot, File file,
+                               @Nullable BzrRevisionNumber vcsRevisionNumber) {
+    String revision = vcsRevisionNumber != null ? vcsRevisionNumber.asString() : null;
+    String tip = null;
+    String relpath = null;
+    if (bzrRoot != null && bzrRoot.getFile() != null && StringUtils.isNotBlank(revision)) {
+      tip = getValidatedTip(bzrRoot);
+      relpath = FileUtil.toSystemIndependentName(BzrUtil.relativePath(bzrRoot.getFile(), file));
+    }
+    BzrContentCache cache = BzrContentCache.getInstance();
+    if (tip != null) {
+      byte[] cached = cache.get(bzrRoot.getFile(), tip, revision, relpath);
+      if (cached != null) {
+        return cached;
+      }
+    }
     ShellCommandService service = ShellCommandService.getInstance(project);
-    BzrStandardResult result = service.execute(handler, new BzrStandardResult(charset));
-    return result.getStdOutAsString();
+    BzrBytesResult result = service.execute(handler, new BzrBytesResult());
+    if (result.getExitValue() != 0) {
+      return null;
+    }
+    byte[] content = result.getByteOut();
+    if (tip != null) {
+      cache.put(bzrRoot.getFile(), tip, revision, relpath, content);
+    }
+    return content;
+  }
+
+  /**
+   * Brings the tip {@link BzrContentCache} holds for the branch up to date.
+   *
+   * @return the current tip of the branch, or null if contents of the branch cannot be cached
+   */
+  @Nullable
+  private String getValidatedTip(BazaarRoot bzrRoot) {
+    File branch = bzrRoot.getFile();
+    String tip = BzrContentCache.readTip(branch);
+    if (tip == null) {
+      return null;
+    }
+    BzrContentCache cache = BzrContentCache.getInstance();
+    String cachedTip = cache.getTip(branch);
+    if (!tip.equals(cachedTip)) {
+      cache.moveTip(branch, tip, cachedTip != null && isInHistory(bzrRoot, cachedTip));
+    }
+    return tip;
+  }
+
+  /**
+   * @param tip a revno and revision id, as in the last-revision file of a branch
+   * @return true if the revision still has that revno in the branch
+   */
+  private boolean isInHistory(BazaarRoot bzrRoot, String tip) {
+    BzrIdeaExec handler = new BzrIdeaExec(bzrRoot, "revision-info");
+    handler.addArguments("-r", tip.substring(0, tip.indexOf(' ')));
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
+    handler.setExitValueValidationEnabled(false);
+    handler.setStderrValidationEnabled(false);
+    try {
+      BzrStandardResult result =
+          ShellCommandService.getInstance(project).executeUnsafe(handler, new BzrStandardResult());
+      return result.getExitValue() == 0 && tip.equals(result.getStdOutAsString().trim());
+    } catch (BzrExecException e) {
+      return false;
+    }
   }
 }
@@ -0,0 +1,234 @@
+package bazaar4idea.command;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.emergent.bzr4j.core.cli.BzrCapturingSinkResult;
+import org.emergent.bzr4j.core.cli.BzrExecException;
+import org.emergent.bzr4j.core.cli.BzrResultBridge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lets concurrent identical read-only commands share a single bzr execution. The first caller runs the command
+ * and streams its output into its own result as usual while keeping a copy of the raw bytes; callers arriving while
+ * it runs wait for it and have the copy replayed into their results. Sharing raw output rather than parsed results
+ * lets every caller keep its own result type and charset.
+ * <p/>
+ * Write commands do not go through here, but invalidate the pending executions for their root so that readers
+ * arriving after the write are never handed output produced before it.
+ */
+class BzrExecCoalescer {
+
+  private static final Logger LOG = Logger.getInstance(BzrExecCoalescer.class.getName());
+
+  /**
+   * Output larger than this is not kept for followers, which then run the command themselves.
+   */
+  private static final int MAX_SHARED_OUTPUT = 4 * 1024 * 1024;
+
+  private static final BzrExecCoalescer INSTANCE = new BzrExecCoalescer();
+
+  private final Map<String, Flight> m_flights = new HashMap<String, Flight>();
+
+  static BzrExecCoalescer getInstance() {
+    return INSTANCE;
+  }
+
+  <T extends BzrAbstractResult> T exec(BzrIdeaExec exec, T result) throws BzrExecException {
+    File root = exec.getWorkingDir();
+    String key = createKey(root, exec.getCommandLine());
+    Flight flight;
+    boolean leader = false;
+    synchronized (m_flights) {
+      flight = m_flights.get(key);
+      if (flight == null) {
+        flight = new Flight(root);
+        m_flights.put(key, flight);
+        leader = true;
+      }
+    }
+    if (leader) {
+      try {
+        return lead(exec, result, flight);
+      } finally {
+        synchronized (m_flights) {
+          if (m_flights.get(key) == flight) {
+            m_flights.remove(key);
+          }
+        }
+      }
+    }
+    try {
+      flight.m_done.await();
+    } catch (InterruptedException e) {
+      throw new BzrExecException(e);
+    }
+    if (flight.m_out == null) {
+      // the leader failed or its output was too large to keep
+      exec.execLocked(result);
+      return result;
+    }
+    LOG.debug(String.format("Sharing output of \"%s\" in \"%s\"", exec.getCmd(), root));
+    replay(exec, result, flight.m_out, flight.m_err, flight.m_exitValue);
+    return result;
+  }
+
+  /**
+   * Forgets the pending executions for the given root.
+   */
+  void invalidate(File root) {
+    synchronized (m_flights) {
+      for (Iterator<Flight> it = m_flights.values().iterator(); it.hasNext();) {
+        if (isSameRoot(root, it.next().m_root)) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private static <T extends BzrAbstractResult> T lead(BzrIdeaExec exec, T result, Flight flight)
+      throws BzrExecException {
+    BzrResultSink out = new BzrResultSink(result, false);
+    CapturingStream capture = new CapturingStream(out);
+    BzrCapturingSinkResult raw = new BzrCapturingSinkResult(capture, true);
+    boolean exitValueValidation = exec.isExitValueValidationEnabled();
+    boolean stderrValidation = exec.isStderrValidationEnabled();
+    exec.setExitValueValidationEnabled(false);
+    exec.setStderrValidationEnabled(false);
+    byte[] err;
+    try {
+      exec.execLocked(raw);
+      out.finish();
+      err = raw.getStdErrBytes();
+      flight.m_out = capture.getCaptured();
+      flight.m_err = err;
+      flight.m_exitValue = raw.getExitValue();
+    } catch (IOException e) {
+      throw new BzrExecException(e);
+    } catch (InterruptedException e) {
+      throw new BzrExecException(e);
+    } finally {
+      exec.setExitValueValidationEnabled(exitValueValidation);
+      exec.setStderrValidationEnabled(stderrValidation);
+      out.abort();
+      // followers find no output if anything above failed and run the command themselves
+      flight.m_done.countDown();
+    }
+    replay(exec, result, null, err, raw.getExitValue());
+    return result;
+  }
+
+  /**
+   * Feeds recorded output into a result and validates it as if the command had run for it.
+   *
+   * @param out the stdout to replay, or null if it was already streamed into the result
+   */
+  private static void replay(BzrIdeaExec exec, BzrAbstractResult result, byte[] out, byte[] err, int exitValue)
+      throws BzrExecException {
+    BzrResultSink errSink = new BzrResultSink(result, true);
+    BzrResultSink outSink = out != null ? new BzrResultSink(result, false) : null;
+    try {
+      if (outSink != null) {
+        outSink.write(out);
+        outSink.finish();
+      }
+      errSink.write(err);
+      errSink.finish();
+    } catch (IOException e) {
+      throw new BzrExecException(e);
+    } catch (InterruptedException e) {
+      throw new BzrExecException(e);
+    } finally {
+      if (outSink != null) {
+        outSink.abort();
+      }
+      errSink.abort();
+    }
+    BzrResultBridge.setExitValue(result, exitValue);
+    List<String> args = exec.getCommandLine();
+    args.add(0, exec.getBzrExecutablePath());
+    result.validate(exec.getWorkingDir(), args, exec.isExitValueValidationEnabled(), exec.isStderrValidationEnabled());
+  }
+
+  private static String createKey(File root, List<String> commandLine) {
+    StringBuilder retval = new StringBuilder(root != null ? root.getAbsolutePath() : "");
+    for (String arg : commandLine) {
+      retval.append('\0').append(arg);
+    }
+    return retval.toString();
+  }
+
+  private static boolean isSameRoot(File root, File other) {
+    return root == null || other == null || root.getAbsolutePath().equals(other.getAbsolutePath());
+  }
+
+  private static class Flight {
+
+    private final File m_root;
+    private final CountDownLatch m_done = new CountDownLatch(1);
+
+    private volatile byte[] m_out;
+    private volatile byte[] m_err;
+    private volatile int m_exitValue;
+
+    private Flight(File root) {
+      m_root = root;
+    }
+  }
+
+  /**
+   * Passes the output on to the leader's result while keeping a bounded copy of it. Failures of the leader's
+   * result are swallowed so that the process output keeps being drained.
+   */
+  private static class CapturingStream extends OutputStream {
+
+    private final OutputStream m_target;
+    private ByteArrayOutputStream m_captured = new ByteArrayOutputStream();
+    private boolean m_targetBroken;
+
+    private CapturingStream(OutputStream target) {
+      m_target = target;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (m_captured != null) {
+        if (m_captured.size() + len > MAX_SHARED_OUTPUT) {
+          m_captured = null;
+        } else {
+          m_captured.write(b, off, len);
+        }
+      }
+      if (!m_targetBroken) {
+        try {
+          m_target.write(b, off, len);
+        } catch (IOException e) {
+          LOG.debug(e);
+          m_targetBroken = true;
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      m_target.close();
+    }
+
+    private byte[] getCaptured() {
+      return m_captured != null ? m_captured.toByteArray() : null;
+    }
+  }
+}
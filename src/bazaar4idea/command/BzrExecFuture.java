@@ -0,0 +1,61 @@
+package bazaar4idea.command;
+
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The pending result of a {@link BzrIdeaExec} submitted through {@link ShellCommandService#submit}. Cancelling
+ * it, or the progress indicator it was submitted with, kills the bzr process straight away.
+ */
+public class BzrExecFuture<T extends BzrAbstractResult> extends FutureTask<T> {
+
+  private static final long INDICATOR_POLL_INTERVAL = 200;
+  private static final Timer sm_indicatorWatcher = new Timer("bzr indicator watcher", true);
+
+  private final BzrIdeaExec m_exec;
+  private final TimerTask m_indicatorCheck;
+
+  BzrExecFuture(BzrIdeaExec exec, Callable<T> task, @Nullable final ProgressIndicator indicator) {
+    super(task);
+    m_exec = exec;
+    if (indicator != null) {
+      m_indicatorCheck = new TimerTask() {
+        @Override
+        public void run() {
+          if (indicator.isCanceled()) {
+            BzrExecFuture.this.cancel(true);
+          }
+        }
+      };
+      sm_indicatorWatcher.schedule(m_indicatorCheck, INDICATOR_POLL_INTERVAL, INDICATOR_POLL_INTERVAL);
+    } else {
+      m_indicatorCheck = null;
+    }
+  }
+
+  public BzrIdeaExec getExec() {
+    return m_exec;
+  }
+
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean retval = super.cancel(mayInterruptIfRunning);
+    if (retval) {
+      m_exec.cancel();
+    }
+    return retval;
+  }
+
+  @Override
+  protected void done() {
+    if (m_indicatorCheck != null) {
+      m_indicatorCheck.cancel();
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package bazaar4idea.command;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Records the timing of every bzr invocation of both command stacks, per subcommand and root, and keeps the
+ * slowest recent invocations. Exposed through JMX and the "Bazaar Metrics" tool window.
+ */
+public class BzrExecMetrics implements BzrExecMetricsMBean {
+
+  private static final Logger LOG = Logger.getInstance(BzrExecMetrics.class.getName());
+
+  public static final String OBJECT_NAME = "bazaar4idea:type=BzrExecMetrics";
+
+  private static final int SLOWEST_COUNT = 50;
+
+  private static final Comparator<BzrExecSample> BY_WALL_TIME = new Comparator<BzrExecSample>() {
+    public int compare(BzrExecSample o1, BzrExecSample o2) {
+      long w1 = o1.getWallMicros();
+      long w2 = o2.getWallMicros();
+      return w1 < w2 ? -1 : (w1 == w2 ? 0 : 1);
+    }
+  };
+
+  private static final BzrExecMetrics INSTANCE = new BzrExecMetrics();
+
+  private final Map<String, CommandMetrics> m_commands = new TreeMap<String, CommandMetrics>();
+  private final PriorityQueue<BzrExecSample> m_slowest = new PriorityQueue<BzrExecSample>(SLOWEST_COUNT + 1, BY_WALL_TIME);
+  private long m_invocationCount;
+
+  private BzrExecMetrics() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+      }
+    } catch (Exception e) {
+      LOG.info("Could not register bzr metrics MBean", e);
+    }
+  }
+
+  public static BzrExecMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts timing an invocation. The sample records itself when {@link BzrExecSample#finished} is called.
+   */
+  public static BzrExecSample start(String command, File root, String commandLine) {
+    return new BzrExecSample(command, root, commandLine);
+  }
+
+  void record(BzrExecSample sample) {
+    String key = sample.getCommand() + " " + sample.getRoot();
+    CommandMetrics metrics;
+    synchronized (this) {
+      m_invocationCount++;
+      metrics = m_commands.get(key);
+      if (metrics == null) {
+        metrics = new CommandMetrics(sample.getCommand(), sample.getRoot());
+        m_commands.put(key, metrics);
+      }
+      m_slowest.add(sample);
+      if (m_slowest.size() > SLOWEST_COUNT) {
+        m_slowest.poll();
+      }
+    }
+    metrics.record(sample);
+  }
+
+  public synchronized long getInvocationCount() {
+    return m_invocationCount;
+  }
+
+  public String[] getCommandSummaries() {
+    List<CommandMetrics> commands;
+    synchronized (this) {
+      commands = new ArrayList<CommandMetrics>(m_commands.values());
+    }
+    String[] retval = new String[commands.size()];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = commands.get(i).toString();
+    }
+    return retval;
+  }
+
+  public String[] getSlowestInvocations() {
+    List<BzrExecSample> slowest;
+    synchronized (this) {
+      slowest = new ArrayList<BzrExecSample>(m_slowest);
+    }
+    Collections.sort(slowest, Collections.reverseOrder(BY_WALL_TIME));
+    SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+    String[] retval = new String[slowest.size()];
+    for (int i = 0; i < retval.length; i++) {
+      BzrExecSample sample = slowest.get(i);
+      retval[i] = String.format("%s %8d us  lock %8d us  spawn %8d us  first byte %8d us  %9d bytes  exit %s  in %s: bzr %s",
+          format.format(new Date(sample.getStartMillis())), sample.getWallMicros(), sample.getLockWaitMicros(),
+          sample.getSpawnMicros(), sample.getFirstByteMicros(), sample.getBytesRead(), sample.getExitCode(),
+          sample.getRoot(), sample.getCommandLine());
+    }
+    return retval;
+  }
+
+  public String[] getSchedulerStatistics() {
+    List<BzrExecScheduler.Statistics> statistics = BzrExecScheduler.getInstance().getStatistics();
+    String[] retval = new String[statistics.size()];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = statistics.get(i).toString();
+    }
+    return retval;
+  }
+
+  public synchronized void reset() {
+    m_commands.clear();
+    m_slowest.clear();
+    m_invocationCount = 0;
+  }
+
+  private static class CommandMetrics {
+
+    private final String m_command;
+    private final String m_root;
+    private final BzrLatencyHistogram m_lockWait = new BzrLatencyHistogram();
+    private final BzrLatencyHistogram m_spawn = new BzrLatencyHistogram();
+    private final BzrLatencyHistogram m_firstByte = new BzrLatencyHistogram();
+    private final BzrLatencyHistogram m_wall = new BzrLatencyHistogram();
+    private final Map<Integer, Long> m_exitCodes = new TreeMap<Integer, Long>();
+    private long m_bytesRead;
+
+    private CommandMetrics(String command, String root) {
+      m_command = command;
+      m_root = root;
+    }
+
+    private void record(BzrExecSample sample) {
+      recordIfSet(m_lockWait, sample.getLockWaitMicros());
+      recordIfSet(m_spawn, sample.getSpawnMicros());
+      recordIfSet(m_firstByte, sample.getFirstByteMicros());
+      recordIfSet(m_wall, sample.getWallMicros());
+      synchronized (this) {
+        m_bytesRead += sample.getBytesRead();
+        Integer exitCode = sample.getExitCode() != null ? sample.getExitCode() : -1;
+        Long count = m_exitCodes.get(exitCode);
+        m_exitCodes.put(exitCode, count == null ? 1 : count + 1);
+      }
+    }
+
+    private static void recordIfSet(BzrLatencyHistogram histogram, long micros) {
+      if (micros >= 0) {
+        histogram.record(micros);
+      }
+    }
+
+    @Override
+    public synchronized String toString() {
+      return String.format("%-14s %6d runs %10d bytes  exit %s  wall %s  lock %s  spawn %s  first byte %s  in %s",
+          m_command, m_wall.getCount(), m_bytesRead, m_exitCodes, format(m_wall), format(m_lockWait),
+          format(m_spawn), format(m_firstByte), m_root);
+    }
+
+    private static String format(BzrLatencyHistogram histogram) {
+      return String.format("p50/p90/p99/max %d/%d/%d/%d us", histogram.getPercentile(50), histogram.getPercentile(90),
+          histogram.getPercentile(99), histogram.getMax());
+    }
+  }
+}
@@ -0,0 +1,27 @@
+package bazaar4idea.command;
+
+/**
+ * JMX view of {@link BzrExecMetrics}, registered as {@value BzrExecMetrics#OBJECT_NAME}.
+ * Times are in microseconds.
+ */
+public interface BzrExecMetricsMBean {
+
+  long getInvocationCount();
+
+  /**
+   * @return one line per command and root with invocation count, bytes read, exit codes and latency percentiles
+   */
+  String[] getCommandSummaries();
+
+  /**
+   * @return the slowest recent invocations, slowest first
+   */
+  String[] getSlowestInvocations();
+
+  /**
+   * @return the scheduler's queue-wait and run-time statistics, one line per priority class
+   */
+  String[] getSchedulerStatistics();
+
+  void reset();
+}
@@ -0,0 +1,16 @@
+package bazaar4idea.command;
+
+/**
+ * Scheduling class of a {@link BzrIdeaExec}, most urgent first.
+ */
+public enum BzrExecPriority {
+  /**
+   * A user is waiting for the result: annotate, diff content, file history.
+   */
+  INTERACTIVE,
+  NORMAL,
+  /**
+   * Periodic or bulk work nobody is waiting for: incoming/outgoing polling, full root status refreshes.
+   */
+  BACKGROUND,
+}
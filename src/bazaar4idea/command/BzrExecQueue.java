@@ -0,0 +1,124 @@
+package bazaar4idea.command;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs submitted commands on a small shared thread pool, with one bounded queue per branch root. A root never
+ * occupies more than {@link #MAX_RUNNING_PER_ROOT} pool threads, so a backlog on one branch (e.g. incoming and
+ * outgoing polling) cannot hold up the others.
+ */
+class BzrExecQueue {
+
+  private static final Logger LOG = Logger.getInstance(BzrExecQueue.class.getName());
+
+  private static final int MAX_THREADS = 8;
+  private static final int MAX_RUNNING_PER_ROOT = 2;
+  private static final int MAX_QUEUED_PER_ROOT = 64;
+
+  private static final BzrExecQueue INSTANCE = new BzrExecQueue();
+
+  private final ThreadPoolExecutor m_executor;
+  private final Map<String, Lane> m_lanes = new HashMap<String, Lane>();
+
+  private BzrExecQueue() {
+    m_executor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger m_count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread retval = new Thread(r, "bzr exec " + m_count.incrementAndGet());
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+    m_executor.allowCoreThreadTimeOut(true);
+  }
+
+  static BzrExecQueue getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Queues the future behind the other commands for its root.
+   *
+   * @throws RejectedExecutionException if too many commands are already queued for the root
+   */
+  void submit(BzrExecFuture<?> future) {
+    File root = future.getExec().getWorkingDir();
+    String key = root != null ? root.getAbsolutePath() : ".";
+    synchronized (m_lanes) {
+      Lane lane = m_lanes.get(key);
+      if (lane == null) {
+        lane = new Lane(key);
+        m_lanes.put(key, lane);
+      }
+      lane.purgeDone();
+      if (lane.m_pending.size() >= MAX_QUEUED_PER_ROOT) {
+        throw new RejectedExecutionException(String.format("too many bzr commands queued for \"%s\"", key));
+      }
+      lane.m_pending.add(future);
+      dispatch(lane);
+    }
+  }
+
+  private void dispatch(final Lane lane) {
+    while (lane.m_running < MAX_RUNNING_PER_ROOT && !lane.m_pending.isEmpty()) {
+      final BzrExecFuture<?> future = lane.m_pending.poll();
+      if (future.isDone()) {
+        continue;
+      }
+      lane.m_running++;
+      m_executor.execute(new Runnable() {
+        public void run() {
+          try {
+            future.run();
+          } finally {
+            finished(lane);
+          }
+        }
+      });
+    }
+  }
+
+  private void finished(Lane lane) {
+    synchronized (m_lanes) {
+      lane.m_running--;
+      dispatch(lane);
+      if (lane.m_running == 0 && lane.m_pending.isEmpty()) {
+        m_lanes.remove(lane.m_key);
+        LOG.debug(String.format("bzr exec queue for \"%s\" drained", lane.m_key));
+      }
+    }
+  }
+
+  private static class Lane {
+
+    private final String m_key;
+    private final LinkedList<BzrExecFuture<?>> m_pending = new LinkedList<BzrExecFuture<?>>();
+    private int m_running;
+
+    private Lane(String key) {
+      m_key = key;
+    }
+
+    private void purgeDone() {
+      for (Iterator<BzrExecFuture<?>> it = m_pending.iterator(); it.hasNext();) {
+        if (it.next().isDone()) {
+          it.remove();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package bazaar4idea.command;
+
+import bazaar4idea.BzrGlobalSettings;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the bzr invocations of both command stacks into the directory set with
+ * {@link BzrGlobalSettings#setExecRecordingDir}, for later replay by {@link BzrReplayExecutable}. Does nothing
+ * while no recording directory is set. Pooled workers are bypassed while recording, since their requests never
+ * reach a bzr command line that could be replayed.
+ */
+public class BzrExecRecorder {
+
+  private static final Logger LOG = Logger.getInstance(BzrExecRecorder.class.getName());
+
+  private static final BzrExecRecorder INSTANCE = new BzrExecRecorder();
+
+  private BzrExecRecorder() {
+  }
+
+  public static BzrExecRecorder getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Starts recording an invocation.
+   *
+   * @param args the arguments passed to bzr, without the executable
+   * @return the recording to feed the output to, or null if recording is off
+   */
+  @Nullable
+  public Recording begin(File workDir, List<String> args, Map<String, String> env) {
+    File dir = getRecordingDir();
+    if (dir == null) {
+      return null;
+    }
+    return new Recording(dir, new BzrExecRecording(workDir, args, env));
+  }
+
+  public boolean isRecording() {
+    return getRecordingDir() != null;
+  }
+
+  @Nullable
+  private static File getRecordingDir() {
+    BzrGlobalSettings settings = BzrGlobalSettings.getInstance();
+    String dir = settings != null ? settings.getExecRecordingDir() : null;
+    return dir != null && dir.trim().length() > 0 ? new File(dir.trim()) : null;
+  }
+
+  public static class Recording {
+
+    private final File m_dir;
+    private final BzrExecRecording m_recording;
+    private final long m_startMillis = System.currentTimeMillis();
+    private final ByteArrayOutputStream m_stdout = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream m_stderr = new ByteArrayOutputStream();
+    private boolean m_finished;
+
+    private Recording(File dir, BzrExecRecording recording) {
+      m_dir = dir;
+      m_recording = recording;
+    }
+
+    /**
+     * @return a stream that copies what is read through it into the recorded output
+     */
+    public InputStream tee(InputStream in, final boolean stderr) {
+      return new FilterInputStream(in) {
+        @Override
+        public int read() throws IOException {
+          int retval = super.read();
+          if (retval >= 0) {
+            getBuffer(stderr).write(retval);
+          }
+          return retval;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+          int retval = super.read(b, off, len);
+          if (retval > 0) {
+            append(b, off, retval, stderr);
+          }
+          return retval;
+        }
+      };
+    }
+
+    public void append(byte[] bytes, int off, int len, boolean stderr) {
+      getBuffer(stderr).write(bytes, off, len);
+    }
+
+    private ByteArrayOutputStream getBuffer(boolean stderr) {
+      return stderr ? m_stderr : m_stdout;
+    }
+
+    /**
+     * Writes the recording. Only the first call has any effect.
+     */
+    public synchronized void finish(int exitCode) {
+      if (m_finished) {
+        return;
+      }
+      m_finished = true;
+      m_recording.setResult(exitCode, System.currentTimeMillis() - m_startMillis, m_stdout.toByteArray(),
+          m_stderr.toByteArray());
+      try {
+        m_recording.write(m_dir);
+      } catch (IOException e) {
+        LOG.warn("Could not record bzr " + m_recording.getArgs(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+package bazaar4idea.command;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * One recorded bzr invocation: the working directory, arguments and bzr environment variables it ran with, and
+ * the output, exit code and duration it produced. Written by {@link BzrExecRecorder} and read back by
+ * {@link BzrReplayExecutable}, so this class must not depend on the IDE.
+ * <p/>
+ * An invocation is stored in a recording directory as {@code <key>.properties}, {@code <key>.out} and
+ * {@code <key>.err}, where the key is a digest of what it ran with. The working directory enters the key relative
+ * to the enclosing bzr tree (the nearest ancestor containing {@code .bzr}), so a recording can be replayed
+ * against a copy of the tree at a different location. Recording the same invocation twice keeps the later one.
+ */
+public class BzrExecRecording {
+
+  private static final String BZR_DIR = ".bzr";
+
+  /**
+   * Environment variables that vary between machines rather than change what bzr does.
+   */
+  private static final Set<String> IGNORED_ENV = new HashSet<String>(Arrays.asList(
+      "BZR_HOME", "BZR_LOG", "BZR_PLUGIN_PATH", "BZR_PLUGINS_AT", "BZR_SSH", "BZR_EMAIL"));
+
+  static final String REPLAY_ENV_PREFIX = "BZR_REPLAY_";
+
+  private final String m_cwd;
+  private final List<String> m_args;
+  private final SortedMap<String, String> m_env;
+  private int m_exitCode;
+  private long m_durationMillis;
+  private byte[] m_stdout = new byte[0];
+  private byte[] m_stderr = new byte[0];
+
+  public BzrExecRecording(File workDir, List<String> args, Map<String, String> env) {
+    this(relativeWorkDir(workDir), new ArrayList<String>(args), envSubset(env));
+  }
+
+  private BzrExecRecording(String cwd, List<String> args, SortedMap<String, String> env) {
+    m_cwd = cwd;
+    m_args = args;
+    m_env = env;
+  }
+
+  public String getKey() {
+    StringBuilder builder = new StringBuilder(m_cwd);
+    for (String arg : m_args) {
+      builder.append('\0').append(arg);
+    }
+    builder.append('\0');
+    for (Map.Entry<String, String> entry : m_env.entrySet()) {
+      builder.append('\0').append(entry.getKey()).append('=').append(entry.getValue());
+    }
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(builder.toString().getBytes("UTF-8"));
+      StringBuilder retval = new StringBuilder(hash.length * 2);
+      for (byte b : hash) {
+        retval.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return retval.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public String getWorkDir() {
+    return m_cwd;
+  }
+
+  public List<String> getArgs() {
+    return m_args;
+  }
+
+  public int getExitCode() {
+    return m_exitCode;
+  }
+
+  public long getDurationMillis() {
+    return m_durationMillis;
+  }
+
+  public byte[] getStdout() {
+    return m_stdout;
+  }
+
+  public byte[] getStderr() {
+    return m_stderr;
+  }
+
+  public void setResult(int exitCode, long durationMillis, byte[] stdout, byte[] stderr) {
+    m_exitCode = exitCode;
+    m_durationMillis = durationMillis;
+    m_stdout = stdout;
+    m_stderr = stderr;
+  }
+
+  public void write(File dir) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    String key = getKey();
+    // write the outputs first, so that a replay never sees the properties without them
+    writeBytes(new File(dir, key + ".out"), m_stdout);
+    writeBytes(new File(dir, key + ".err"), m_stderr);
+    Properties props = new Properties();
+    props.setProperty("cwd", m_cwd);
+    for (int i = 0; i < m_args.size(); i++) {
+      props.setProperty("arg." + i, m_args.get(i));
+    }
+    for (Map.Entry<String, String> entry : m_env.entrySet()) {
+      props.setProperty("env." + entry.getKey(), entry.getValue());
+    }
+    props.setProperty("exit", String.valueOf(m_exitCode));
+    props.setProperty("millis", String.valueOf(m_durationMillis));
+    File tmp = new File(dir, key + ".properties.tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      props.store(out, "bzr " + m_args);
+    } finally {
+      out.close();
+    }
+    File target = new File(dir, key + ".properties");
+    if (!tmp.renameTo(target)) {
+      target.delete();
+      if (!tmp.renameTo(target)) {
+        throw new IOException("Could not write " + target);
+      }
+    }
+  }
+
+  /**
+   * @return the recording of an invocation like this one from the given directory, or null if there is none
+   */
+  public BzrExecRecording readFrom(File dir) throws IOException {
+    String key = getKey();
+    File propsFile = new File(dir, key + ".properties");
+    if (!propsFile.isFile()) {
+      return null;
+    }
+    Properties props = new Properties();
+    InputStream in = new FileInputStream(propsFile);
+    try {
+      props.load(in);
+    } finally {
+      in.close();
+    }
+    BzrExecRecording retval = new BzrExecRecording(m_cwd, m_args, m_env);
+    retval.setResult(Integer.parseInt(props.getProperty("exit", "0")), Long.parseLong(props.getProperty("millis", "0")),
+        readBytes(new File(dir, key + ".out")), readBytes(new File(dir, key + ".err")));
+    return retval;
+  }
+
+  /**
+   * @return the working directory relative to the enclosing bzr tree, or its absolute path outside of one
+   */
+  static String relativeWorkDir(File workDir) {
+    File dir = workDir != null ? workDir.getAbsoluteFile() : new File(".").getAbsoluteFile();
+    try {
+      dir = dir.getCanonicalFile();
+    } catch (IOException ignored) {
+    }
+    StringBuilder relative = new StringBuilder();
+    for (File cur = dir; cur != null; cur = cur.getParentFile()) {
+      if (new File(cur, BZR_DIR).isDirectory()) {
+        return relative.length() == 0 ? "." : relative.toString();
+      }
+      relative.insert(0, relative.length() == 0 ? cur.getName() : cur.getName() + "/");
+    }
+    return dir.getPath().replace(File.separatorChar, '/');
+  }
+
+  static SortedMap<String, String> envSubset(Map<String, String> env) {
+    SortedMap<String, String> retval = new TreeMap<String, String>();
+    for (Map.Entry<String, String> entry : env.entrySet()) {
+      String name = entry.getKey();
+      if (name.startsWith("BZR_") && !name.startsWith(REPLAY_ENV_PREFIX) && !IGNORED_ENV.contains(name)
+          && entry.getValue() != null) {
+        retval.put(name, entry.getValue());
+      }
+    }
+    return retval;
+  }
+
+  private static void writeBytes(File file, byte[] bytes) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static byte[] readBytes(File file) throws IOException {
+    if (!file.isFile()) {
+      return new byte[0];
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream((int)file.length());
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        out.write(buf, 0, len);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package bazaar4idea.command;
+
+import bazaar4idea.util.BzrFlightRecorder;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Timing of a single bzr invocation, filled in as the invocation goes through its phases and handed to
+ * {@link BzrExecMetrics} when it finishes. All marks are optional; phases that were never marked are not recorded.
+ * Each sample is also emitted as a {@link BzrFlightRecorder#COMMAND} event when flight recording is on.
+ */
+public class BzrExecSample {
+
+  private final String m_command;
+  private final String m_root;
+  private final String m_commandLine;
+  private final long m_startNanos = System.nanoTime();
+  private final long m_startMillis = System.currentTimeMillis();
+
+  private volatile long m_lockAcquiredNanos;
+  private volatile long m_spawnStartNanos;
+  private volatile long m_spawnedNanos;
+  private volatile long m_firstByteNanos;
+  private volatile long m_endNanos;
+  private volatile long m_bytesRead;
+  private volatile Integer m_exitCode;
+  private final BzrFlightRecorder.Event m_event;
+
+  BzrExecSample(String command, File root, String commandLine) {
+    m_command = command;
+    m_root = root != null ? root.getAbsolutePath() : ".";
+    m_commandLine = commandLine;
+    m_event = BzrFlightRecorder.begin(BzrFlightRecorder.COMMAND, command, m_root, countArguments(commandLine));
+  }
+
+  public void lockAcquired() {
+    m_lockAcquiredNanos = System.nanoTime();
+  }
+
+  public void spawnStarted() {
+    m_spawnStartNanos = System.nanoTime();
+  }
+
+  public void spawned() {
+    m_spawnedNanos = System.nanoTime();
+  }
+
+  public void bytesRead(long count) {
+    if (count <= 0) {
+      return;
+    }
+    if (m_firstByteNanos == 0) {
+      m_firstByteNanos = System.nanoTime();
+    }
+    m_bytesRead += count;
+  }
+
+  /**
+   * Marks the invocation as finished and records it.
+   *
+   * @param exitCode the exit code of the command, or null if it did not run to completion
+   */
+  public void finished(Integer exitCode) {
+    if (m_endNanos != 0) {
+      return;
+    }
+    m_endNanos = System.nanoTime();
+    m_exitCode = exitCode;
+    m_event.commit(m_bytesRead);
+    BzrExecMetrics.getInstance().record(this);
+  }
+
+  /**
+   * @return a stream that reports the bytes read through it to this sample
+   */
+  InputStream count(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int retval = super.read();
+        if (retval >= 0) {
+          bytesRead(1);
+        }
+        return retval;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int retval = super.read(b, off, len);
+        bytesRead(retval);
+        return retval;
+      }
+    };
+  }
+
+  /**
+   * @return a stream that reports the bytes written through it to this sample
+   */
+  OutputStream count(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        bytesRead(1);
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        bytesRead(len);
+        out.write(b, off, len);
+      }
+    };
+  }
+
+  public String getCommand() {
+    return m_command;
+  }
+
+  public String getRoot() {
+    return m_root;
+  }
+
+  public String getCommandLine() {
+    return m_commandLine;
+  }
+
+  public long getStartMillis() {
+    return m_startMillis;
+  }
+
+  public long getBytesRead() {
+    return m_bytesRead;
+  }
+
+  public Integer getExitCode() {
+    return m_exitCode;
+  }
+
+  public long getLockWaitMicros() {
+    return micros(m_startNanos, m_lockAcquiredNanos);
+  }
+
+  public long getSpawnMicros() {
+    return micros(m_spawnStartNanos, m_spawnedNanos);
+  }
+
+  public long getFirstByteMicros() {
+    return micros(m_startNanos, m_firstByteNanos);
+  }
+
+  public long getWallMicros() {
+    return micros(m_startNanos, m_endNanos);
+  }
+
+  private static int countArguments(String commandLine) {
+    String trimmed = commandLine != null ? commandLine.trim() : "";
+    return trimmed.length() == 0 ? 0 : trimmed.split("\\s+").length;
+  }
+
+  /**
+   * @return the elapsed time between two marks, or -1 if either was never set
+   */
+  private static long micros(long from, long to) {
+    return from != 0 && to != 0 ? (to - from) / 1000 : -1;
+  }
+}
@@ -0,0 +1,211 @@
+package bazaar4idea.command;
+
+import bazaar4idea.BzrGlobalSettings;
+import com.intellij.openapi.diagnostic.Logger;
+import org.emergent.bzr4j.core.cli.BzrExecException;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Limits the number of bzr processes running at once and hands free slots to the most urgent waiting command.
+ * A waiting command moves up one {@link BzrExecPriority} class for every {@link #AGING_INTERVAL} it has waited,
+ * so background work is delayed but never starved.
+ */
+public class BzrExecScheduler {
+
+  private static final Logger LOG = Logger.getInstance(BzrExecScheduler.class.getName());
+
+  private static final long AGING_INTERVAL = 2000;
+
+  private static final BzrExecScheduler INSTANCE = new BzrExecScheduler();
+
+  private final LinkedList<Ticket> m_waiting = new LinkedList<Ticket>();
+  private final Statistics[] m_statistics;
+  private int m_running;
+
+  private BzrExecScheduler() {
+    BzrExecPriority[] priorities = BzrExecPriority.values();
+    m_statistics = new Statistics[priorities.length];
+    for (BzrExecPriority priority : priorities) {
+      m_statistics[priority.ordinal()] = new Statistics(priority);
+    }
+  }
+
+  public static BzrExecScheduler getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Waits for a free process slot.
+   *
+   * @return the ticket to pass to {@link #release} once the process has finished
+   */
+  Ticket acquire(BzrExecPriority priority) throws BzrExecException {
+    Ticket ticket = new Ticket(priority);
+    synchronized (this) {
+      m_statistics[priority.ordinal()].m_queued++;
+      m_waiting.add(ticket);
+      grant();
+      try {
+        while (!ticket.m_granted) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        if (ticket.m_granted) {
+          release(ticket);
+        } else {
+          m_waiting.remove(ticket);
+          m_statistics[priority.ordinal()].m_queued--;
+        }
+        throw new BzrExecException(e);
+      }
+    }
+    return ticket;
+  }
+
+  synchronized void release(Ticket ticket) {
+    long runTime = System.currentTimeMillis() - ticket.m_grantedAt;
+    Statistics stats = m_statistics[ticket.m_priority.ordinal()];
+    stats.m_running--;
+    stats.m_completed++;
+    stats.m_totalRunMillis += runTime;
+    stats.m_maxRunMillis = Math.max(stats.m_maxRunMillis, runTime);
+    m_running--;
+    grant();
+  }
+
+  /**
+   * @return a snapshot of the queue-wait and run-time statistics, one entry per priority class
+   */
+  public synchronized List<Statistics> getStatistics() {
+    List<Statistics> retval = new ArrayList<Statistics>(m_statistics.length);
+    for (Statistics stats : m_statistics) {
+      retval.add(new Statistics(stats));
+    }
+    return retval;
+  }
+
+  private void grant() {
+    int maxRunning = Math.max(1, BzrGlobalSettings.getInstance().getMaxConcurrentProcesses());
+    boolean granted = false;
+    long now = System.currentTimeMillis();
+    while (m_running < maxRunning && !m_waiting.isEmpty()) {
+      Ticket next = null;
+      long nextRank = Long.MAX_VALUE;
+      for (Ticket ticket : m_waiting) {
+        long rank = ticket.m_priority.ordinal() - (now - ticket.m_queuedAt) / AGING_INTERVAL;
+        if (rank < nextRank) {
+          next = ticket;
+          nextRank = rank;
+        }
+      }
+      m_waiting.remove(next);
+      long waitTime = now - next.m_queuedAt;
+      Statistics stats = m_statistics[next.m_priority.ordinal()];
+      stats.m_queued--;
+      stats.m_running++;
+      stats.m_started++;
+      stats.m_totalWaitMillis += waitTime;
+      stats.m_maxWaitMillis = Math.max(stats.m_maxWaitMillis, waitTime);
+      if (LOG.isDebugEnabled() && nextRank < next.m_priority.ordinal()) {
+        LOG.debug(String.format("Aged %s command after %d ms", next.m_priority, waitTime));
+      }
+      next.m_granted = true;
+      next.m_grantedAt = now;
+      m_running++;
+      granted = true;
+    }
+    if (granted) {
+      notifyAll();
+    }
+  }
+
+  static class Ticket {
+
+    private final BzrExecPriority m_priority;
+    private final long m_queuedAt = System.currentTimeMillis();
+    private boolean m_granted;
+    private long m_grantedAt;
+
+    private Ticket(BzrExecPriority priority) {
+      m_priority = priority;
+    }
+  }
+
+  /**
+   * Counters for one priority class. Times are in milliseconds.
+   */
+  public static class Statistics {
+
+    private final BzrExecPriority m_priority;
+    private int m_queued;
+    private int m_running;
+    private long m_started;
+    private long m_completed;
+    private long m_totalWaitMillis;
+    private long m_maxWaitMillis;
+    private long m_totalRunMillis;
+    private long m_maxRunMillis;
+
+    private Statistics(BzrExecPriority priority) {
+      m_priority = priority;
+    }
+
+    private Statistics(Statistics other) {
+      m_priority = other.m_priority;
+      m_queued = other.m_queued;
+      m_running = other.m_running;
+      m_started = other.m_started;
+      m_completed = other.m_completed;
+      m_totalWaitMillis = other.m_totalWaitMillis;
+      m_maxWaitMillis = other.m_maxWaitMillis;
+      m_totalRunMillis = other.m_totalRunMillis;
+      m_maxRunMillis = other.m_maxRunMillis;
+    }
+
+    public BzrExecPriority getPriority() {
+      return m_priority;
+    }
+
+    public int getQueued() {
+      return m_queued;
+    }
+
+    public int getRunning() {
+      return m_running;
+    }
+
+    public long getStarted() {
+      return m_started;
+    }
+
+    public long getCompleted() {
+      return m_completed;
+    }
+
+    public long getAverageWaitMillis() {
+      return m_started > 0 ? m_totalWaitMillis / m_started : 0;
+    }
+
+    public long getMaxWaitMillis() {
+      return m_maxWaitMillis;
+    }
+
+    public long getAverageRunMillis() {
+      return m_completed > 0 ? m_totalRunMillis / m_completed : 0;
+    }
+
+    public long getMaxRunMillis() {
+      return m_maxRunMillis;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s: queued=%d running=%d completed=%d wait(avg/max)=%d/%d ms run(avg/max)=%d/%d ms",
+          m_priority, m_queued, m_running, m_completed, getAverageWaitMillis(), m_maxWaitMillis,
+          getAverageRunMillis(), m_maxRunMillis);
+    }
+  }
+}
@@ -94,6 +94,8 @@ public abstract class BzrHandler {
   private Runnable myResumeAction; // Resume action used by {@link #resumeWriteLock()}
 
   private long myStartTime; // bzr execution start timestamp
+  private BzrExecSample mySample; // timing of the current execution, reported to BzrExecMetrics
+  @Nullable private BzrExecRecorder.Recording myRecording; // the recording of the current execution, if any
   private static final long LONG_TIME = 10 * 1000;
   @Nullable private ModalityState myState;
   @Nullable private String myUrl;
@@ -394,6 +396,10 @@ public abstract class BzrHandler {
 
     try {
       myStartTime = System.currentTimeMillis();
+      if (mySample == null) {
+        mySample = BzrExecMetrics.start(myCommand.name(), myWorkingDirectory, printableCommandLine());
+        mySample.lockAcquired();
+      }
       if (!myProject.isDefault() && !mySilent && (myVcs != null)) {
         myVcs.showCommandLine("cd " + myWorkingDirectory);
         myVcs.showCommandLine(printableCommandLine());
@@ -437,11 +443,16 @@ public abstract class BzrHandler {
 //      }
       myCommandLine.getEnvironment().clear();
       myCommandLine.getEnvironment().putAll(myEnv);
+      myRecording = BzrExecRecorder.getInstance()
+          .begin(myWorkingDirectory, myCommandLine.getParametersList().getList(), myEnv);
       // start process
+      mySample.spawnStarted();
       myProcess = startProcess();
+      mySample.spawned();
       startHandlingStreams();
     }
     catch (Throwable t) {
+      mySample.finished(null);
       LOG.error(t);
 //      cleanupEnv();
       myListeners.getMulticaster().startFailed(t);
@@ -520,6 +531,32 @@ public abstract class BzrHandler {
    */
   protected synchronized void setExitCode(int exitCode) {
     myExitCode = exitCode;
+    if (mySample != null) {
+      mySample.finished(exitCode);
+    }
+    if (myRecording != null) {
+      myRecording.finish(exitCode);
+    }
+  }
+
+  /**
+   * Reports the amount of standard output received so far to the metrics of this execution.
+   */
+  protected void outputReceived(int length) {
+    BzrExecSample sample = mySample;
+    if (sample != null) {
+      sample.bytesRead(length);
+    }
+  }
+
+  /**
+   * Adds output received from the process to the recording of this execution, if it is being recorded.
+   */
+  protected void recordOutput(byte[] bytes, int length, boolean stderr) {
+    BzrExecRecorder.Recording recording = myRecording;
+    if (recording != null) {
+      recording.append(bytes, 0, length, stderr);
+    }
   }
 
   /**
@@ -692,6 +729,7 @@ public abstract class BzrHandler {
     final BzrVcs vcs = BzrVcs.getInstance(myProject);
     if (vcs == null) { return; }
 
+    mySample = BzrExecMetrics.start(myCommand.name(), myWorkingDirectory, printableCommandLine());
     boolean suspendable = false;
     switch (myCommand.lockingPolicy()) {
       case READ:
@@ -704,6 +742,7 @@ public abstract class BzrHandler {
         vcs.getCommandLock().writeLock().lock();
         break;
     }
+    mySample.lockAcquired();
     try {
       if (suspendable) {
         final Object EXIT = new Object();
@@ -16,7 +16,9 @@
 
 package bazaar4idea.command;
 
+import com.intellij.execution.process.OSProcessManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -24,6 +26,7 @@ import org.emergent.bzr4j.core.BazaarRoot;
 import org.emergent.bzr4j.core.cli.BzrAbstractExec;
 import org.emergent.bzr4j.core.cli.BzrAbstractResult;
 import org.emergent.bzr4j.core.cli.BzrExecException;
+import org.emergent.bzr4j.core.cli.BzrResultBridge;
 import org.emergent.bzr4j.core.cli.BzrStandardResult;
 import org.emergent.bzr4j.core.cli.BzrXmlResult;
 import org.emergent.bzr4j.core.utils.BzrCoreUtil;
@@ -33,12 +36,20 @@ import bazaar4idea.BzrUtil;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * @author Patrick Woodworth
@@ -47,9 +58,27 @@ public class BzrIdeaExec extends BzrAbstractExec {
 
   private static final Logger LOG = Logger.getInstance(BzrIdeaExec.class.getName());
 
-  private static final ConcurrentMap<String, Lock> sm_workDirLocks = new ConcurrentHashMap<String, Lock>();
+  private static final ConcurrentMap<String, ReadWriteLock> sm_workDirLocks =
+      new ConcurrentHashMap<String, ReadWriteLock>();
+
+  /**
+   * Commands that never modify the branch or working tree.
+   */
+  private static final Set<String> READ_ONLY_COMMANDS = new HashSet<String>(Arrays.asList(
+      "annotate", "cat", "file-id", "idea-cat", "idea-status", "info", "is-ignored", "log", "ls", "revision-info",
+      "revno", "status", "version", "xmlannotate", "xmlinfo", "xmllog", "xmlls", "xmlplugins", "xmlstatus",
+      "xmlversion"));
+
+  private static final AtomicLong sm_execCount = new AtomicLong();
+
+  private final List<String> m_arguments = new ArrayList<String>();
 
   private boolean m_bad;
+  private boolean m_helperPluginRequired;
+  private BzrExecPriority m_priority = BzrExecPriority.NORMAL;
+  private volatile boolean m_cancelled;
+  private volatile Process m_process;
+  private BzrExecSample m_sample;
 
   public BzrIdeaExec(String cmd) {
     this(BazaarRoot.ROOTLESS, cmd);
@@ -69,15 +98,178 @@ public class BzrIdeaExec extends BzrAbstractExec {
 
   @Override
   protected BzrAbstractResult exec(BzrAbstractResult result) throws BzrExecException {
-    final Lock lock = getWorkDirLock(getWorkingDir());
+    if (isReadOnly()) {
+      return BzrExecCoalescer.getInstance().exec(this, result);
+    }
+    BzrExecCoalescer.getInstance().invalidate(getWorkingDir());
+    return execLocked(result);
+  }
+
+  /**
+   * Runs the command for the given result alone, bypassing {@link BzrExecCoalescer}.
+   */
+  BzrAbstractResult execLocked(BzrAbstractResult result) throws BzrExecException {
+    m_sample = BzrExecMetrics.start(getCmd(), getWorkingDir(), StringUtil.join(getCommandLine(), " "));
+    Integer exitCode = null;
+    final Lock lock = getExecLock();
     lock.lock();
     try {
-      return super.exec(result);
+      BzrExecScheduler scheduler = BzrExecScheduler.getInstance();
+      BzrExecScheduler.Ticket ticket = scheduler.acquire(m_priority);
+      m_sample.lockAcquired();
+      try {
+        BzrAbstractResult retval = null;
+        BzrWorkerPool pool = BzrWorkerPool.getInstance();
+        if (pool.isEligible(this) && !BzrExecRecorder.getInstance().isRecording()) {
+          retval = pool.exec(this, result);
+        }
+        if (retval == null) {
+          retval = fork(result);
+        }
+        exitCode = retval.getExitValue();
+        return retval;
+      } finally {
+        scheduler.release(ticket);
+      }
     } finally {
       lock.unlock();
+      m_sample.finished(exitCode);
+    }
+  }
+
+  /**
+   * @return the timing of the current execution
+   */
+  BzrExecSample getSample() {
+    return m_sample;
+  }
+
+  public BzrExecPriority getPriority() {
+    return m_priority;
+  }
+
+  public BzrIdeaExec setPriority(BzrExecPriority priority) {
+    m_priority = priority;
+    return this;
+  }
+
+  /**
+   * Kills the bzr process running this command, if any, and makes any later attempt to run it fail.
+   */
+  public void cancel() {
+    m_cancelled = true;
+    Process process = m_process;
+    if (process != null) {
+      killProcessTree(process);
+    }
+  }
+
+  public boolean isCancelled() {
+    return m_cancelled;
+  }
+
+  /**
+   * Registers the process currently running this command so that {@link #cancel()} can kill it.
+   */
+  void attachProcess(@Nullable Process process) throws BzrExecException {
+    m_process = process;
+    if (process != null && m_cancelled) {
+      killProcessTree(process);
+      throw new BzrExecException("cancelled: " + getCmd());
     }
   }
 
+  /**
+   * Same as {@link BzrAbstractExec#exec(BzrAbstractResult)}, but keeps hold of the process so that it can be
+   * cancelled.
+   */
+  private BzrAbstractResult fork(BzrAbstractResult result) throws BzrExecException {
+    long startTime = System.currentTimeMillis();
+    long execNum = sm_execCount.incrementAndGet();
+    ArrayList<String> args = new ArrayList<String>(getCommandLine());
+    args.add(0, getBzrExecutablePath());
+    File workDir = getWorkingDir();
+    Process process = null;
+    try {
+      ProcessBuilder builder = createProcessBuilder(args);
+      builder.directory(workDir);
+      if (m_helperPluginRequired) {
+        BzrWorkerPool.getInstance().addHelperPlugin(builder.environment());
+      }
+      logExec(result, execNum, workDir, args);
+      BzrExecRecorder.Recording recording =
+          BzrExecRecorder.getInstance().begin(workDir, getCommandLine(), builder.environment());
+      m_sample.spawnStarted();
+      process = builder.start();
+      m_sample.spawned();
+      attachProcess(process);
+      InputStream out = m_sample.count(process.getInputStream());
+      InputStream err = process.getErrorStream();
+      if (recording != null) {
+        out = recording.tee(out, false);
+        err = recording.tee(err, true);
+      }
+      Thread outRelay = BzrResultBridge.startOutRelay(result, out);
+      Thread errRelay = BzrResultBridge.startErrRelay(result, err);
+      try {
+        process.getOutputStream().close();
+      } catch (IOException ignored) {
+      }
+      int exitValue = process.waitFor();
+      BzrResultBridge.setExitValue(result, exitValue);
+      outRelay.join();
+      errRelay.join();
+      if (recording != null && !m_cancelled) {
+        recording.finish(exitValue);
+      }
+      if (m_cancelled) {
+        throw new BzrExecException("cancelled: " + getCmd());
+      }
+      result.validate(workDir, args, isExitValueValidationEnabled(), isStderrValidationEnabled());
+    } catch (IOException e) {
+      throw new BzrExecException(e);
+    } catch (InterruptedException e) {
+      throw new BzrExecException(e);
+    } finally {
+      m_process = null;
+      if (process != null) {
+        process.destroy();
+      }
+    }
+    logExec(result, execNum, System.currentTimeMillis() - startTime, workDir, args);
+    return result;
+  }
+
+  private static void killProcessTree(Process process) {
+    if (!OSProcessManager.getInstance().killProcessTree(process)) {
+      process.destroy();
+    }
+  }
+
+  @Override
+  public BzrAbstractExec addArguments(List<String> args) {
+    m_arguments.addAll(args);
+    return super.addArguments(args);
+  }
+
+  /**
+   * @return true if the command does not modify the branch or working tree
+   */
+  public boolean isReadOnly() {
+    return READ_ONLY_COMMANDS.contains(getCmd());
+  }
+
+  /**
+   * @return the command line as passed to bzr, without the executable
+   */
+  public List<String> getCommandLine() {
+    List<String> retval = new ArrayList<String>(m_arguments.size() + 2);
+    retval.add(getCmd());
+    retval.add("--no-aliases");
+    retval.addAll(m_arguments);
+    return retval;
+  }
+
   public void addRelativePaths(FilePath... paths) {
     for (FilePath path : paths) {
       addArguments(BzrUtil.relativePath(getWorkingDir(),path));
@@ -90,6 +282,18 @@ public class BzrIdeaExec extends BzrAbstractExec {
     }
   }
 
+  /**
+   * @return true if the command is implemented by the plugin bundled with bazaar4idea, which then has to be
+   *         loaded into the bzr running it
+   */
+  public boolean isHelperPluginRequired() {
+    return m_helperPluginRequired;
+  }
+
+  public void setHelperPluginRequired(boolean helperPluginRequired) {
+    m_helperPluginRequired = helperPluginRequired;
+  }
+
   public boolean isBad() {
     return m_bad;
   }
@@ -114,18 +318,49 @@ public class BzrIdeaExec extends BzrAbstractExec {
     return retval;
   }
 
+  /**
+   * Creates the process builder for a {@link BzrWorker}, loading the worker plugin from the given directory
+   * in addition to the user's plugins.
+   */
+  ProcessBuilder createWorkerProcessBuilder(String pluginName, File pluginDir) {
+    ProcessBuilder retval = createProcessBuilder(Arrays.asList(getBzrExecutablePath(), "idea-worker"));
+    addPlugin(retval.environment(), pluginName, pluginDir);
+    retval.directory(getWorkingDir());
+    return retval;
+  }
+
+  /**
+   * Makes bzr load the plugin in the given directory in addition to the user's plugins.
+   */
+  static void addPlugin(Map<String, String> envVars, String pluginName, File pluginDir) {
+    String pluginsAt = pluginName + "@" + pluginDir.getAbsolutePath();
+    String existing = envVars.get("BZR_PLUGINS_AT");
+    if (existing != null && existing.trim().length() > 0) {
+      pluginsAt = existing + File.pathSeparator + pluginsAt;
+    }
+    envVars.put("BZR_PLUGINS_AT", pluginsAt);
+  }
+
   @Override
   protected String getBzrExecutablePath() {
     return BzrGlobalSettings.getInstance().getBzrExecutable();
   }
 
-  public static Lock getWorkDirLock(File workDir) {
+  /**
+   * @return the lock to hold while running this command: shared for read-only commands, exclusive otherwise
+   */
+  public Lock getExecLock() {
+    ReadWriteLock lock = getWorkDirLock(getWorkingDir());
+    return isReadOnly() ? lock.readLock() : lock.writeLock();
+  }
+
+  public static ReadWriteLock getWorkDirLock(File workDir) {
     boolean fineGrain = BzrGlobalSettings.getInstance().isGranularExecLockingEnabled();
     String path = (fineGrain && (workDir != null)) ? workDir.getAbsolutePath() : ".";
-    Lock lock = sm_workDirLocks.get(path);
+    ReadWriteLock lock = sm_workDirLocks.get(path);
     if (lock == null) {
-      lock = new ReentrantLock();
-      Lock curLock = sm_workDirLocks.putIfAbsent(path, lock);
+      lock = new ReentrantReadWriteLock();
+      ReadWriteLock curLock = sm_workDirLocks.putIfAbsent(path, lock);
       if (curLock != null) {
         lock = curLock;
       }
@@ -13,11 +13,6 @@
 package bazaar4idea.command;
 
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
-import org.emergent.bzr4j.core.cli.BzrStandardResult;
-import bazaar4idea.BzrFile;
-
-import java.util.Arrays;
 
 public class BzrIncomingCommand extends BzrRevisionsCommand {
 
@@ -26,10 +21,8 @@ public class BzrIncomingCommand extends BzrRevisionsCommand {
   }
 
   @Override
-  protected BzrStandardResult execute(ShellCommandService service, VirtualFile repo,
-      String template, int limit, BzrFile hgFile) {
-    return service.execute2(repo, "incoming",
-        Arrays.asList("--newest-first", "--template", template, "--limit", String.valueOf(limit)));
+  protected String getMissingOption() {
+    return "--theirs-only";
   }
 
 }
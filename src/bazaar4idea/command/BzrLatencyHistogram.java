@@ -0,0 +1,84 @@
+package bazaar4idea.command;
+
+import java.util.Arrays;
+
+/**
+ * A latency histogram with log-linear buckets in the style of HdrHistogram: every power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so any recorded value is reported within about 6% over the whole range of
+ * a long, at a fixed memory cost. Values are in microseconds.
+ */
+public class BzrLatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final long[] m_counts = new long[BUCKET_COUNT];
+  private long m_total;
+  private long m_sum;
+  private long m_max;
+
+  public synchronized void record(long micros) {
+    long value = Math.max(0, micros);
+    m_counts[indexOf(value)]++;
+    m_total++;
+    m_sum += value;
+    m_max = Math.max(m_max, value);
+  }
+
+  public synchronized long getCount() {
+    return m_total;
+  }
+
+  public synchronized long getMax() {
+    return m_max;
+  }
+
+  public synchronized long getMean() {
+    return m_total > 0 ? m_sum / m_total : 0;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the upper bound of the bucket holding the given percentile, or 0 if nothing was recorded
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (m_total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long)Math.ceil(m_total * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < m_counts.length; i++) {
+      seen += m_counts[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), m_max);
+      }
+    }
+    return m_max;
+  }
+
+  public synchronized void reset() {
+    Arrays.fill(m_counts, 0);
+    m_total = 0;
+    m_sum = 0;
+    m_max = 0;
+  }
+
+  private static int indexOf(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int)value;
+    }
+    // shift so that the value falls into [SUB_BUCKETS, 2 * SUB_BUCKETS)
+    int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (magnitude + 1) * SUB_BUCKETS + (int)(value >>> magnitude) - SUB_BUCKETS;
+  }
+
+  private static long upperBoundOf(int index) {
+    if (index < 2 * SUB_BUCKETS) {
+      return index;
+    }
+    int magnitude = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+}
@@ -52,6 +52,7 @@ public class BzrLogCommand extends BzrAbstractCommand {
     }
 
     BzrIdeaExec handler = BzrIdeaExec.createBzrIdeaExec(bzrFile.getRepo(), "xmllog");
+    handler.setPriority(BzrExecPriority.INTERACTIVE);
 
     ShellCommandService bzrCommandService = ShellCommandService.getInstance(project);
 
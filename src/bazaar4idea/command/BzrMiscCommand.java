@@ -17,16 +17,22 @@
 package bazaar4idea.command;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.emergent.bzr4j.core.BazaarRoot;
-import org.emergent.bzr4j.core.cli.BzrAbstractResult;
 import org.emergent.bzr4j.core.cli.BzrExecException;
 import org.emergent.bzr4j.core.debug.DebugLogger;
 import org.emergent.bzr4j.core.debug.DebugManager;
 import bazaar4idea.BzrRevisionNumber;
 import bazaar4idea.BzrRootConverter;
+import bazaar4idea.BzrUtil;
+import bazaar4idea.repo.BzrDirState;
+import bazaar4idea.repo.BzrIgnoreMatcher;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+
 /**
  * @author Patrick Woodworth
  */
@@ -42,19 +48,17 @@ public class BzrMiscCommand {
     return BzrRevisionNumber.getLocalInstance(revstr);
   }
 
+  /**
+   * Matches the file against the ignore patterns of its working tree, without running bzr.
+   */
   public static boolean isIgnored(Project project, VirtualFile file) {
-    ShellCommandService cmdSvc = ShellCommandService.getInstance(project);
-    BzrIdeaExec handler = cmdSvc.createCommand(file, "is-ignored");
-    if (handler == null)
+    File ioFile = VfsUtil.virtualToIoFile(file);
+    BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(ioFile);
+    if (bzrRoot == null || bzrRoot.getFile().equals(ioFile))
       return false;
 
-    handler.setExitValueValidationEnabled(false);
-    handler.setStderrValidationEnabled(false);
-    handler.addRelativePaths(file);
-    BzrAbstractResult result = cmdSvc.execute(handler);
-    if (result.getExitValue() == 1)
-      return true;
-
-    return false;
+    String relpath = FileUtil.toSystemIndependentName(BzrUtil.relativePath(bzrRoot.getFile(), ioFile));
+    return BzrIgnoreMatcher.getInstance(bzrRoot.getFile())
+        .isIgnoredInTree(relpath, BzrDirState.getInstance(bzrRoot.getFile()));
   }
 }
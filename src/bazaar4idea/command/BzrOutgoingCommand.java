@@ -13,11 +13,6 @@
 package bazaar4idea.command;
 
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
-import org.emergent.bzr4j.core.cli.BzrStandardResult;
-import bazaar4idea.BzrFile;
-
-import java.util.Arrays;
 
 public class BzrOutgoingCommand extends BzrRevisionsCommand {
 
@@ -25,10 +20,9 @@ public class BzrOutgoingCommand extends BzrRevisionsCommand {
     super(project);
   }
 
-  protected BzrStandardResult execute(ShellCommandService service, VirtualFile repo,
-      String template, int limit, BzrFile hgFile) {
-    return service.execute2(repo, "outgoing",
-        Arrays.asList("--newest-first", "--template", template, "--limit", String.valueOf(limit)));
+  @Override
+  protected String getMissingOption() {
+    return "--mine-only";
   }
 
 }
@@ -0,0 +1,113 @@
+package bazaar4idea.command;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+
+/**
+ * A stand-in for the bzr executable that answers from a recording made by {@link BzrExecRecorder}, so that the
+ * change provider, log, annotate and update flows can run deterministically on a machine without bzr.
+ * <p/>
+ * Use {@link #createLauncher} to write a script that runs this class, and set the script as the bzr executable
+ * of both command stacks ({@code BzrGlobalSettings.setBzrExecutable} and
+ * {@code BzrVcsApplicationSettings.setPathToBzr}).
+ * The script passes the recording directory and the latency to simulate through {@code BZR_REPLAY_DIR} and
+ * {@code BZR_REPLAY_LATENCY}: a number of milliseconds to delay every invocation by, or {@code recorded} to take
+ * as long as the recorded invocation did. An invocation without a recording fails with exit code 3.
+ * <p/>
+ * This class is started in its own JVM with only the plugin classes on the class path, so it must not depend
+ * on the IDE.
+ */
+public class BzrReplayExecutable {
+
+  public static final String DIR_ENV = BzrExecRecording.REPLAY_ENV_PREFIX + "DIR";
+  public static final String LATENCY_ENV = BzrExecRecording.REPLAY_ENV_PREFIX + "LATENCY";
+  public static final String RECORDED_LATENCY = "recorded";
+
+  private static final int MISSING_EXIT_CODE = 3;
+
+  private BzrReplayExecutable() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    String dir = System.getenv(DIR_ENV);
+    if (dir == null || dir.length() == 0) {
+      System.err.println("bzr replay: " + DIR_ENV + " is not set");
+      System.exit(MISSING_EXIT_CODE);
+    }
+    BzrExecRecording request = new BzrExecRecording(new File("."), Arrays.asList(args), System.getenv());
+    BzrExecRecording recording = request.readFrom(new File(dir));
+    if (recording == null) {
+      System.err.println("bzr replay: no recording of bzr " + request.getArgs() + " in " + request.getWorkDir()
+          + " (" + request.getKey() + ")");
+      System.exit(MISSING_EXIT_CODE);
+    }
+    long latency = getLatency(recording);
+    if (latency > 0) {
+      Thread.sleep(latency);
+    }
+    System.out.write(recording.getStdout());
+    System.out.flush();
+    System.err.write(recording.getStderr());
+    System.err.flush();
+    System.exit(recording.getExitCode());
+  }
+
+  private static long getLatency(BzrExecRecording recording) {
+    String latency = System.getenv(LATENCY_ENV);
+    if (latency == null || latency.length() == 0) {
+      return 0;
+    }
+    if (RECORDED_LATENCY.equals(latency)) {
+      return recording.getDurationMillis();
+    }
+    try {
+      return Long.parseLong(latency);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Writes a script that replays bzr invocations from the given recording, for use as the bzr executable.
+   *
+   * @param latency milliseconds to delay every invocation by, {@link #RECORDED_LATENCY}, or null for none
+   * @return the script
+   */
+  public static File createLauncher(File scriptDir, File recordingDir, String latency) throws IOException {
+    String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+    String classPath;
+    try {
+      classPath = new File(BzrReplayExecutable.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+          .getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e.getMessage());
+    }
+    boolean windows = File.separatorChar == '\\';
+    File script = new File(scriptDir, windows ? "bzr-replay.cmd" : "bzr-replay");
+    Writer out = new OutputStreamWriter(new FileOutputStream(script), "UTF-8");
+    try {
+      if (windows) {
+        out.write("@echo off\r\n");
+        out.write("set " + DIR_ENV + "=" + recordingDir.getAbsolutePath() + "\r\n");
+        out.write("set " + LATENCY_ENV + "=" + (latency != null ? latency : "") + "\r\n");
+        out.write("\"" + java + "\" -cp \"" + classPath + "\" " + BzrReplayExecutable.class.getName() + " %*\r\n");
+      } else {
+        out.write("#!/bin/sh\n");
+        out.write(DIR_ENV + "='" + recordingDir.getAbsolutePath() + "' " + LATENCY_ENV + "='"
+            + (latency != null ? latency : "") + "' exec '" + java + "' -cp '" + classPath + "' "
+            + BzrReplayExecutable.class.getName() + " \"$@\"\n");
+      }
+    } finally {
+      out.close();
+    }
+    if (!script.setExecutable(true)) {
+      throw new IOException("Could not make " + script + " executable");
+    }
+    return script;
+  }
+}
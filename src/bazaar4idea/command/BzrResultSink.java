@@ -0,0 +1,86 @@
+package bazaar4idea.command;
+
+import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.emergent.bzr4j.core.cli.BzrResultBridge;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+/**
+ * Feeds bytes that do not come from a forked process into one of the output relays of a result, so that the
+ * result parses them exactly as it would parse process output. The relay is only started by the first write,
+ * which leaves the result untouched if the producer fails before delivering anything.
+ */
+class BzrResultSink extends OutputStream {
+
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  private final BzrAbstractResult m_result;
+  private final boolean m_stderr;
+
+  private PipedOutputStream m_pipe;
+  private Thread m_relay;
+
+  BzrResultSink(BzrAbstractResult result, boolean stderr) {
+    m_result = result;
+    m_stderr = stderr;
+  }
+
+  boolean isStarted() {
+    return m_pipe != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    open();
+    m_pipe.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    open();
+    m_pipe.write(b, off, len);
+  }
+
+  /**
+   * Closes the stream without waiting for the result, starting the relay first if nothing was written.
+   */
+  @Override
+  public void close() throws IOException {
+    open();
+    m_pipe.close();
+  }
+
+  /**
+   * Closes the stream and waits until the result has consumed everything written to it.
+   */
+  void finish() throws IOException, InterruptedException {
+    close();
+    m_relay.join();
+  }
+
+  /**
+   * Closes the stream if it was started, without failing.
+   */
+  void abort() {
+    if (m_pipe == null) {
+      return;
+    }
+    try {
+      m_pipe.close();
+      m_relay.join();
+    } catch (Exception ignored) {
+    }
+  }
+
+  private void open() throws IOException {
+    if (m_pipe != null) {
+      return;
+    }
+    PipedInputStream in = new PipedInputStream(PIPE_SIZE);
+    m_pipe = new PipedOutputStream(in);
+    m_relay = m_stderr ? BzrResultBridge.startErrRelay(m_result, in) : BzrResultBridge.startOutRelay(m_result, in);
+  }
+}
@@ -13,38 +13,32 @@
 package bazaar4idea.command;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vfs.VirtualFile;
-import org.apache.commons.lang.StringUtils;
-import org.emergent.bzr4j.core.cli.BzrStandardResult;
+import org.emergent.bzr4j.core.cli.BzrExecException;
+import org.emergent.bzr4j.core.cli.BzrXmlResult;
+import org.emergent.bzr4j.core.xmloutput.XmlOutputHandler;
+import org.jetbrains.annotations.Nullable;
 import bazaar4idea.BzrFile;
 import bazaar4idea.BzrFileRevision;
 import bazaar4idea.BzrRevisionNumber;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 
+/**
+ * Lists the revisions which one side of a branch and its parent is missing, with {@code bzr xmlmissing}.
+ */
 abstract class BzrRevisionsCommand {
 
   private static final Logger LOG = Logger.getInstance(BzrRevisionsCommand.class.getName());
 
-  private static final String TEMPLATE =
-      "{rev}|{node|short}|{date|isodate}|{author}|{branches}|{desc}\\n";
-
-  private static final int REVISION_INDEX = 0;
-  private static final int CHANGESET_INDEX = 1;
-  private static final int DATE_INDEX = 2;
-  private static final int AUTHOR_INDEX = 3;
-  private static final int BRANCH_INDEX = 4;
-  private static final int MESSAGE_INDEX = 5;
-  private static final int ITEM_COUNT = 6;
-
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd HH:mm Z", Locale.US);
+  /**
+   * The highest exit value of {@code bzr missing} which is not an error: it exits with 1 when revisions are missing.
+   */
+  private static final int MAX_MISSING_EXIT_VALUE = 1;
 
   private final Project project;
 
@@ -52,47 +46,51 @@ abstract class BzrRevisionsCommand {
     this.project = project;
   }
 
-  protected abstract BzrStandardResult execute(
-      ShellCommandService service, VirtualFile repo, String template, int limit, BzrFile hgFile
-  );
-
-  public final List<BzrFileRevision> execute(BzrFile hgFile, int limit) {
-    if (limit <= REVISION_INDEX || hgFile == null || hgFile.getRepo() == null) {
+  /**
+   * @return the option of {@code bzr missing} which picks the side to list
+   */
+  protected abstract String getMissingOption();
+
+  /**
+   * Runs the command through the exec queue at background priority, so that polling never holds up the commands
+   * the user is waiting for.
+   *
+   * @return at most limit revisions, or an empty list if the command failed or was cancelled
+   */
+  public final List<BzrFileRevision> execute(final BzrFile hgFile, final int limit,
+                                             @Nullable ProgressIndicator indicator) {
+    if (limit <= 0 || hgFile == null || hgFile.getRepo() == null) {
       return Collections.emptyList();
     }
 
-    ShellCommandService hgCommandService = ShellCommandService.getInstance(project);
-
-    BzrStandardResult result = execute(
-        hgCommandService, hgFile.getRepo(), TEMPLATE, limit, hgFile
-    );
-
-    List<BzrFileRevision> revisions = new LinkedList<BzrFileRevision>();
-    for (String line : result.getStdOutAsLines()) {
-      try {
-        String[] attributes = StringUtils.splitPreserveAllTokens(line, '|');
-        if (attributes.length != ITEM_COUNT) {
-          LOG.warn("Wrong format. Skipping line " + line);
-          continue;
+    BzrIdeaExec exec = BzrIdeaExec.createBzrIdeaExec(hgFile.getRepo(), "xmlmissing");
+    exec.setPriority(BzrExecPriority.BACKGROUND);
+    exec.setStderrValidationEnabled(false);
+    exec.setExitValueValidationEnabled(false);
+    exec.addArguments(getMissingOption());
+
+    final List<BzrFileRevision> revisions = new LinkedList<BzrFileRevision>();
+    XmlOutputHandler resultHandler = new XmlOutputHandler() {
+      @Override
+      public void handleLog(String revno, String committer, String branchNick, Date timestamp, String message) {
+        if (revisions.size() < limit) {
+          BzrRevisionNumber bzrRev = BzrRevisionNumber.getLocalInstance(revno);
+          revisions.add(new BzrFileRevision(project, hgFile, bzrRev, branchNick, timestamp, committer, message));
         }
-        BzrRevisionNumber vcsRevisionNumber = BzrRevisionNumber.getInstance(
-            attributes[REVISION_INDEX],
-            attributes[CHANGESET_INDEX]
-        );
-        Date revisionDate = DATE_FORMAT.parse(attributes[DATE_INDEX]);
-        String author = attributes[AUTHOR_INDEX];
-        String branchName = attributes[BRANCH_INDEX];
-        String commitMessage = attributes[MESSAGE_INDEX];
-        revisions.add(new BzrFileRevision(project, hgFile, vcsRevisionNumber,
-            branchName, revisionDate, author, commitMessage));
-      } catch (NumberFormatException e) {
-        LOG.warn("Error parsing rev in line " + line);
-      } catch (ParseException e) {
-        LOG.warn("Error parsing date in line " + line);
       }
+    };
+
+    try {
+      BzrXmlResult result = ShellCommandService.getInstance(project)
+          .executeQueued(exec, BzrXmlResult.createBzrXmlResult(resultHandler), indicator);
+      if (result.getExitValue() > MAX_MISSING_EXIT_VALUE) {
+        LOG.debug("bzr missing failed for " + hgFile.getRepo() + ": " + result.getStdErrAsString());
+        return Collections.emptyList();
+      }
+    } catch (BzrExecException e) {
+      LOG.debug("could not list missing revisions of " + hgFile.getRepo(), e);
+      return Collections.emptyList();
     }
     return revisions;
   }
-
-
 }
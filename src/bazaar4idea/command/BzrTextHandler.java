@@ -21,6 +21,7 @@ import com.intellij.execution.process.OSProcessHandler;
 import com.intellij.execution.process.ProcessEvent;
 import com.intellij.execution.process.ProcessHandler;
 import com.intellij.execution.process.ProcessListener;
+import com.intellij.execution.process.ProcessOutputTypes;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Key;
 import com.intellij.openapi.vfs.VirtualFile;
@@ -82,6 +83,13 @@ public abstract class BzrTextHandler extends BzrHandler {
       }
 
       public void onTextAvailable(final ProcessEvent event, final Key outputType) {
+        if (outputType == ProcessOutputTypes.STDOUT) {
+          outputReceived(event.getText().length());
+        }
+        if (outputType == ProcessOutputTypes.STDOUT || outputType == ProcessOutputTypes.STDERR) {
+          byte[] bytes = event.getText().getBytes(getCharset());
+          recordOutput(bytes, bytes.length, outputType == ProcessOutputTypes.STDERR);
+        }
         BzrTextHandler.this.onTextAvailable(event.getText(), outputType);
       }
     });
@@ -0,0 +1,258 @@
+package bazaar4idea.command;
+
+import com.intellij.openapi.diagnostic.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * A long-lived {@code bzr idea-worker} process serving framed command requests for one branch root.
+ * See {@code resources/bazaar4idea/worker/__init__.py} for the protocol.
+ */
+class BzrWorker {
+
+  private static final Logger LOG = Logger.getInstance(BzrWorker.class.getName());
+
+  static final int PROTOCOL_VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long STARTUP_TIMEOUT = 30 * 1000;
+
+  /**
+   * How long a request may go without a frame from the worker, as when bzr waits for a password or a lock, before
+   * the worker is destroyed. The caller holds the lock of the branch and a scheduler slot all that time.
+   */
+  private static final long REQUEST_TIMEOUT = 60 * 1000;
+  private static final long REQUEST_CHECK_INTERVAL = 1000;
+  private static final Timer sm_watchdog = new Timer("bzr worker watchdog", true);
+
+  private final File m_root;
+  private final Process m_process;
+  private final OutputStream m_in;
+  private final InputStream m_out;
+
+  private int m_requestCount;
+  private volatile long m_lastUsed = System.currentTimeMillis();
+  private volatile boolean m_timedOut;
+
+  private BzrWorker(File root, Process process) {
+    m_root = root;
+    m_process = process;
+    m_in = new BufferedOutputStream(process.getOutputStream());
+    m_out = new BufferedInputStream(process.getInputStream());
+  }
+
+  /**
+   * Starts a worker and waits for its handshake.
+   *
+   * @throws IOException if the process could not be started or does not speak the expected protocol
+   */
+  static BzrWorker start(File root, ProcessBuilder builder) throws IOException {
+    final Process process = builder.start();
+    drainStderr(root, process);
+    BzrWorker worker = new BzrWorker(root, process);
+    TimerTask timeout = new TimerTask() {
+      @Override
+      public void run() {
+        process.destroy();
+      }
+    };
+    sm_watchdog.schedule(timeout, STARTUP_TIMEOUT);
+    try {
+      String handshake = worker.readLine();
+      if (!("ready " + PROTOCOL_VERSION).equals(handshake)) {
+        throw new IOException("unexpected worker handshake: " + handshake);
+      }
+    } catch (IOException e) {
+      worker.destroy();
+      throw e;
+    } finally {
+      timeout.cancel();
+    }
+    LOG.debug(String.format("Started bzr worker for \"%s\"", root));
+    return worker;
+  }
+
+  File getRoot() {
+    return m_root;
+  }
+
+  int getRequestCount() {
+    return m_requestCount;
+  }
+
+  Process getProcess() {
+    return m_process;
+  }
+
+  long getLastUsed() {
+    return m_lastUsed;
+  }
+
+  boolean isAlive() {
+    try {
+      m_process.exitValue();
+      return false;
+    } catch (IllegalThreadStateException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Runs one command in the worker, copying its output to the given streams as the frames arrive.
+   *
+   * @param workDir the directory to run the command in
+   * @param args    the command line without the executable
+   * @return the exit code of the command
+   * @throws IOException if the worker failed, or went {@link #REQUEST_TIMEOUT} without a frame and was destroyed
+   */
+  int execute(File workDir, List<String> args, OutputStream out, OutputStream err) throws IOException {
+    m_requestCount++;
+    m_lastUsed = System.currentTimeMillis();
+    TimerTask timeout = new TimerTask() {
+      @Override
+      public void run() {
+        if (System.currentTimeMillis() - m_lastUsed >= REQUEST_TIMEOUT) {
+          m_timedOut = true;
+          cancel();
+          destroy();
+        }
+      }
+    };
+    sm_watchdog.schedule(timeout, REQUEST_CHECK_INTERVAL, REQUEST_CHECK_INTERVAL);
+    try {
+      return executeFrames(workDir, args, out, err);
+    } catch (IOException e) {
+      if (m_timedOut) {
+        throw new IOException(String.format("no answer from the bzr worker for \"%s\" in %d ms", m_root,
+            REQUEST_TIMEOUT), e);
+      }
+      throw e;
+    } finally {
+      timeout.cancel();
+    }
+  }
+
+  private int executeFrames(File workDir, List<String> args, OutputStream out, OutputStream err) throws IOException {
+    writeAscii("run " + (args.size() + 1) + "\n");
+    writeField(workDir.getAbsolutePath());
+    for (String arg : args) {
+      writeField(arg);
+    }
+    m_in.flush();
+
+    byte[] buf = new byte[8192];
+    while (true) {
+      String header = readLine();
+      if (header.startsWith("x ")) {
+        m_lastUsed = System.currentTimeMillis();
+        return Integer.parseInt(header.substring(2));
+      }
+      OutputStream target;
+      if (header.startsWith("o ")) {
+        target = out;
+      } else if (header.startsWith("e ")) {
+        target = err;
+      } else {
+        throw new IOException("unexpected worker frame: " + header);
+      }
+      m_lastUsed = System.currentTimeMillis();
+      int remaining = Integer.parseInt(header.substring(2));
+      while (remaining > 0) {
+        int count = m_out.read(buf, 0, Math.min(buf.length, remaining));
+        if (count < 0) {
+          throw new EOFException("worker exited mid-frame");
+        }
+        target.write(buf, 0, count);
+        remaining -= count;
+      }
+    }
+  }
+
+  /**
+   * @return true if the worker answered a ping
+   */
+  boolean ping() {
+    try {
+      writeAscii("ping\n");
+      m_in.flush();
+      return "pong".equals(readLine());
+    } catch (IOException e) {
+      LOG.debug(e);
+      return false;
+    }
+  }
+
+  void shutdown() {
+    try {
+      writeAscii("quit\n");
+      m_in.flush();
+      m_in.close();
+    } catch (IOException e) {
+      LOG.debug(e);
+      destroy();
+    }
+  }
+
+  void destroy() {
+    m_process.destroy();
+  }
+
+  private void writeField(String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF8.name());
+    writeAscii(bytes.length + "\n");
+    m_in.write(bytes);
+  }
+
+  private void writeAscii(String value) throws IOException {
+    m_in.write(value.getBytes("US-ASCII"));
+  }
+
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+    while (true) {
+      int ch = m_out.read();
+      if (ch < 0) {
+        throw new EOFException("worker closed its output");
+      }
+      if (ch == '\n') {
+        break;
+      }
+      if (ch != '\r') {
+        line.write(ch);
+      }
+    }
+    return line.toString("US-ASCII");
+  }
+
+  private static void drainStderr(final File root, final Process process) {
+    Thread drainer = new Thread("bzr worker stderr " + root) {
+      @Override
+      public void run() {
+        byte[] buf = new byte[1024];
+        InputStream err = process.getErrorStream();
+        try {
+          int count;
+          while ((count = err.read(buf)) >= 0) {
+            if (LOG.isDebugEnabled()) {
+              LOG.debug(new String(buf, 0, count));
+            }
+          }
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+}
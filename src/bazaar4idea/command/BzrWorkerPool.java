@@ -0,0 +1,282 @@
+package bazaar4idea.command;
+
+import bazaar4idea.BzrGlobalSettings;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ShutDownTracker;
+import com.intellij.openapi.util.io.FileUtil;
+import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.emergent.bzr4j.core.cli.BzrExecException;
+import org.emergent.bzr4j.core.cli.BzrResultBridge;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a few long-lived {@link BzrWorker} processes per branch root and runs read-only {@link BzrIdeaExec}
+ * commands in them, which saves the interpreter startup and plugin loading of a fresh bzr for every command.
+ * Whenever a worker is not available (pooling disabled, all workers busy, the helper plugin failing to load) the
+ * caller falls back to forking bzr as before.
+ */
+public class BzrWorkerPool {
+
+  private static final Logger LOG = Logger.getInstance(BzrWorkerPool.class.getName());
+
+  private static final String WORKER_PLUGIN_NAME = "ideaworker";
+  private static final String WORKER_PLUGIN_RESOURCE = "/bazaar4idea/worker/__init__.py";
+
+  private static final long IDLE_PING_INTERVAL = 30 * 1000;
+  private static final long FAILURE_BACKOFF = 5 * 60 * 1000;
+
+  private static final BzrWorkerPool INSTANCE = new BzrWorkerPool();
+
+  private final Map<File, LinkedList<BzrWorker>> m_idleWorkers = new HashMap<File, LinkedList<BzrWorker>>();
+  private final Map<File, Integer> m_liveWorkers = new HashMap<File, Integer>();
+  private final Map<File, Long> m_failedRoots = new HashMap<File, Long>();
+  private final Map<File, Long> m_helperPluginFailures = new HashMap<File, Long>();
+  private File m_pluginDir;
+  private boolean m_shutdown;
+
+  private BzrWorkerPool() {
+    ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+      public void run() {
+        shutdown();
+      }
+    });
+  }
+
+  public static BzrWorkerPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return true if the command may be served by a pooled worker
+   */
+  public boolean isEligible(BzrIdeaExec exec) {
+    if (!BzrGlobalSettings.getInstance().isPooledExecEnabled() || !exec.isReadOnly()) {
+      return false;
+    }
+    File root = exec.getWorkingDir();
+    if (root == null) {
+      return false;
+    }
+    synchronized (this) {
+      Long failedAt = m_failedRoots.get(root);
+      if (failedAt != null && System.currentTimeMillis() - failedAt < FAILURE_BACKOFF) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the command in a pooled worker.
+   *
+   * @return the populated result, or null if no worker could serve the command and it should be forked instead
+   * @throws BzrExecException if the command failed after its output had already been passed to the result
+   */
+  @Nullable
+  public <T extends BzrAbstractResult> T exec(BzrIdeaExec exec, T result) throws BzrExecException {
+    File root = exec.getWorkingDir();
+    BzrExecSample sample = exec.getSample();
+    sample.spawnStarted();
+    BzrWorker worker = borrow(exec);
+    if (worker == null) {
+      return null;
+    }
+    sample.spawned();
+    List<String> args = exec.getCommandLine();
+    BzrResultSink out = new BzrResultSink(result, false);
+    BzrResultSink err = new BzrResultSink(result, true);
+    boolean healthy = false;
+    int exitValue;
+    try {
+      exec.attachProcess(worker.getProcess());
+      exitValue = worker.execute(root, args, sample.count(out), err);
+      out.finish();
+      err.finish();
+      healthy = true;
+    } catch (IOException e) {
+      out.abort();
+      err.abort();
+      if (exec.isCancelled()) {
+        throw new BzrExecException("cancelled: " + exec.getCmd(), e);
+      }
+      if (!out.isStarted() && !err.isStarted()) {
+        LOG.info(String.format("bzr worker for \"%s\" failed, forking instead", root), e);
+        markFailed(root);
+        return null;
+      }
+      throw new BzrExecException(e);
+    } catch (InterruptedException e) {
+      throw new BzrExecException(e);
+    } finally {
+      exec.attachProcess(null);
+      release(worker, healthy);
+    }
+    BzrResultBridge.setExitValue(result, exitValue);
+    List<String> validationArgs = new ArrayList<String>(args);
+    validationArgs.add(0, exec.getBzrExecutablePath());
+    result.validate(root, validationArgs, exec.isExitValueValidationEnabled(), exec.isStderrValidationEnabled());
+    return result;
+  }
+
+  /**
+   * Stops all idle workers. Busy workers are stopped when they are returned.
+   */
+  public void shutdown() {
+    List<BzrWorker> idle = new ArrayList<BzrWorker>();
+    synchronized (this) {
+      m_shutdown = true;
+      for (LinkedList<BzrWorker> workers : m_idleWorkers.values()) {
+        idle.addAll(workers);
+      }
+      m_idleWorkers.clear();
+    }
+    for (BzrWorker worker : idle) {
+      discard(worker, true);
+    }
+  }
+
+  @Nullable
+  private BzrWorker borrow(BzrIdeaExec exec) {
+    File root = exec.getWorkingDir();
+    int maxWorkers = BzrGlobalSettings.getInstance().getPooledWorkersPerRoot();
+    while (true) {
+      BzrWorker worker = null;
+      synchronized (this) {
+        if (m_shutdown) {
+          return null;
+        }
+        LinkedList<BzrWorker> idle = m_idleWorkers.get(root);
+        if (idle != null) {
+          worker = idle.poll();
+        }
+        if (worker == null) {
+          int live = getLiveCount(root);
+          if (live >= maxWorkers) {
+            return null;
+          }
+          m_liveWorkers.put(root, live + 1);
+        }
+      }
+      if (worker == null) {
+        try {
+          return BzrWorker.start(root, exec.createWorkerProcessBuilder(WORKER_PLUGIN_NAME, getPluginDir()));
+        } catch (IOException e) {
+          LOG.info(String.format("bzr worker unavailable for \"%s\", forking instead", root), e);
+          markFailed(root);
+          decrementLiveCount(root);
+          return null;
+        }
+      }
+      if (isHealthy(worker)) {
+        return worker;
+      }
+      discard(worker, false);
+    }
+  }
+
+  private void release(BzrWorker worker, boolean healthy) {
+    int maxRequests = BzrGlobalSettings.getInstance().getPooledWorkerMaxRequests();
+    if (healthy && worker.getRequestCount() < maxRequests) {
+      synchronized (this) {
+        if (!m_shutdown) {
+          LinkedList<BzrWorker> idle = m_idleWorkers.get(worker.getRoot());
+          if (idle == null) {
+            idle = new LinkedList<BzrWorker>();
+            m_idleWorkers.put(worker.getRoot(), idle);
+          }
+          // most recently used first, so that surplus workers age out and get recycled
+          idle.addFirst(worker);
+          return;
+        }
+      }
+    }
+    discard(worker, healthy);
+  }
+
+  private static boolean isHealthy(BzrWorker worker) {
+    if (!worker.isAlive()) {
+      return false;
+    }
+    return System.currentTimeMillis() - worker.getLastUsed() < IDLE_PING_INTERVAL || worker.ping();
+  }
+
+  private void discard(BzrWorker worker, boolean graceful) {
+    if (graceful) {
+      worker.shutdown();
+    } else {
+      worker.destroy();
+    }
+    decrementLiveCount(worker.getRoot());
+  }
+
+  private synchronized int getLiveCount(File root) {
+    Integer live = m_liveWorkers.get(root);
+    return live == null ? 0 : live;
+  }
+
+  private synchronized void decrementLiveCount(File root) {
+    int live = getLiveCount(root) - 1;
+    if (live > 0) {
+      m_liveWorkers.put(root, live);
+    } else {
+      m_liveWorkers.remove(root);
+    }
+  }
+
+  private synchronized void markFailed(File root) {
+    m_failedRoots.put(root, System.currentTimeMillis());
+  }
+
+  /**
+   * Records that a command of the bundled plugin failed in a forked bzr for the root, typically because the plugin
+   * does not load into the installed bzr, so that {@link #isHelperPluginAvailable} backs off for a while.
+   */
+  public synchronized void helperPluginFailed(File root) {
+    m_helperPluginFailures.put(root, System.currentTimeMillis());
+  }
+
+  /**
+   * @return false if a command of the bundled plugin failed for the root recently
+   */
+  public synchronized boolean isHelperPluginAvailable(File root) {
+    Long failedAt = m_helperPluginFailures.get(root);
+    return failedAt == null || System.currentTimeMillis() - failedAt >= FAILURE_BACKOFF;
+  }
+
+  /**
+   * Makes a forked bzr load the bundled plugin, for the commands it implements besides {@code idea-worker}.
+   */
+  void addHelperPlugin(Map<String, String> envVars) throws IOException {
+    BzrIdeaExec.addPlugin(envVars, WORKER_PLUGIN_NAME, getPluginDir());
+  }
+
+  /**
+   * Extracts the bundled bzr plugin implementing {@code idea-worker} into the IDE system directory.
+   */
+  private synchronized File getPluginDir() throws IOException {
+    if (m_pluginDir == null) {
+      InputStream in = BzrWorkerPool.class.getResourceAsStream(WORKER_PLUGIN_RESOURCE);
+      if (in == null) {
+        throw new IOException("missing resource " + WORKER_PLUGIN_RESOURCE);
+      }
+      File dir = new File(new File(PathManager.getSystemPath(), "bazaar4idea"), WORKER_PLUGIN_NAME);
+      try {
+        FileUtil.writeToFile(new File(dir, "__init__.py"), FileUtil.loadBytes(in));
+      } finally {
+        in.close();
+      }
+      m_pluginDir = dir;
+    }
+    return m_pluginDir;
+  }
+}
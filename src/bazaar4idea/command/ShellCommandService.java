@@ -14,10 +14,12 @@ package bazaar4idea.command;
 
 import bazaar4idea.i18n.BzrBundle;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsImplUtil;
 import org.emergent.bzr4j.core.cli.BzrAbstractResult;
+import org.emergent.bzr4j.core.cli.BzrExecException;
 import org.emergent.bzr4j.core.cli.BzrExecService;
 import org.emergent.bzr4j.core.cli.BzrStandardResult;
 import org.emergent.bzr4j.core.cli.BzrXmlResult;
@@ -28,8 +30,12 @@ import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -126,6 +132,69 @@ public final class ShellCommandService extends BzrExecService<BzrIdeaExec> {
     return defaultResult;
   }
 
+  /**
+   * Runs the command in the background. Failures are reported through the returned future rather than
+   * {@link #showError}. Cancelling the future or the indicator kills the bzr process.
+   *
+   * @throws RejectedExecutionException if too many commands are queued for the root
+   */
+  public <T extends BzrAbstractResult> BzrExecFuture<T> submit(final BzrIdeaExec shellCmd, final T result,
+                                                              @Nullable ProgressIndicator indicator) {
+    return submit(shellCmd, new Callable<T>() {
+      public T call() throws BzrExecException {
+        if (shellCmd.isBad()) {
+          throw new BzrExecException("badcmd: " + shellCmd.getCmd());
+        }
+        return executeUnsafe(shellCmd, result);
+      }
+    }, indicator);
+  }
+
+  /**
+   * Queues a task which runs the command with {@link #executeUnsafe} and then works on its result, on the thread
+   * of the command.
+   */
+  <T extends BzrAbstractResult> BzrExecFuture<T> submit(BzrIdeaExec shellCmd, Callable<T> task,
+                                                       @Nullable ProgressIndicator indicator) {
+    BzrExecFuture<T> future = new BzrExecFuture<T>(shellCmd, task, indicator);
+    try {
+      BzrExecQueue.getInstance().submit(future);
+    } catch (RejectedExecutionException e) {
+      future.cancel(false);
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Same as {@link #submit}, but waits for the result, for background work which needs it before going on.
+   *
+   * @throws BzrExecException if the command failed, was cancelled or could not be queued
+   */
+  public <T extends BzrAbstractResult> T executeQueued(BzrIdeaExec shellCmd, T result,
+                                                      @Nullable ProgressIndicator indicator) throws BzrExecException {
+    BzrExecFuture<T> future;
+    try {
+      future = submit(shellCmd, result, indicator);
+    } catch (RejectedExecutionException e) {
+      throw new BzrExecException(e);
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new BzrExecException(e);
+    } catch (CancellationException e) {
+      throw new BzrExecException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof BzrExecException) {
+        throw (BzrExecException)e.getCause();
+      }
+      throw new BzrExecException(e.getCause());
+    }
+  }
+
   protected void showError(Throwable e) {
     LOG.error("BzrExecException", e);
     if (!BzrGlobalSettings.getInstance().isModalErrorPopupEnabled())
@@ -12,21 +12,37 @@
 // limitations under the License.
 package bazaar4idea.provider;
 
+import com.intellij.openapi.Disposable;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.FileStatus;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.VcsKey;
+import com.intellij.openapi.vcs.VcsListener;
 import com.intellij.openapi.vcs.actions.VcsContextFactory;
 import com.intellij.openapi.vcs.changes.Change;
 import com.intellij.openapi.vcs.changes.ChangeListManagerGate;
 import com.intellij.openapi.vcs.changes.ChangeProvider;
 import com.intellij.openapi.vcs.changes.ChangelistBuilder;
 import com.intellij.openapi.vcs.changes.CurrentContentRevision;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.changes.VcsDirtyScope;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileCopyEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.util.messages.MessageBusConnection;
+import com.intellij.vcsUtil.VcsFileUtil;
 import com.intellij.vcsUtil.VcsUtil;
 import org.emergent.bzr4j.core.BazaarChangeType;
 import org.emergent.bzr4j.core.BazaarItemKind;
@@ -36,19 +52,44 @@ import org.emergent.bzr4j.core.cli.BzrXmlResult;
 import org.emergent.bzr4j.core.xmloutput.GenericChange;
 import org.emergent.bzr4j.core.xmloutput.XmlOutputHandler;
 import bazaar4idea.BzrContentRevision;
+import bazaar4idea.BzrGlobalSettings;
 import bazaar4idea.BzrRevisionNumber;
+import bazaar4idea.BzrRootsListener;
 import bazaar4idea.BzrUtil;
+import bazaar4idea.BzrVcs;
+import bazaar4idea.command.BzrCatCommand;
+import bazaar4idea.command.BzrExecPriority;
+import bazaar4idea.command.BzrWorkerPool;
 import bazaar4idea.command.BzrIdeaExec;
 import bazaar4idea.command.BzrMiscCommand;
 import bazaar4idea.command.ShellCommandService;
+import bazaar4idea.repo.BzrDirState;
+import bazaar4idea.repo.BzrRefreshCoordinator;
+import bazaar4idea.repo.BzrRootIndex;
+import bazaar4idea.util.BzrFlightRecorder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class BzrChangeProvider implements ChangeProvider {
+public class BzrChangeProvider implements ChangeProvider, BzrRootsListener {
 
   private static final Logger LOG = Logger.getInstance(BzrChangeProvider.class.getName());
 
@@ -58,12 +99,66 @@ public class BzrChangeProvider implements ChangeProvider {
 
   private static final Logger UNKNOWN = Logger.getInstance(BzrChangeProvider.class.getName() + ".UNKNOWN");
 
+  private static final String COMBINED_STATUS_ELEMENT = "idea-status";
+
+  private static final int MAX_PARALLEL_ROOTS = BzrRefreshCoordinator.MAX_CONCURRENT_FULL_REFRESHES;
+
+  private static final long CANCEL_POLL_INTERVAL = 100;
+
+  /**
+   * How many unknown files are looked up in the VFS at once.
+   */
+  private static final int UNKNOWN_BATCH_SIZE = 500;
+
+  /**
+   * Refreshes the roots of a project concurrently. How many bzr processes actually run at once is still bounded by
+   * {@link bazaar4idea.command.BzrExecScheduler}.
+   */
+  private static final ExecutorService sm_rootExecutor = createRootExecutor();
+
   private final Project m_project;
   private final VcsKey m_vcsKey;
 
+  /**
+   * The result of the last scan of each whole root, by path.
+   */
+  private final ConcurrentMap<String, BzrStatusSnapshot> m_snapshots =
+      new ConcurrentHashMap<String, BzrStatusSnapshot>();
+
+  /**
+   * The number of VFS events seen under each root scanned so far, outside of its .bzr directory.
+   */
+  private final ConcurrentMap<String, AtomicLong> m_eventCounters = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * Roots whose snapshot from the last session has been looked for.
+   */
+  private final Set<String> m_loadedSnapshots = Collections.synchronizedSet(new HashSet<String>());
+
+  /**
+   * The Bazaar roots of the project, built on the first refresh after the root mapping changed.
+   */
+  private volatile BzrRootIndex m_rootIndex;
+
   public BzrChangeProvider(Project project, VcsKey vcsKey) {
     this.m_project = project;
     this.m_vcsKey = vcsKey;
+    MessageBusConnection connection = project.getMessageBus().connect(project);
+    connection.subscribe(VirtualFileManager.VFS_CHANGES, new MyVfsListener());
+    // editors show line status markers, see isModifiedDocumentTrackingRequired()
+    connection.subscribe(FileEditorManagerListener.FILE_EDITOR_MANAGER, new BzrEditorPrefetcher(project));
+    connection.subscribe(ProjectLevelVcsManager.VCS_CONFIGURATION_CHANGED, new VcsListener() {
+      public void directoryMappingChanged() {
+        gitRootsChanged();
+      }
+    });
+    Disposer.register(project, new Disposable() {
+      public void dispose() {
+        for (Map.Entry<String, BzrStatusSnapshot> entry : m_snapshots.entrySet()) {
+          entry.getValue().save(entry.getKey());
+        }
+      }
+    });
   }
 
   public void getChanges(
@@ -74,49 +169,198 @@ public class BzrChangeProvider implements ChangeProvider {
 
     try {
       VcsContextFactory vcsCtxFac = VcsContextFactory.SERVICE.getInstance();
+      BzrRootIndex rootIndex = getRootIndex();
 
-      Map<File,BzrRevisionNumber> rootRevnos = new LinkedHashMap<File,BzrRevisionNumber>();
+      Map<File,BzrRevisionNumber> rootRevnos =
+          Collections.synchronizedMap(new LinkedHashMap<File,BzrRevisionNumber>());
 
       Map<VirtualFile,FilePath> rootsMap = new HashMap<VirtualFile, FilePath>();
+      Map<VirtualFile,List<FilePath>> dirtyPaths = new HashMap<VirtualFile, List<FilePath>>();
 
       for (FilePath filePath : dirtyScope.getRecursivelyDirtyDirectories()) {
-        mergePaths(vcsCtxFac, rootsMap, filePath);
+        mergePaths(vcsCtxFac, rootIndex, rootsMap, dirtyPaths, filePath);
       }
+      Set<VirtualFile> recursivelyDirtyRoots = new HashSet<VirtualFile>(rootsMap.keySet());
 
       for (FilePath filePath : dirtyScope.getDirtyFiles()) {
-        mergePaths(vcsCtxFac, rootsMap, filePath);
+        mergePaths(vcsCtxFac, rootIndex, rootsMap, dirtyPaths, filePath);
       }
 
+      List<MyRootTask> tasks = new ArrayList<MyRootTask>(rootsMap.size());
       for (Map.Entry<VirtualFile,FilePath> rootEntry : rootsMap.entrySet()) {
         VirtualFile virtualRoot = rootEntry.getKey();
         FilePath rootPath = rootEntry.getValue();
 
-        HashMap<VirtualFile, FilePath> subRoots = new HashMap<VirtualFile, FilePath>();
-        for (Map.Entry<VirtualFile, FilePath> subEntry : rootsMap.entrySet()) {
-          VirtualFile virtualSubRoot = subEntry.getKey();
-          FilePath subPath = subEntry.getValue();
-          if (!subPath.isUnder(rootPath, true)) {
-            continue;
-          }
-          subRoots.put(virtualSubRoot, subPath);
+        Set<File> subRoots = rootIndex.getNestedBranches(virtualRoot);
+
+        List<FilePath> rootDirtyPaths = dirtyPaths.get(virtualRoot);
+        if (!recursivelyDirtyRoots.contains(virtualRoot)
+            && isUnchangedInDirState(rootPath, rootDirtyPaths, subRoots)) {
+          CHANGES.debug("no processing (unchanged in dirstate): " + String.valueOf(rootPath));
+          continue;
         }
 
-        process(builder, virtualRoot, rootPath, rootRevnos, subRoots);
+        if (!isPreciseStatusPossible(rootPath, rootDirtyPaths)) {
+          rootDirtyPaths = null;
+        }
+
+        tasks.add(new MyRootTask(builder, virtualRoot, rootPath, rootDirtyPaths, rootRevnos, subRoots));
       }
+      runAll(tasks, progress);
     } catch (BzrExecException e) {
       LOG.debug(e);
       throw new VcsException(e);
     }
   }
 
-  private void mergePaths(VcsContextFactory vcsCtxFac, Map<VirtualFile, FilePath> rootsMap, FilePath filePath)
-      throws VcsException {
+  /**
+   * Runs the tasks on {@link #sm_rootExecutor} and waits for all of them, cancelling the rest as soon as one fails
+   * or the indicator is cancelled. The commands of each task still take the lock of their branch, so the roots
+   * only overlap where bzr allows it.
+   */
+  private static void runAll(List<MyRootTask> tasks, @Nullable ProgressIndicator progress) throws BzrExecException {
+    if (tasks.size() <= 1) {
+      for (MyRootTask task : tasks) {
+        task.call();
+      }
+      return;
+    }
+    List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+    boolean completed = false;
+    try {
+      for (MyRootTask task : tasks) {
+        futures.add(sm_rootExecutor.submit(task));
+      }
+      for (Future<Void> future : futures) {
+        while (true) {
+          if (progress != null) {
+            progress.checkCanceled();
+          }
+          try {
+            future.get(CANCEL_POLL_INTERVAL, TimeUnit.MILLISECONDS);
+            break;
+          } catch (TimeoutException ignored) {
+          }
+        }
+      }
+      completed = true;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BzrExecException) {
+        throw (BzrExecException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error)cause;
+      }
+      throw new BzrExecException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BzrExecException(e);
+    } finally {
+      if (!completed) {
+        // interrupting a task kills the bzr process it is waiting for
+        for (Future<Void> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+  }
 
-    VirtualFile vcsVirtualRoot = VcsUtil.getVcsRootFor(m_project, filePath);
+  /**
+   * @param dirtyFiles the dirty files of the root, as grouped by the root index
+   * @param nestedBranches the branches of the roots nested under the root
+   * @return true if every dirty file under the root is a versioned file that is unchanged from the basis revision
+   *         according to the dirstate of its working tree, or failing that to its content, so that there is
+   *         nothing for bzr to report
+   */
+  private static boolean isUnchangedInDirState(FilePath rootPath, @Nullable List<FilePath> dirtyFiles,
+                                               Set<File> nestedBranches) {
+    if (dirtyFiles == null || !BzrGlobalSettings.getInstance().isDirStateCheckEnabled()) {
+      return false;
+    }
+    BazaarRoot rootBranch = BazaarRoot.findBranchLocation(rootPath.getIOFile());
+    if (rootBranch == null) {
+      return false;
+    }
+    boolean found = false;
+    Map<BzrDirState, List<String>> toHash = new HashMap<BzrDirState, List<String>>();
+    for (FilePath filePath : dirtyFiles) {
+      File file = filePath.getIOFile();
+      File branch = filePath.isDirectory() ? null : getBranchOf(file, rootBranch.getFile(), nestedBranches);
+      BzrDirState dirState = branch != null ? BzrDirState.getInstance(branch) : null;
+      if (dirState == null) {
+        return false;
+      }
+      String path = BzrUtil.relativePath(branch, file);
+      if (!dirState.isUnchanged(path)) {
+        if (!dirState.isHashCandidate(path)) {
+          return false;
+        }
+        List<String> paths = toHash.get(dirState);
+        if (paths == null) {
+          paths = new ArrayList<String>();
+          toHash.put(dirState, paths);
+        }
+        paths.add(path);
+      }
+      found = true;
+    }
+    for (Map.Entry<BzrDirState, List<String>> entry : toHash.entrySet()) {
+      if (!entry.getKey().isContentUnchanged(entry.getValue())) {
+        return false;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * @return the innermost of the branches the file is under, found by walking up its path without touching the
+   *         file system, or null if it is under neither
+   */
+  @Nullable
+  private static File getBranchOf(File file, File rootBranch, Set<File> nestedBranches) {
+    for (File dir = file.getParentFile(); dir != null; dir = dir.getParentFile()) {
+      if (nestedBranches.contains(dir) || dir.equals(rootBranch)) {
+        return dir;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if the dirty paths of a root are few enough to be passed to bzr, which then only looks at them
+   *         rather than walking the whole tree
+   */
+  private static boolean isPreciseStatusPossible(FilePath rootPath, @Nullable List<FilePath> dirtyPaths) {
+    if (dirtyPaths == null || dirtyPaths.size() > BzrGlobalSettings.getInstance().getPreciseStatusMaxPaths()) {
+      return false;
+    }
+    for (FilePath path : dirtyPaths) {
+      if (path.equals(rootPath)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void mergePaths(VcsContextFactory vcsCtxFac, BzrRootIndex rootIndex,
+                                 Map<VirtualFile, FilePath> rootsMap, Map<VirtualFile, List<FilePath>> dirtyPaths,
+                                 FilePath filePath) throws VcsException {
+
+    VirtualFile vcsVirtualRoot = rootIndex.getRootFor(filePath);
     if (vcsVirtualRoot == null) {
       CHANGES.debug("no processing (no virtual root): " + String.valueOf(filePath));
       return;
     }
+    List<FilePath> rootDirtyPaths = dirtyPaths.get(vcsVirtualRoot);
+    if (rootDirtyPaths == null) {
+      rootDirtyPaths = new ArrayList<FilePath>();
+      dirtyPaths.put(vcsVirtualRoot, rootDirtyPaths);
+    }
+    rootDirtyPaths.add(filePath);
     if (rootsMap.containsKey(vcsVirtualRoot)) {
       CHANGES.debug("no processing (duplicate root): " + String.valueOf(filePath));
       return;
@@ -130,6 +374,44 @@ public class BzrChangeProvider implements ChangeProvider {
   }
 
 
+  /**
+   * Drops the root index, to be rebuilt by the next refresh.
+   */
+  public void gitRootsChanged() {
+    m_rootIndex = null;
+    countEventsOfRoots();
+  }
+
+  /**
+   * Starts counting the VFS events under every root as soon as it is mapped, so that the events of the refresh of
+   * the VFS at startup, which may run before the first refresh of the root, make the snapshot saved for it out of
+   * date.
+   */
+  private void countEventsOfRoots() {
+    BzrVcs vcs = BzrVcs.getInstance(m_project);
+    if (vcs == null) {
+      return;
+    }
+    for (VirtualFile root : ProjectLevelVcsManager.getInstance(m_project).getRootsUnderVcs(vcs)) {
+      getEventCounter(root.getPath());
+    }
+  }
+
+  private BzrRootIndex getRootIndex() {
+    BzrRootIndex retval = m_rootIndex;
+    if (retval == null) {
+      BzrVcs vcs = BzrVcs.getInstance(m_project);
+      VirtualFile[] roots = vcs == null ? VirtualFile.EMPTY_ARRAY
+          : ProjectLevelVcsManager.getInstance(m_project).getRootsUnderVcs(vcs);
+      for (VirtualFile root : roots) {
+        BzrRefreshCoordinator.watchStateFiles(VfsUtil.virtualToIoFile(root));
+      }
+      retval = BzrRootIndex.build(roots);
+      m_rootIndex = retval;
+    }
+    return retval;
+  }
+
   public boolean isModifiedDocumentTrackingRequired() {
     return true;
   }
@@ -141,7 +423,8 @@ public class BzrChangeProvider implements ChangeProvider {
       ChangelistBuilder builder,
       VirtualFile vcsVirtualRoot,
       FilePath filePath,
-      Map<File, BzrRevisionNumber> processedRoots, HashMap<VirtualFile, FilePath> subRoots) throws BzrExecException {
+      @Nullable List<FilePath> dirtyPaths,
+      Map<File, BzrRevisionNumber> processedRoots, Set<File> ioSubRoots) throws BzrExecException {
 
     if (filePath.isNonLocal()) {
       CHANGES.debug("no processing (nonlocal path): " + String.valueOf(filePath));
@@ -158,21 +441,147 @@ public class BzrChangeProvider implements ChangeProvider {
 
     final File ioRoot = bzrRoot.getFile();
 
-    Set<File> ioSubRoots = new HashSet<File>();
-    for (FilePath path : subRoots.values()) {
-      BazaarRoot bzrSubRoot = BazaarRoot.findBranchLocation(path.getIOFile());
-      if (bzrSubRoot == null) {
-        continue;
+    String relpath = target.equals(ioRoot) ? null : BzrUtil.relativePath(ioRoot,target);
+
+    CHANGES.debug("is processing: " + String.valueOf(filePath));
+
+    String snapshotKey = filePath.getPath();
+    String fingerprint = BzrRefreshCoordinator.getFingerprint(ioRoot);
+    long eventCount = getEventCounter(snapshotKey).get();
+    if (dirtyPaths == null) {
+      BzrStatusSnapshot previous = m_snapshots.get(snapshotKey);
+      boolean provisional = false;
+      if (previous == null) {
+        previous = loadSnapshot(snapshotKey, vcsVirtualRoot, fingerprint, eventCount, ioSubRoots);
+        provisional = previous != null;
+      }
+      if (previous != null && previous.matches(fingerprint, eventCount, ioSubRoots)
+          && previous.replay(builder, m_vcsKey)) {
+        processedRoots.put(ioRoot, previous.getRevision());
+        if (provisional) {
+          // changes made while the project was closed may not show in the fingerprint, so it is shown only once,
+          // until the scan which follows straight away
+          CHANGES.debug("provisional status, scanning again: " + String.valueOf(filePath));
+          VcsDirtyScopeManager.getInstance(m_project).dirDirtyRecursively(vcsVirtualRoot);
+        } else {
+          CHANGES.debug("no processing (unchanged since the last scan): " + String.valueOf(filePath));
+        }
+        return;
+      }
+    }
+
+    BzrRefreshCoordinator coordinator = BzrRefreshCoordinator.getInstance();
+    BzrRefreshCoordinator.FullRefresh fullRefresh = null;
+    if (dirtyPaths == null) {
+      try {
+        fullRefresh = coordinator.fullRefreshStarted(target);
+      } catch (InterruptedException e) {
+        throw new BzrExecException(e);
+      }
+    }
+    boolean completed = false;
+    try {
+      BzrStatusSnapshot snapshot = new BzrStatusSnapshot(fingerprint, eventCount, ioSubRoots);
+      BzrRevisionNumber revno = scan(new MyReporter(builder, snapshot), vcsVirtualRoot, bzrRoot, relpath,
+          dirtyPaths, processedRoots, ioSubRoots);
+      if (dirtyPaths == null) {
+        snapshot.setRevision(revno);
+        m_snapshots.put(snapshotKey, snapshot);
       }
-      File ioSubRoot = bzrSubRoot.getFile();
-      if (!ioRoot.equals(ioSubRoot)) {
-        ioSubRoots.add(ioSubRoot);
+      completed = true;
+    } finally {
+      if (fullRefresh != null) {
+        coordinator.fullRefreshFinished(fullRefresh, completed);
       }
     }
+  }
 
-    final String relpath = target.equals(ioRoot) ? null : BzrUtil.relativePath(ioRoot,target);
+  /**
+   * Looks for the snapshot saved for the root when the project was last closed, the first time the root is scanned.
+   *
+   * @return the snapshot, made current as of the given event count, if the bzr files of the tree have not changed
+   *         since it was taken
+   */
+  @Nullable
+  private BzrStatusSnapshot loadSnapshot(String snapshotKey, VirtualFile vcsVirtualRoot, String fingerprint,
+                                         long eventCount, Set<File> ioSubRoots) {
+    if (!m_loadedSnapshots.add(snapshotKey)) {
+      return null;
+    }
+    BzrStatusSnapshot retval = BzrStatusSnapshot.load(snapshotKey, m_project, vcsVirtualRoot);
+    if (retval == null || !retval.matches(fingerprint, ioSubRoots)) {
+      CHANGES.debug("no usable snapshot from the last session: " + snapshotKey);
+      return null;
+    }
+    CHANGES.debug("provisional status from the last session: " + snapshotKey);
+    retval.setEventCount(eventCount);
+    return retval;
+  }
 
-    CHANGES.debug("is processing: " + String.valueOf(filePath));
+  /**
+   * Runs bzr over the root, or only over the dirty paths if they are given, and reports what it finds.
+   *
+   * @return the revno of the branch
+   */
+  @Nullable
+  private BzrRevisionNumber scan(
+      MyReporter reporter,
+      VirtualFile vcsVirtualRoot,
+      BazaarRoot bzrRoot,
+      @Nullable String relpath,
+      @Nullable List<FilePath> dirtyPaths,
+      Map<File, BzrRevisionNumber> processedRoots,
+      Set<File> ioSubRoots) throws BzrExecException {
+
+    final File ioRoot = bzrRoot.getFile();
+    final ShellCommandService service = ShellCommandService.getInstance(m_project);
+
+    if (isCombinedStatusAvailable(ioRoot)) {
+      List<List<String>> pathChunks = null;
+      VirtualFile ioVirtualRoot = dirtyPaths != null ? VcsUtil.getVirtualFile(ioRoot) : null;
+      if (ioVirtualRoot != null) {
+        // only the dirty files, in as many invocations as the command line length limit requires
+        pathChunks = VcsFileUtil.chunkPaths(ioVirtualRoot, dirtyPaths);
+        CHANGES.debug(String.format("%d dirty paths in %d chunks", dirtyPaths.size(), pathChunks.size()));
+      }
+      if (pathChunks == null || pathChunks.isEmpty()) {
+        pathChunks = Collections.singletonList(
+            relpath != null ? Collections.singletonList(relpath) : Collections.<String>emptyList());
+      }
+
+      boolean started = false;
+      try {
+        BzrRevisionNumber combinedRev = null;
+        List<File> baseFiles = new ArrayList<File>();
+        for (List<String> paths : pathChunks) {
+          MyCombinedHandler combinedHandler = new MyCombinedHandler(vcsVirtualRoot, reporter, ioRoot, ioSubRoots);
+
+          BzrIdeaExec combinedExec = new BzrIdeaExec(bzrRoot, "idea-status");
+          combinedExec.setHelperPluginRequired(true);
+          combinedExec.setPriority(BzrExecPriority.BACKGROUND);
+          combinedExec.setStderrValidationEnabled(false);
+          combinedExec.addArguments(paths);
+          try {
+            service.executeUnsafe(combinedExec, BzrXmlResult.createBzrXmlResult(combinedHandler));
+          } finally {
+            started |= combinedHandler.isStarted();
+          }
+          combinedHandler.checkError();
+          combinedHandler.flushUnknown();
+          combinedRev = combinedHandler.getRevision();
+          baseFiles.addAll(combinedHandler.getBaseFiles());
+        }
+        processedRoots.put(ioRoot, combinedRev);
+        prefetchBaseContent(bzrRoot, combinedRev, baseFiles);
+        return combinedRev;
+      } catch (BzrExecException e) {
+        if (started) {
+          throw e;
+        }
+        LOG.info(String.format("bzr idea-status failed for \"%s\", using xmlls and xmlstatus", ioRoot), e);
+        BzrWorkerPool.getInstance().helperPluginFailed(ioRoot);
+      }
+    }
 
     BzrRevisionNumber revno = processedRoots.get(ioRoot);
     if (revno == null) {
@@ -180,98 +589,315 @@ public class BzrChangeProvider implements ChangeProvider {
       processedRoots.put(ioRoot,revno);
     }
 
-    final ShellCommandService service = ShellCommandService.getInstance(m_project);
-
-    MyIgnoredHandler ignoredHandler = new MyIgnoredHandler(builder, ioRoot, ioSubRoots);
+    MyIgnoredHandler ignoredHandler = new MyIgnoredHandler(reporter, ioRoot, ioSubRoots);
 
     BzrIdeaExec ignoredExec = new BzrIdeaExec(bzrRoot, "xmlls");
+    ignoredExec.setPriority(BzrExecPriority.BACKGROUND);
     ignoredExec.addArguments("--ignored");
     if (relpath != null)
       ignoredExec.addArguments(relpath);
     service.executeUnsafe(ignoredExec, BzrXmlResult.createBzrXmlResult(ignoredHandler));
-    ignoredHandler.processResults();
+    ignoredHandler.checkError();
 
-    MyStatusHandler statusHandler = new MyStatusHandler(vcsVirtualRoot, builder, ioRoot, revno, ioSubRoots);
+    MyStatusHandler statusHandler = new MyStatusHandler(vcsVirtualRoot, reporter, ioRoot, revno, ioSubRoots);
 
     BzrIdeaExec statusExec = new BzrIdeaExec(bzrRoot, "xmlstatus");
+    statusExec.setPriority(BzrExecPriority.BACKGROUND);
     statusExec.setStderrValidationEnabled(false);
     if (relpath != null)
       statusExec.addArguments(relpath);
     service.executeUnsafe(statusExec, BzrXmlResult.createBzrXmlResult(statusHandler));
+    statusHandler.checkError();
+    statusHandler.flushUnknown();
+    prefetchBaseContent(bzrRoot, revno, statusHandler.getBaseFiles());
+    return revno;
+  }
 
-    statusHandler.processResults();
+  /**
+   * Queues the fetching of the base content of the changed files of a root into
+   * {@link bazaar4idea.repo.BzrContentCache}, so that the diffs of a change list do not each wait for a
+   * {@code bzr cat} of their own. It outlives the refresh, so it is not tied to the indicator of the refresh.
+   */
+  private void prefetchBaseContent(BazaarRoot bzrRoot, @Nullable BzrRevisionNumber revno, List<File> files) {
+    if (revno == null || files.isEmpty() || !BzrGlobalSettings.getInstance().isBasePrefetchEnabled()) {
+      return;
+    }
+    new BzrCatCommand(m_project).prefetch(bzrRoot, revno, files, null);
   }
 
-  private class MyIgnoredHandler extends XmlOutputHandler {
+  private AtomicLong getEventCounter(String rootPath) {
+    AtomicLong retval = m_eventCounters.get(rootPath);
+    if (retval == null) {
+      retval = new AtomicLong();
+      AtomicLong existing = m_eventCounters.putIfAbsent(rootPath, retval);
+      if (existing != null) {
+        retval = existing;
+      }
+    }
+    return retval;
+  }
 
-    private ChangelistBuilder m_builder;
-    private File m_bzrRoot;
-    private Set<File> m_bzrSubRoots;
-    private final Collection<String> m_ignoredList = new LinkedList<String>();
+  private static ExecutorService createRootExecutor() {
+    ThreadPoolExecutor retval = new ThreadPoolExecutor(MAX_PARALLEL_ROOTS, MAX_PARALLEL_ROOTS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger m_count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread retval = new Thread(r, "bzr change provider " + m_count.incrementAndGet());
+            retval.setDaemon(true);
+            return retval;
+          }
+        });
+    retval.allowCoreThreadTimeOut(true);
+    return retval;
+  }
+
+  private static boolean isCombinedStatusAvailable(File ioRoot) {
+    if (!BzrGlobalSettings.getInstance().isCombinedStatusEnabled()) {
+      return false;
+    }
+    return BzrWorkerPool.getInstance().isHelperPluginAvailable(ioRoot);
+  }
+
+  private static void processIgnored(MyReporter reporter, File bzrRoot, Set<File> bzrSubRoots, String path) {
+    File ignored = new File(bzrRoot, path);
+    if (bzrSubRoots.contains(ignored)) {
+      return;
+    }
+    IGNORED.debug(String.format("%10s \"%s\"", "ignored", ignored));
+    reporter.processIgnoredFile(VcsUtil.getVirtualFile(ignored));
+  }
 
-    public MyIgnoredHandler(ChangelistBuilder builder, File bzrRoot, Set<File> ioSubRoots) {
+  /**
+   * Passes what a scan finds on to the builder, which is shared by the roots processed in parallel and is not thread
+   * safe, and records it in the snapshot of the scan.
+   */
+  private class MyReporter {
+
+    private final ChangelistBuilder m_builder;
+    private final BzrStatusSnapshot m_snapshot;
+
+    public MyReporter(ChangelistBuilder builder, BzrStatusSnapshot snapshot) {
       m_builder = builder;
-      m_bzrRoot = bzrRoot;
-      m_bzrSubRoots = ioSubRoots;
+      m_snapshot = snapshot;
     }
 
-    public void processResults() {
-      for (String path : m_ignoredList) {
-        processIgnore(path);
+    public void processChange(Change change) {
+      synchronized (m_builder) {
+        m_builder.processChange(change, m_vcsKey);
       }
+      m_snapshot.addChange(change);
     }
 
+    public void processUnversionedFile(VirtualFile file) {
+      synchronized (m_builder) {
+        m_builder.processUnversionedFile(file);
+      }
+      m_snapshot.addUnversionedFile(file);
+    }
+
+    public void processIgnoredFile(@Nullable VirtualFile file) {
+      synchronized (m_builder) {
+        m_builder.processIgnoredFile(file);
+      }
+      m_snapshot.addIgnoredFile(file);
+    }
+  }
+
+  /**
+   * Counts the VFS events under the roots scanned so far, which make their snapshots out of date, and asks
+   * {@link BzrRefreshCoordinator} for a full refresh of a root when bzr rewrites one of the files describing the state
+   * of its tree.
+   */
+  private class MyVfsListener implements BulkFileListener {
+
     @Override
-    public void handleItem(String id, String kind, String path, String statusKind) {
-      m_ignoredList.add(path);
+    public void before(@NotNull List<? extends VFileEvent> events) {
     }
 
     @Override
-    public void fatalError(SAXParseException e) throws SAXException {
-      LOG.warn("sax error", e);
+    public void after(@NotNull List<? extends VFileEvent> events) {
+      for (VFileEvent event : events) {
+        countEvent(event.getPath());
+        requestFullRefresh(event.getPath());
+        if (event instanceof VFileMoveEvent) {
+          countEvent(((VFileMoveEvent)event).getNewParent().getPath());
+        } else if (event instanceof VFileCopyEvent) {
+          countEvent(((VFileCopyEvent)event).getNewParent().getPath());
+        }
+      }
     }
 
-    private void processIgnore(String path) {
-      File ignored = new File(m_bzrRoot, path);
-      if (m_bzrSubRoots.contains(ignored)) {
+    private void requestFullRefresh(@Nullable String path) {
+      String stateRoot = path != null ? BzrRefreshCoordinator.getStateFileRoot(path) : null;
+      // the index of the last refresh, as it is not to be built while events are dispatched
+      BzrRootIndex rootIndex = m_rootIndex;
+      if (stateRoot == null || rootIndex == null) {
         return;
       }
-      IGNORED.debug(String.format("%10s \"%s\"", "ignored", ignored));
-      m_builder.processIgnoredFile(VcsUtil.getVirtualFile(ignored));
+      VirtualFile vcsRoot = rootIndex.getRootFor(VcsUtil.getFilePath(stateRoot));
+      if (vcsRoot != null && vcsRoot.getPath().equals(stateRoot)) {
+        BzrRefreshCoordinator.getInstance().requestFullRefresh(m_project, vcsRoot);
+      }
+    }
+
+    /**
+     * Counts the event for every root the path is under, looking up the path and each of its ancestors, as the
+     * counters of all roots exist once {@link #countEventsOfRoots} has run.
+     */
+    private void countEvent(@Nullable String path) {
+      if (path == null) {
+        return;
+      }
+      String dir = path;
+      while (true) {
+        AtomicLong counter = m_eventCounters.get(dir);
+        if (counter != null && !path.startsWith(dir + "/.bzr/")) {
+          counter.incrementAndGet();
+        }
+        int slash = dir.lastIndexOf('/');
+        if (slash < 0 || dir.length() == 1) {
+          return;
+        }
+        dir = slash > 0 ? dir.substring(0, slash) : "/";
+      }
     }
   }
 
-  private class MyStatusHandler extends XmlOutputHandler {
+  private class MyRootTask implements Callable<Void> {
+
+    private final ChangelistBuilder m_builder;
+    private final VirtualFile m_vcsRoot;
+    private final FilePath m_rootPath;
+    private final List<FilePath> m_dirtyPaths;
+    private final Map<File, BzrRevisionNumber> m_processedRoots;
+    private final Set<File> m_subRoots;
 
-    private ChangelistBuilder m_builder;
-    private BzrRevisionNumber m_bzrRev;
-    private VirtualFile m_vcsRoot;
+    public MyRootTask(ChangelistBuilder builder, VirtualFile vcsRoot, FilePath rootPath,
+                      @Nullable List<FilePath> dirtyPaths, Map<File, BzrRevisionNumber> processedRoots,
+                      Set<File> subRoots) {
+      m_builder = builder;
+      m_vcsRoot = vcsRoot;
+      m_rootPath = rootPath;
+      m_dirtyPaths = dirtyPaths;
+      m_processedRoots = processedRoots;
+      m_subRoots = subRoots;
+    }
+
+    public Void call() throws BzrExecException {
+      BzrFlightRecorder.Event event = BzrFlightRecorder.begin(BzrFlightRecorder.REFRESH, "getChanges",
+          m_rootPath.getPath(), m_subRoots.size());
+      try {
+        process(m_builder, m_vcsRoot, m_rootPath, m_dirtyPaths, m_processedRoots, m_subRoots);
+      } finally {
+        event.commit(0);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Base for handlers which report each entry to the builder as soon as it is parsed. The parser runs on the
+   * output relay thread of the command, which swallows exceptions, so the first one is kept and rethrown on the
+   * calling thread once the command has finished.
+   */
+  private abstract static class MyStreamingHandler extends XmlOutputHandler {
+
+    private volatile RuntimeException m_error;
+
+    protected void handleError(RuntimeException e) {
+      if (m_error == null) {
+        m_error = e;
+      }
+    }
+
+    protected boolean isFailed() {
+      return m_error != null;
+    }
+
+    public void checkError() {
+      RuntimeException error = m_error;
+      if (error != null) {
+        throw error;
+      }
+    }
+  }
+
+  private class MyIgnoredHandler extends MyStreamingHandler {
+
+    private MyReporter m_reporter;
     private File m_bzrRoot;
-    private final Collection<GenericChange> m_changes = new LinkedList<GenericChange>();
     private Set<File> m_bzrSubRoots;
 
-    public MyStatusHandler(VirtualFile vcsRoot, ChangelistBuilder builder, File bzrRoot, BzrRevisionNumber bzrRev, Set<File> ioSubRoots) {
-      m_vcsRoot = vcsRoot;
-      m_builder = builder;
+    public MyIgnoredHandler(MyReporter reporter, File bzrRoot, Set<File> ioSubRoots) {
+      m_reporter = reporter;
       m_bzrRoot = bzrRoot;
-      m_bzrRev = bzrRev;
       m_bzrSubRoots = ioSubRoots;
     }
 
-    public void processResults() {
-      for (GenericChange change : m_changes) {
-        processGenericChange(change.m_changeType, change.m_kind, change.m_path, change.m_attributes);
+    @Override
+    public void handleItem(String id, String kind, String path, String statusKind) {
+      if (isFailed()) {
+        return;
+      }
+      try {
+        processIgnored(m_reporter, m_bzrRoot, m_bzrSubRoots, path);
+      } catch (RuntimeException e) {
+        handleError(e);
       }
     }
-    
+
+    @Override
+    public void fatalError(SAXParseException e) throws SAXException {
+      LOG.warn("sax error", e);
+    }
+  }
+
+  private class MyStatusHandler extends MyStreamingHandler {
+
+    protected MyReporter m_reporter;
+    protected BzrRevisionNumber m_bzrRev;
+    protected VirtualFile m_vcsRoot;
+    protected File m_bzrRoot;
+    protected Set<File> m_bzrSubRoots;
+    private final Set<String> m_subRootPaths = new HashSet<String>();
+    private final List<File> m_unknownFiles = new ArrayList<File>();
+    private final List<File> m_baseFiles = new ArrayList<File>();
+    private int m_unknownBudget = BzrGlobalSettings.getInstance().getMaxUnknownDescendants();
+
+    public MyStatusHandler(VirtualFile vcsRoot, MyReporter reporter, File bzrRoot, BzrRevisionNumber bzrRev, Set<File> ioSubRoots) {
+      m_vcsRoot = vcsRoot;
+      m_reporter = reporter;
+      m_bzrRoot = bzrRoot;
+      m_bzrRev = bzrRev;
+      m_bzrSubRoots = ioSubRoots;
+      for (File subRoot : ioSubRoots) {
+        m_subRootPaths.add(FileUtil.toSystemIndependentName(subRoot.getPath()));
+      }
+    }
+
     @Override
     public File getWorkDir() {
       return m_bzrRoot;
     }
+
+    /**
+     * @return the files whose base content the changes reported so far show, by their path in the base revision
+     */
+    public List<File> getBaseFiles() {
+      return m_baseFiles;
+    }
         
     @Override
     public void handleGenericChange(GenericChange change) {
-      m_changes.add(change);
+      if (isFailed()) {
+        return;
+      }
+      try {
+        processGenericChange(change.m_changeType, change.m_kind, change.m_path, change.m_attributes);
+      } catch (RuntimeException e) {
+        handleError(e);
+      }
     }
 
     @Override
@@ -309,55 +935,109 @@ public class BzrChangeProvider implements ChangeProvider {
       FilePath fpath = VcsUtil.getFilePath(new File(getWorkDir(),path));
       Change change = new Change(null, CurrentContentRevision.create(fpath), FileStatus.ADDED);
       CHANGES.debug(String.format("%10s \"%s\"", "added", fpath));
-      m_builder.processChange(change, m_vcsKey);
+      m_reporter.processChange(change);
     }
 
     private void processModified(BazaarItemKind kind, String path) {
       FilePath fpath = VcsUtil.getFilePath(new File(getWorkDir(),path));
       BzrContentRevision bcr = BzrContentRevision.createBzrContentRevision(m_project, m_vcsRoot, fpath, m_bzrRev);
+      m_baseFiles.add(fpath.getIOFile());
       Change change = new Change(bcr, CurrentContentRevision.create(fpath), FileStatus.MODIFIED);
       CHANGES.debug(String.format("%10s \"%s\"", "modified", fpath));
-      m_builder.processChange(change, m_vcsKey);
+      m_reporter.processChange(change);
     }
 
     private void processRemoved(BazaarItemKind kind, String path) {
       FilePath fpath = VcsUtil.getFilePath(new File(getWorkDir(),path));
       BzrContentRevision bcr = BzrContentRevision.createBzrContentRevision(m_project, m_vcsRoot, fpath, m_bzrRev);
+      m_baseFiles.add(fpath.getIOFile());
       Change change = new Change(bcr, null, FileStatus.DELETED);
       CHANGES.debug(String.format("%10s \"%s\"", "removed", fpath));
-      m_builder.processChange(change, m_vcsKey);
+      m_reporter.processChange(change);
     }
 
     private void processRenamed(BazaarItemKind kind, String path, String oldPath) {
       FilePath fpath = VcsUtil.getFilePath(new File(getWorkDir(),path));
       FilePath oldfpath = VcsUtil.getFilePath(new File(getWorkDir(),oldPath));
       BzrContentRevision bcr = BzrContentRevision.createBzrContentRevision(m_project, m_vcsRoot, oldfpath, m_bzrRev);
+      m_baseFiles.add(oldfpath.getIOFile());
       Change change = new Change(bcr, CurrentContentRevision.create(fpath), FileStatus.MODIFIED);
       CHANGES.debug(String.format("%10s \"%s\" => \"%s\"", "renamed", oldfpath, fpath));
-      m_builder.processChange(change, m_vcsKey);
+      m_reporter.processChange(change);
+    }
+
+    private synchronized void processUnknown(BazaarItemKind kind, String path) {
+      m_unknownFiles.add(new File(getWorkDir(), path));
+      if (m_unknownFiles.size() >= UNKNOWN_BATCH_SIZE) {
+        flushUnknown();
+      }
     }
 
-    private void processUnknown(BazaarItemKind kind, String path) {
-      File ioFile = new File(getWorkDir(), path);
-      VirtualFile vFile = VcsUtil.getVirtualFileWithRefresh(ioFile);
-      if (vFile == null) {
-        UNKNOWN.debug(String.format("%10s skipped \"%s\"", "unknown", ioFile));
+    /**
+     * Reports the unknown files parsed since the last call, looking up in one VFS refresh those the VFS does not
+     * know of yet. To be called once more after the command has finished.
+     */
+    public synchronized void flushUnknown() {
+      if (m_unknownFiles.isEmpty()) {
         return;
       }
-      processRecursive(m_builder,vFile);
+      LocalFileSystem lfs = LocalFileSystem.getInstance();
+      List<VirtualFile> found = new ArrayList<VirtualFile>(m_unknownFiles.size());
+      List<File> missing = new ArrayList<File>();
+      Set<File> missingParents = new HashSet<File>();
+      for (File ioFile : m_unknownFiles) {
+        VirtualFile vFile = lfs.findFileByIoFile(ioFile);
+        if (vFile != null) {
+          found.add(vFile);
+        } else {
+          missing.add(ioFile);
+          if (ioFile.getParentFile() != null) {
+            missingParents.add(ioFile.getParentFile());
+          }
+        }
+      }
+      m_unknownFiles.clear();
+      if (!missing.isEmpty()) {
+        // created since the VFS last looked at their directories
+        lfs.refreshIoFiles(missingParents);
+        for (File ioFile : missing) {
+          VirtualFile vFile = lfs.findFileByIoFile(ioFile);
+          if (vFile == null) {
+            vFile = lfs.refreshAndFindFileByIoFile(ioFile);
+          }
+          if (vFile == null) {
+            UNKNOWN.debug(String.format("%10s skipped \"%s\"", "unknown", ioFile));
+            continue;
+          }
+          found.add(vFile);
+        }
+      }
+      for (VirtualFile vFile : found) {
+        processUnknownTree(vFile);
+      }
     }
 
-    private void processRecursive(ChangelistBuilder builder, VirtualFile vFile) {
-      UNKNOWN.debug(String.format("%10s \"%s\"", "unknown", vFile));
-      builder.processUnversionedFile(vFile);
-      if (vFile.isDirectory()) {
-        File ioFile = VcsUtil.getFilePath(vFile.getPath(), true).getIOFile();
-        if (this.m_bzrSubRoots.contains(ioFile)) {
-          return;
+    /**
+     * Reports an unknown file and, breadth first, as many of its descendants as the budget of the scan allows.
+     * Directories beyond the budget are reported without their contents.
+     */
+    private void processUnknownTree(VirtualFile top) {
+      LinkedList<VirtualFile> pending = new LinkedList<VirtualFile>();
+      pending.add(top);
+      while (!pending.isEmpty()) {
+        VirtualFile vFile = pending.removeFirst();
+        UNKNOWN.debug(String.format("%10s \"%s\"", "unknown", vFile));
+        m_reporter.processUnversionedFile(vFile);
+        if (!vFile.isDirectory() || m_subRootPaths.contains(vFile.getPath())) {
+          continue;
         }
-        for (VirtualFile child : vFile.getChildren()) {
-          processRecursive(builder, child);
+        VirtualFile[] children = vFile.getChildren();
+        if (children.length > m_unknownBudget) {
+          UNKNOWN.debug(String.format("%10s not expanded \"%s\" (%d children)", "unknown", vFile, children.length));
+          continue;
         }
+        m_unknownBudget -= children.length;
+        Collections.addAll(pending, children);
       }
     }
 
@@ -365,7 +1045,7 @@ public class BzrChangeProvider implements ChangeProvider {
       FilePath fpath = VcsUtil.getFilePath(new File(getWorkDir(),path));
       Change change = new Change(null, CurrentContentRevision.create(fpath), FileStatus.MERGED_WITH_CONFLICTS);
       CHANGES.debug(String.format("%10s \"%s\"", "conflict", fpath));
-      m_builder.processChange(change, m_vcsKey);
+      m_reporter.processChange(change);
     }
 
     private void processKindChanged(BazaarItemKind kind, String path, String oldKind) {
@@ -373,4 +1053,60 @@ public class BzrChangeProvider implements ChangeProvider {
 //      super.handleKindChanged(kind, path, oldKind);
     }
   }
+
+  /**
+   * Handles the output of {@code idea-status}: the output of {@code xmlstatus} followed by that of
+   * {@code xmlls --ignored}, inside a root element carrying the revno of the branch.
+   */
+  private class MyCombinedHandler extends MyStatusHandler {
+
+    private volatile boolean m_started;
+
+    public MyCombinedHandler(VirtualFile vcsRoot, MyReporter reporter, File bzrRoot, Set<File> ioSubRoots) {
+      super(vcsRoot, reporter, bzrRoot, null, ioSubRoots);
+    }
+
+    /**
+     * @return true once the output has been recognized, after which entries may have been passed to the builder
+     */
+    public boolean isStarted() {
+      return m_started;
+    }
+
+    public BzrRevisionNumber getRevision() {
+      return m_bzrRev;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+      if (COMBINED_STATUS_ELEMENT.equals(qName)) {
+        // left off the parse stack, so that the status and list elements are parsed as if they were the root
+        String revno = attributes.getValue("revno");
+        m_bzrRev = revno != null ? BzrRevisionNumber.getLocalInstance(revno) : null;
+        m_started = true;
+        return;
+      }
+      super.startElement(uri, localName, qName, attributes);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+      if (COMBINED_STATUS_ELEMENT.equals(qName)) {
+        return;
+      }
+      super.endElement(uri, localName, qName);
+    }
+
+    @Override
+    public void handleItem(String id, String kind, String path, String statusKind) {
+      if (isFailed()) {
+        return;
+      }
+      try {
+        processIgnored(m_reporter, m_bzrRoot, m_bzrSubRoots, path);
+      } catch (RuntimeException e) {
+        handleError(e);
+      }
+    }
+  }
 }
@@ -0,0 +1,144 @@
+package bazaar4idea.provider;
+
+import bazaar4idea.BzrGlobalSettings;
+import bazaar4idea.BzrRevisionNumber;
+import bazaar4idea.BzrVcs;
+import bazaar4idea.command.BzrCatCommand;
+import bazaar4idea.command.BzrMiscCommand;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerAdapter;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.AbstractVcs;
+import com.intellij.openapi.vcs.FileStatus;
+import com.intellij.openapi.vcs.FileStatusManager;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.Alarm;
+import org.emergent.bzr4j.core.BazaarRoot;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the base content of files as they are opened in editors, and of a few other files of their directories,
+ * into {@link bazaar4idea.repo.BzrContentCache}. The line status markers of an editor need that content, and
+ * otherwise each editor opened runs a {@code bzr cat} of its own while the user waits.
+ * <p/>
+ * Files opened in quick succession, as when a project restores its editors, are gathered up and queued as one
+ * prefetch per root, which runs at background priority.
+ */
+class BzrEditorPrefetcher extends FileEditorManagerAdapter {
+
+  private static final int PREFETCH_DELAY = 300;
+
+  private final Project m_project;
+  private final Alarm m_alarm;
+  private final Set<VirtualFile> m_pending = new LinkedHashSet<VirtualFile>();
+
+  BzrEditorPrefetcher(Project project) {
+    m_project = project;
+    m_alarm = new Alarm(Alarm.ThreadToUse.POOLED_THREAD, project);
+  }
+
+  @Override
+  public void fileOpened(FileEditorManager source, VirtualFile file) {
+    if (!BzrGlobalSettings.getInstance().isBasePrefetchEnabled() || !file.isInLocalFileSystem()
+        || file.isDirectory()) {
+      return;
+    }
+    synchronized (m_pending) {
+      m_pending.add(file);
+    }
+    m_alarm.cancelAllRequests();
+    m_alarm.addRequest(new Runnable() {
+      public void run() {
+        prefetch();
+      }
+    }, PREFETCH_DELAY);
+  }
+
+  private void prefetch() {
+    final List<VirtualFile> opened;
+    synchronized (m_pending) {
+      opened = new ArrayList<VirtualFile>(m_pending);
+      m_pending.clear();
+    }
+    final Map<VirtualFile, Set<File>> filesByRoot = new LinkedHashMap<VirtualFile, Set<File>>();
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      public void run() {
+        if (!m_project.isDisposed()) {
+          collectFiles(opened, filesByRoot);
+        }
+      }
+    });
+    for (Map.Entry<VirtualFile, Set<File>> entry : filesByRoot.entrySet()) {
+      if (m_project.isDisposed()) {
+        return;
+      }
+      VirtualFile vcsRoot = entry.getKey();
+      // the revision BzrDiffProvider gives the base content of the editors
+      BzrRevisionNumber revno = BzrMiscCommand.revno(m_project, vcsRoot);
+      BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(VfsUtil.virtualToIoFile(vcsRoot));
+      if (revno == null || bzrRoot == null) {
+        continue;
+      }
+      new BzrCatCommand(m_project).prefetch(bzrRoot, revno, entry.getValue(), null);
+    }
+  }
+
+  private void collectFiles(List<VirtualFile> opened, Map<VirtualFile, Set<File>> filesByRoot) {
+    ProjectLevelVcsManager vcsManager = ProjectLevelVcsManager.getInstance(m_project);
+    FileStatusManager statusManager = FileStatusManager.getInstance(m_project);
+    int neighbours = BzrGlobalSettings.getInstance().getEditorPrefetchNeighbours();
+    for (VirtualFile file : opened) {
+      if (!file.isValid()) {
+        continue;
+      }
+      AbstractVcs vcs = vcsManager.getVcsFor(file);
+      VirtualFile vcsRoot = vcsManager.getVcsRootFor(file);
+      if (vcs == null || vcsRoot == null || !BzrVcs.getKey().equals(vcs.getKeyInstanceMethod())) {
+        continue;
+      }
+      Set<File> files = filesByRoot.get(vcsRoot);
+      if (files == null) {
+        files = new LinkedHashSet<File>();
+        filesByRoot.put(vcsRoot, files);
+      }
+      if (hasBaseContent(statusManager, file)) {
+        files.add(VfsUtil.virtualToIoFile(file));
+      }
+      VirtualFile parent = file.getParent();
+      if (parent == null || neighbours <= 0) {
+        continue;
+      }
+      int count = 0;
+      for (VirtualFile sibling : parent.getChildren()) {
+        if (count >= neighbours) {
+          break;
+        }
+        if (!sibling.equals(file) && hasBaseContent(statusManager, sibling)
+            && files.add(VfsUtil.virtualToIoFile(sibling))) {
+          count++;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if the file is a versioned text file, whose editor shows line status markers
+   */
+  private static boolean hasBaseContent(FileStatusManager statusManager, VirtualFile file) {
+    if (file.isDirectory() || file.getFileType().isBinary()) {
+      return false;
+    }
+    FileStatus status = statusManager.getStatus(file);
+    return status != FileStatus.UNKNOWN && status != FileStatus.IGNORED && status != FileStatus.ADDED;
+  }
+}
@@ -0,0 +1,322 @@
+package bazaar4idea.provider;
+
+import bazaar4idea.BzrContentRevision;
+import bazaar4idea.BzrRevisionNumber;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vcs.FileStatus;
+import com.intellij.openapi.vcs.VcsKey;
+import com.intellij.openapi.vcs.changes.Change;
+import com.intellij.openapi.vcs.changes.ChangelistBuilder;
+import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vcs.changes.CurrentContentRevision;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.vcsUtil.VcsUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a scan of a whole root reported to the {@link ChangelistBuilder}, together with the state of the working tree
+ * it was taken in, so that a later refresh finding the tree in the same state can report it again without running
+ * bzr.
+ * <p/>
+ * Snapshots are also saved when the project is closed, so that the changes view can be filled in from them when
+ * it is opened again rather than wait for bzr. Such a snapshot is used if the fingerprint of the tree still
+ * matches; files edited while the project was closed are picked up by the VFS refresh at startup, like any other
+ * change made outside the IDE.
+ */
+class BzrStatusSnapshot {
+
+  private static final Logger LOG = Logger.getInstance(BzrStatusSnapshot.class.getName());
+
+  private static final int MAGIC = 0x425a5353; // "BZSS"
+  private static final int VERSION = 1;
+
+  private static final byte ADDED = 0;
+  private static final byte MODIFIED = 1;
+  private static final byte DELETED = 2;
+  private static final byte CONFLICT = 3;
+
+  private final String m_fingerprint;
+  private long m_eventCount;
+  private final Set<File> m_subRoots;
+  private final List<Change> m_changes = new ArrayList<Change>();
+  private final List<VirtualFile> m_unversionedFiles = new ArrayList<VirtualFile>();
+  private final List<VirtualFile> m_ignoredFiles = new ArrayList<VirtualFile>();
+  private BzrRevisionNumber m_revision;
+
+  /**
+   * @param fingerprint the fingerprint of the bzr files of the tree, taken before it was scanned
+   * @param eventCount the number of VFS events seen under the root before it was scanned
+   * @param subRoots the nested branches left out of the scan
+   */
+  BzrStatusSnapshot(String fingerprint, long eventCount, Set<File> subRoots) {
+    m_fingerprint = fingerprint;
+    m_eventCount = eventCount;
+    m_subRoots = subRoots;
+  }
+
+  synchronized void addChange(Change change) {
+    m_changes.add(change);
+  }
+
+  synchronized void addUnversionedFile(VirtualFile file) {
+    m_unversionedFiles.add(file);
+  }
+
+  synchronized void addIgnoredFile(@Nullable VirtualFile file) {
+    m_ignoredFiles.add(file);
+  }
+
+  @Nullable
+  BzrRevisionNumber getRevision() {
+    return m_revision;
+  }
+
+  void setRevision(@Nullable BzrRevisionNumber revision) {
+    m_revision = revision;
+  }
+
+  /**
+   * @return true if the tree has been left as it was when the snapshot was taken
+   */
+  boolean matches(String fingerprint, long eventCount, Set<File> subRoots) {
+    return m_eventCount == eventCount && matches(fingerprint, subRoots);
+  }
+
+  /**
+   * @return true if the bzr files of the tree have been left as they were when the snapshot was taken
+   */
+  boolean matches(String fingerprint, Set<File> subRoots) {
+    return m_fingerprint.equals(fingerprint) && m_subRoots.equals(subRoots);
+  }
+
+  /**
+   * Makes a snapshot loaded from disk current, as of the given number of VFS events under its root.
+   */
+  void setEventCount(long eventCount) {
+    m_eventCount = eventCount;
+  }
+
+  /**
+   * Reports the snapshot to the builder, unless some of its files have since been deleted from the VFS.
+   *
+   * @return true if it was reported
+   */
+  synchronized boolean replay(ChangelistBuilder builder, VcsKey vcsKey) {
+    if (!isValid(m_unversionedFiles) || !isValid(m_ignoredFiles)) {
+      return false;
+    }
+    synchronized (builder) {
+      for (Change change : m_changes) {
+        builder.processChange(change, vcsKey);
+      }
+      for (VirtualFile file : m_unversionedFiles) {
+        builder.processUnversionedFile(file);
+      }
+      for (VirtualFile file : m_ignoredFiles) {
+        builder.processIgnoredFile(file);
+      }
+    }
+    return true;
+  }
+
+  private static boolean isValid(List<VirtualFile> files) {
+    for (VirtualFile file : files) {
+      if (file != null && !file.isValid()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param key the path of the root, as passed to {@link #save}
+   * @return the snapshot saved for the root, or null if there is none or some of its files are gone
+   */
+  @Nullable
+  static BzrStatusSnapshot load(String key, Project project, VirtualFile vcsRoot) {
+    return load(getFile(key), key, project, vcsRoot);
+  }
+
+  @Nullable
+  static BzrStatusSnapshot load(File file, String key, Project project, VirtualFile vcsRoot) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+          return null;
+        }
+        String fingerprint = in.readUTF();
+        Set<File> subRoots = new HashSet<File>();
+        for (int i = in.readInt(); i > 0; i--) {
+          subRoots.add(new File(in.readUTF()));
+        }
+        BzrStatusSnapshot retval = new BzrStatusSnapshot(fingerprint, 0, subRoots);
+        if (in.readBoolean()) {
+          retval.m_revision = BzrRevisionNumber.getLocalInstance(in.readUTF());
+        }
+        for (int i = in.readInt(); i > 0; i--) {
+          byte type = in.readByte();
+          String before = in.readBoolean() ? in.readUTF() : null;
+          String after = in.readBoolean() ? in.readUTF() : null;
+          retval.m_changes.add(createChange(project, vcsRoot, retval.m_revision, type, before, after));
+        }
+        if (!readFiles(in, retval.m_unversionedFiles) || !readFiles(in, retval.m_ignoredFiles)) {
+          return null;
+        }
+        return retval;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOG.debug("could not read status snapshot " + file, e);
+      return null;
+    }
+  }
+
+  void save(String key) {
+    save(getFile(key), key);
+  }
+
+  synchronized void save(File file, String key) {
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.info("Could not create " + dir);
+      return;
+    }
+    File tmp = new File(dir, file.getName() + ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.writeUTF(m_fingerprint);
+        out.writeInt(m_subRoots.size());
+        for (File subRoot : m_subRoots) {
+          out.writeUTF(subRoot.getPath());
+        }
+        out.writeBoolean(m_revision != null);
+        if (m_revision != null) {
+          out.writeUTF(m_revision.asString());
+        }
+        out.writeInt(m_changes.size());
+        for (Change change : m_changes) {
+          out.writeByte(getType(change.getFileStatus()));
+          writePath(out, change.getBeforeRevision());
+          writePath(out, change.getAfterRevision());
+        }
+        writeFiles(out, m_unversionedFiles);
+        writeFiles(out, m_ignoredFiles);
+      } finally {
+        out.close();
+      }
+      if (!tmp.renameTo(file)) {
+        file.delete();
+        if (!tmp.renameTo(file)) {
+          throw new IOException("Could not rename " + tmp);
+        }
+      }
+    } catch (IOException e) {
+      LOG.info("Could not write " + file, e);
+      tmp.delete();
+    }
+  }
+
+  private static File getFile(String key) {
+    File dir = new File(new File(PathManager.getSystemPath(), "bazaar4idea"), "status");
+    return new File(dir, new File(key).getName() + "." + Integer.toHexString(key.hashCode()));
+  }
+
+  /**
+   * Recreates a change the way {@link BzrChangeProvider} creates it from the output of bzr.
+   */
+  private static Change createChange(Project project, VirtualFile vcsRoot, @Nullable BzrRevisionNumber revision,
+                                     byte type, @Nullable String before, @Nullable String after) throws IOException {
+    ContentRevision beforeRevision = before == null ? null :
+        BzrContentRevision.createBzrContentRevision(project, vcsRoot, VcsUtil.getFilePath(before), revision);
+    ContentRevision afterRevision = after == null ? null : CurrentContentRevision.create(VcsUtil.getFilePath(after));
+    switch (type) {
+      case ADDED:
+        return new Change(beforeRevision, afterRevision, FileStatus.ADDED);
+      case MODIFIED:
+        return new Change(beforeRevision, afterRevision, FileStatus.MODIFIED);
+      case DELETED:
+        return new Change(beforeRevision, afterRevision, FileStatus.DELETED);
+      case CONFLICT:
+        return new Change(beforeRevision, afterRevision, FileStatus.MERGED_WITH_CONFLICTS);
+      default:
+        throw new IOException("unknown change type " + type);
+    }
+  }
+
+  private static byte getType(FileStatus status) {
+    if (status == FileStatus.ADDED) {
+      return ADDED;
+    }
+    if (status == FileStatus.DELETED) {
+      return DELETED;
+    }
+    if (status == FileStatus.MERGED_WITH_CONFLICTS) {
+      return CONFLICT;
+    }
+    return MODIFIED;
+  }
+
+  private static void writePath(DataOutputStream out, @Nullable ContentRevision revision) throws IOException {
+    FilePath path = revision != null ? revision.getFile() : null;
+    out.writeBoolean(path != null);
+    if (path != null) {
+      out.writeUTF(path.getPath());
+    }
+  }
+
+  private static void writeFiles(DataOutputStream out, List<VirtualFile> files) throws IOException {
+    int count = 0;
+    for (VirtualFile file : files) {
+      if (file != null) {
+        count++;
+      }
+    }
+    out.writeInt(count);
+    for (VirtualFile file : files) {
+      if (file != null) {
+        out.writeUTF(file.getPath());
+      }
+    }
+  }
+
+  /**
+   * @return false if some of the files are no longer in the VFS
+   */
+  private static boolean readFiles(DataInputStream in, List<VirtualFile> files) throws IOException {
+    boolean retval = true;
+    for (int i = in.readInt(); i > 0; i--) {
+      VirtualFile file = LocalFileSystem.getInstance().findFileByPath(in.readUTF());
+      if (file == null) {
+        retval = false;
+      }
+      files.add(file);
+    }
+    return retval;
+  }
+}
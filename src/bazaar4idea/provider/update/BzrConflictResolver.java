@@ -13,6 +13,7 @@
 package bazaar4idea.provider.update;
 
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.AbstractVcsHelper;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.merge.MergeData;
@@ -22,7 +23,6 @@ import com.intellij.openapi.vcs.update.UpdatedFiles;
 import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsUtil;
-import org.apache.commons.io.IOUtils;
 import bazaar4idea.BzrFile;
 import bazaar4idea.BzrRevisionNumber;
 import bazaar4idea.BzrVcs;
@@ -32,7 +32,6 @@ import bazaar4idea.data.BzrResolveStatusEnum;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -93,32 +92,17 @@ public final class BzrConflictResolver {
       public MergeData loadRevisions(VirtualFile file) throws VcsException {
         try {
           MergeData mergeData = new MergeData();
-          mergeData.ORIGINAL = IOUtils.toByteArray(new FileReader(file.getPath() + ".orig"));
+          mergeData.ORIGINAL = FileUtil.loadFileBytes(new File(file.getPath() + ".orig"));
           mergeData.LAST_REVISION_NUMBER = incomingRevision;
 
           BzrFile hgFile = new BzrFile(repo, VfsUtil.virtualToIoFile(file));
 
           BzrCatCommand hgCatCommand = new BzrCatCommand(project);
-          String last = hgCatCommand.execute(
-              hgFile,
-              (BzrRevisionNumber)mergeData.LAST_REVISION_NUMBER,
-              file.getCharset()
-          );
-          if (last != null) {
-            mergeData.LAST = last.getBytes(file.getCharset().name());
-          } else {
-            mergeData.LAST = new byte[0];
-          }
-
-          String current = hgCatCommand.execute(
-              hgFile, localRevision, file.getCharset()
-          );
-
-          if (current != null) {
-            mergeData.CURRENT = current.getBytes(file.getCharset().name());
-          } else {
-            mergeData.CURRENT = new byte[0];
-          }
+          byte[] last = hgCatCommand.executeBytes(hgFile, (BzrRevisionNumber)mergeData.LAST_REVISION_NUMBER);
+          mergeData.LAST = last != null ? last : new byte[0];
+
+          byte[] current = hgCatCommand.executeBytes(hgFile, localRevision);
+          mergeData.CURRENT = current != null ? current : new byte[0];
 
           return mergeData;
         } catch (IOException e) {
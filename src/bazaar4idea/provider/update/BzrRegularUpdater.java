@@ -59,8 +59,55 @@ class BzrRegularUpdater implements BzrUpdater {
 //        }
 
     BzrStandardResult result = pull(repository, indicator);
-    List<String> lines = result.getStdErrAsLines();
     Map<String, String> changes = new TreeMap<String, String>();
+    BzrRevisionNumber revno = parseUpdateOutput(result.getStdErrAsLines(), changes);
+
+    final VirtualFile bzrRoot = BzrUtil.bzrRootOrNull(repository);
+    if (bzrRoot != null) {
+      for (Map.Entry<String,String> entry : changes.entrySet()) {
+        String relPath = entry.getKey();
+        String filePath = (new File(bzrRoot.getPath(), relPath)).getAbsolutePath();
+        String fileGroupId = entry.getValue();
+        LOG.debug("adding updatedFile: " + fileGroupId + " \"" + relPath + "\"");
+        updatedFiles.getGroupById(fileGroupId).add(filePath, BzrVcs.NAME, revno);
+      }
+    }
+
+
+//        String currentBranch = new BzrTagBranchCommand(project, repository).getCurrentBranch();
+//        if (StringUtils.isBlank(currentBranch)) {
+//            Object[] params = new Object[] { };
+//            throw new VcsException(
+//                    BzrVcsMessages.message("bzr4intellij.update.error.currentBranch", params)
+//            );
+//        }
+
+//        //count heads in repository
+//        List<BzrRevisionNumber> heads = new BzrHeadsCommand(project, repository).execute(currentBranch);
+//        Object[] params1 = new Object[] { };
+//        indicator.setText2(BzrVcsMessages.message("bzr4intellij.progress.countingHeads", params1));
+//        if (heads.size() < 2) {
+//            return;
+//        }
+
+//        if (heads.size() > 2) {
+//            Object[] params = new Object[] { heads.size() };
+//            throw new VcsException(
+//                    BzrVcsMessages.message("bzr4intellij.update.error.manyHeads", params)
+//            );
+//        }
+//
+//        new BzrHeadMerger(project, new BzrMergeCommand(project, repository))
+//                .merge(repository, updatedFiles, indicator, heads.get(heads.size() - 1));
+//    new BzrHeadMerger(project, null).merge(repository, updatedFiles, indicator, null);
+  }
+
+  /**
+   * Collects the files reported by the output of pull or update into the given map of path to file group id.
+   *
+   * @return the revision the tree was updated to, or null if the output does not say
+   */
+  static BzrRevisionNumber parseUpdateOutput(List<String> lines, Map<String, String> changes) {
     BzrRevisionNumber revno = null;
     for (String line : lines) {
       String path = null;
@@ -101,45 +148,7 @@ class BzrRegularUpdater implements BzrUpdater {
         }
       }
     }
-
-    final VirtualFile bzrRoot = BzrUtil.bzrRootOrNull(repository);
-    if (bzrRoot != null) {
-      for (Map.Entry<String,String> entry : changes.entrySet()) {
-        String relPath = entry.getKey();
-        String filePath = (new File(bzrRoot.getPath(), relPath)).getAbsolutePath();
-        String fileGroupId = entry.getValue();
-        LOG.debug("adding updatedFile: " + fileGroupId + " \"" + relPath + "\"");
-        updatedFiles.getGroupById(fileGroupId).add(filePath, BzrVcs.NAME, revno);
-      }
-    }
-
-
-//        String currentBranch = new BzrTagBranchCommand(project, repository).getCurrentBranch();
-//        if (StringUtils.isBlank(currentBranch)) {
-//            Object[] params = new Object[] { };
-//            throw new VcsException(
-//                    BzrVcsMessages.message("bzr4intellij.update.error.currentBranch", params)
-//            );
-//        }
-
-//        //count heads in repository
-//        List<BzrRevisionNumber> heads = new BzrHeadsCommand(project, repository).execute(currentBranch);
-//        Object[] params1 = new Object[] { };
-//        indicator.setText2(BzrVcsMessages.message("bzr4intellij.progress.countingHeads", params1));
-//        if (heads.size() < 2) {
-//            return;
-//        }
-
-//        if (heads.size() > 2) {
-//            Object[] params = new Object[] { heads.size() };
-//            throw new VcsException(
-//                    BzrVcsMessages.message("bzr4intellij.update.error.manyHeads", params)
-//            );
-//        }
-//
-//        new BzrHeadMerger(project, new BzrMergeCommand(project, repository))
-//                .merge(repository, updatedFiles, indicator, heads.get(heads.size() - 1));
-//    new BzrHeadMerger(project, null).merge(repository, updatedFiles, indicator, null);
+    return revno;
   }
 
   private BzrStandardResult pull(VirtualFile repo, ProgressIndicator indicator) throws VcsException {
@@ -0,0 +1,526 @@
+package bazaar4idea.repo;
+
+import bazaar4idea.BzrGlobalSettings;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ShutDownTracker;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The contents of files at past revisions, as printed by {@code bzr cat}, kept in the IDE system directory across
+ * restarts.
+ * <p/>
+ * An index maps the branch, revision and path of a file to the sha1 of its content, and the content is stored
+ * compressed in a file named after that sha1, so that a file unchanged across many revisions is stored once. The
+ * stored contents are evicted least recently used first once they exceed the configured size.
+ * <p/>
+ * Revisions are identified by their revno, which only stays attached to the same revision as long as the history
+ * of the branch is only added to. The index therefore records the tip of each branch, as read from its
+ * last-revision file, and the entries of a branch are only used while the tip is the one they were recorded under;
+ * when it has moved, {@link #moveTip} keeps them if the old tip is still at the same revno and drops them otherwise.
+ */
+public class BzrContentCache {
+
+  private static final Logger LOG = Logger.getInstance(BzrContentCache.class.getName());
+
+  private static final int MAGIC = 0x425a4343; // "BZCC"
+  private static final int VERSION = 1;
+  private static final int SHA1_LENGTH = 20;
+  private static final int COMPACT_FACTOR = 3;
+
+  private static final byte RECORD_ENTRY = 0;
+  private static final byte RECORD_TIP = 1;
+
+  private static final String LAST_REVISION_PATH = ".bzr/branch/last-revision";
+
+  private static final BzrContentCache INSTANCE =
+      new BzrContentCache(new File(new File(PathManager.getSystemPath(), "bazaar4idea"), "content"));
+
+  static {
+    ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+      public void run() {
+        INSTANCE.close();
+      }
+    });
+  }
+
+  private final File m_dir;
+  private final File m_indexFile;
+  private final File m_objectsDir;
+  private final Map<String, Branch> m_branches = new HashMap<String, Branch>();
+  private DataOutputStream m_out;
+  private int m_recordsInFile;
+  private int m_entries;
+  private long m_storedSize = -1;
+  private boolean m_loaded;
+  private boolean m_broken;
+
+  BzrContentCache(File dir) {
+    m_dir = dir;
+    m_indexFile = new File(dir, "index");
+    m_objectsDir = new File(dir, "objects");
+  }
+
+  public static BzrContentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param branch the root of the branch
+   * @return the revno and revision id of the tip of the branch, or null if it cannot be read, as for a lightweight
+   *         checkout
+   */
+  @Nullable
+  public static String readTip(File branch) {
+    File file = new File(branch, LAST_REVISION_PATH);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      String retval = FileUtil.loadFile(file, "UTF-8").trim();
+      return retval.indexOf(' ') > 0 ? retval : null;
+    } catch (IOException e) {
+      LOG.debug("could not read " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the tip the entries of the branch were recorded under, or null if there are none
+   */
+  @Nullable
+  public synchronized String getTip(File branch) {
+    load();
+    Branch entry = m_branches.get(getKey(branch));
+    return entry != null ? entry.m_tip : null;
+  }
+
+  /**
+   * Records that the tip of the branch has moved.
+   *
+   * @param keepEntries true if the old tip is still at the same revno, so that the entries recorded so far still
+   *                    describe the same revisions
+   */
+  public synchronized void moveTip(File branch, String tip, boolean keepEntries) {
+    load();
+    String key = getKey(branch);
+    Branch entry = m_branches.get(key);
+    if (entry == null) {
+      entry = new Branch(tip);
+      m_branches.put(key, entry);
+    } else {
+      if (!keepEntries) {
+        m_entries -= entry.m_sha1s.size();
+        entry.m_sha1s.clear();
+      }
+      entry.m_tip = tip;
+    }
+    try {
+      DataOutputStream out = getOutput();
+      writeTip(out, key, tip, keepEntries);
+      m_recordsInFile++;
+      out.flush();
+    } catch (IOException e) {
+      LOG.info("Could not write " + m_indexFile, e);
+      close();
+    }
+  }
+
+  /**
+   * @param tip the current tip of the branch, as returned by {@link #readTip}
+   * @param path the path of the file from the root of the branch, with '/' separators
+   * @return the content of the file at the revision, if it is cached under the given tip
+   */
+  @Nullable
+  public byte[] get(File branch, String tip, String revision, String path) {
+    String sha1;
+    synchronized (this) {
+      load();
+      Branch entry = m_branches.get(getKey(branch));
+      if (entry == null || !tip.equals(entry.m_tip)) {
+        return null;
+      }
+      sha1 = entry.m_sha1s.get(getEntryKey(revision, path));
+    }
+    if (sha1 == null) {
+      return null;
+    }
+    File object = getObjectFile(sha1);
+    try {
+      byte[] retval = readObject(object);
+      object.setLastModified(System.currentTimeMillis());
+      return retval;
+    } catch (IOException e) {
+      // evicted, or cut short
+      LOG.debug("content cache object unreadable: " + object, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the content of the file at the revision is cached under the given tip, without reading it
+   */
+  public synchronized boolean contains(File branch, String tip, String revision, String path) {
+    load();
+    Branch entry = m_branches.get(getKey(branch));
+    return entry != null && tip.equals(entry.m_tip) && entry.m_sha1s.containsKey(getEntryKey(revision, path));
+  }
+
+  /**
+   * Stores the content of the file at the revision, unless the tip of the branch has moved since the entries of
+   * the branch were last validated.
+   */
+  public void put(File branch, String tip, String revision, String path, byte[] content) {
+    synchronized (this) {
+      load();
+    }
+    String sha1 = sha1(content);
+    File object = getObjectFile(sha1);
+    long added = 0;
+    try {
+      if (object.isFile()) {
+        object.setLastModified(System.currentTimeMillis());
+      } else {
+        writeObject(object, content);
+        added = object.length();
+      }
+    } catch (IOException e) {
+      LOG.info("Could not write " + object, e);
+      return;
+    }
+    synchronized (this) {
+      load();
+      String key = getKey(branch);
+      Branch entry = m_branches.get(key);
+      if (entry == null || !tip.equals(entry.m_tip)) {
+        return;
+      }
+      if (entry.m_sha1s.put(getEntryKey(revision, path), sha1) == null) {
+        m_entries++;
+      }
+      try {
+        DataOutputStream out = getOutput();
+        writeEntry(out, key, revision, path, sha1);
+        m_recordsInFile++;
+        out.flush();
+        if (m_recordsInFile > COMPACT_FACTOR * (m_entries + m_branches.size()) + 1000) {
+          compact();
+        }
+      } catch (IOException e) {
+        LOG.info("Could not write " + m_indexFile, e);
+        close();
+      }
+      m_storedSize += added;
+      long maxSize = getMaxSize();
+      if (m_storedSize > maxSize) {
+        evict(maxSize * 3 / 4);
+      }
+    }
+  }
+
+  long getMaxSize() {
+    return BzrGlobalSettings.getInstance().getContentCacheMaxMegabytes() * 1024L * 1024L;
+  }
+
+  /**
+   * Deletes the least recently used contents until those left take up no more than the given size. Index entries
+   * pointing at them miss when used, and are dropped when the index is next compacted.
+   */
+  private void evict(long targetSize) {
+    List<File> objects = listObjects();
+    File[] sorted = objects.toArray(new File[objects.size()]);
+    final Map<File, Long> times = new HashMap<File, Long>();
+    for (File object : sorted) {
+      times.put(object, object.lastModified());
+    }
+    Arrays.sort(sorted, new Comparator<File>() {
+      public int compare(File o1, File o2) {
+        long t1 = times.get(o1);
+        long t2 = times.get(o2);
+        return t1 < t2 ? -1 : t1 == t2 ? 0 : 1;
+      }
+    });
+    long size = 0;
+    for (File object : sorted) {
+      size += object.length();
+    }
+    for (File object : sorted) {
+      if (size <= targetSize) {
+        break;
+      }
+      long length = object.length();
+      if (object.delete()) {
+        size -= length;
+      }
+    }
+    m_storedSize = size;
+    LOG.debug(String.format("content cache evicted down to %d bytes", size));
+  }
+
+  private List<File> listObjects() {
+    List<File> retval = new ArrayList<File>();
+    File[] dirs = m_objectsDir.listFiles();
+    if (dirs == null) {
+      return retval;
+    }
+    for (File dir : dirs) {
+      File[] objects = dir.listFiles();
+      if (objects != null) {
+        retval.addAll(Arrays.asList(objects));
+      }
+    }
+    return retval;
+  }
+
+  private File getObjectFile(String sha1) {
+    return new File(new File(m_objectsDir, sha1.substring(0, 2)), sha1.substring(2));
+  }
+
+  private static byte[] readObject(File object) throws IOException {
+    InputStream in = new GZIPInputStream(new FileInputStream(object));
+    try {
+      ByteArrayOutputStream retval = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        retval.write(buf, 0, len);
+      }
+      return retval.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeObject(File object, byte[] content) throws IOException {
+    File dir = object.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    File tmp = new File(dir, object.getName() + ".tmp");
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(object)) {
+      tmp.delete();
+      if (!object.isFile()) {
+        throw new IOException("Could not write " + object);
+      }
+    }
+  }
+
+  private void load() {
+    if (m_loaded) {
+      return;
+    }
+    m_loaded = true;
+    long size = 0;
+    for (File object : listObjects()) {
+      size += object.length();
+    }
+    m_storedSize = size;
+    if (!m_indexFile.isFile()) {
+      return;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          LOG.debug("ignoring content cache index of unknown format: " + m_indexFile);
+          m_broken = true;
+          return;
+        }
+        byte[] sha1 = new byte[SHA1_LENGTH];
+        while (true) {
+          byte type;
+          try {
+            type = in.readByte();
+          } catch (EOFException e) {
+            break;
+          }
+          String key = in.readUTF();
+          if (type == RECORD_TIP) {
+            String tip = in.readUTF();
+            boolean keepEntries = in.readBoolean();
+            Branch entry = m_branches.get(key);
+            if (entry == null) {
+              m_branches.put(key, new Branch(tip));
+            } else {
+              if (!keepEntries) {
+                m_entries -= entry.m_sha1s.size();
+                entry.m_sha1s.clear();
+              }
+              entry.m_tip = tip;
+            }
+          } else {
+            String entryKey = in.readUTF();
+            in.readFully(sha1);
+            Branch entry = m_branches.get(key);
+            if (entry != null && entry.m_sha1s.put(entryKey, toHex(sha1)) == null) {
+              m_entries++;
+            }
+          }
+          m_recordsInFile++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // a record cut short by a crash; what was read before it is still good
+      LOG.debug("content cache index truncated: " + m_indexFile, e);
+      m_broken = true;
+    }
+  }
+
+  private DataOutputStream getOutput() throws IOException {
+    if (m_out == null) {
+      if (!m_indexFile.isFile() || m_broken) {
+        // start over rather than append to a file of another format or with a broken record at its end
+        writeIndex();
+        m_broken = false;
+      }
+      m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_indexFile, true)));
+    }
+    return m_out;
+  }
+
+  synchronized void compact() throws IOException {
+    close();
+    for (Branch branch : m_branches.values()) {
+      for (Iterator<String> it = branch.m_sha1s.values().iterator(); it.hasNext(); ) {
+        if (!getObjectFile(it.next()).isFile()) {
+          it.remove();
+          m_entries--;
+        }
+      }
+    }
+    writeIndex();
+  }
+
+  private void writeIndex() throws IOException {
+    if (!m_dir.isDirectory() && !m_dir.mkdirs()) {
+      throw new IOException("Could not create " + m_dir);
+    }
+    File tmp = new File(m_dir, m_indexFile.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    int records = 0;
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Map.Entry<String, Branch> branch : m_branches.entrySet()) {
+        writeTip(out, branch.getKey(), branch.getValue().m_tip, false);
+        records++;
+        for (Map.Entry<String, String> entry : branch.getValue().m_sha1s.entrySet()) {
+          out.writeByte(RECORD_ENTRY);
+          out.writeUTF(branch.getKey());
+          out.writeUTF(entry.getKey());
+          out.write(fromHex(entry.getValue()));
+          records++;
+        }
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(m_indexFile)) {
+      m_indexFile.delete();
+      if (!tmp.renameTo(m_indexFile)) {
+        throw new IOException("Could not write " + m_indexFile);
+      }
+    }
+    m_recordsInFile = records;
+  }
+
+  private static void writeTip(DataOutputStream out, String key, String tip, boolean keepEntries) throws IOException {
+    out.writeByte(RECORD_TIP);
+    out.writeUTF(key);
+    out.writeUTF(tip);
+    out.writeBoolean(keepEntries);
+  }
+
+  private static void writeEntry(DataOutputStream out, String key, String revision, String path, String sha1)
+      throws IOException {
+    out.writeByte(RECORD_ENTRY);
+    out.writeUTF(key);
+    out.writeUTF(getEntryKey(revision, path));
+    out.write(fromHex(sha1));
+  }
+
+  synchronized void close() {
+    if (m_out != null) {
+      try {
+        m_out.close();
+      } catch (IOException ignored) {
+      }
+      m_out = null;
+    }
+  }
+
+  private static String getKey(File branch) {
+    return branch.getAbsolutePath();
+  }
+
+  private static String getEntryKey(String revision, String path) {
+    return revision + '\0' + path;
+  }
+
+  private static String sha1(byte[] content) {
+    try {
+      return toHex(MessageDigest.getInstance("SHA-1").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder retval = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      retval.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return retval.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] retval = new byte[hex.length() / 2];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return retval;
+  }
+
+  private static class Branch {
+
+    private final Map<String, String> m_sha1s = new HashMap<String, String>();
+    private String m_tip;
+
+    private Branch(String tip) {
+      m_tip = tip;
+    }
+  }
+}
@@ -0,0 +1,507 @@
+package bazaar4idea.repo;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Read-only view of the dirstate of a bzr working tree ({@code .bzr/checkout/dirstate}), the file in which bzr
+ * keeps the working tree inventory, its basis revision, and the last known stat and sha1 of every file.
+ * <p/>
+ * This makes it possible to tell that a file is unchanged without running bzr, the same way {@code bzr status}
+ * does: if bzr cached a sha1 for the file, the file still has the size and modification time recorded with it,
+ * and that sha1 is the one of the basis revision, the file is unchanged. Anything else is left to bzr.
+ * <p/>
+ * The plugin only has the size and modification time of a file to go by, not the inode, device and change time
+ * that bzr packs into its stat fingerprint, so a file rewritten with the same size and its old modification
+ * time is not noticed. bzr only caches a sha1 for files last modified some seconds before it looked at them,
+ * which rules out ordinary edits landing in the recorded second.
+ * <p/>
+ * Files whose stat no longer matches, as after a branch switch or a build step that touched them, can be hashed
+ * with {@link #isContentUnchanged}, which keeps the hashes in a {@link BzrStatCache}.
+ */
+public class BzrDirState {
+
+  private static final Logger LOG = Logger.getInstance(BzrDirState.class.getName());
+
+  public static final String DIRSTATE_PATH = ".bzr/checkout/dirstate";
+  private static final String CONFLICTS_PATH = ".bzr/checkout/conflicts";
+
+  private static final String HEADER = "#bazaar dirstate flat format 3\n";
+  private static final String CONFLICTS_HEADER = "BZR conflict list format 1\n";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The packed stat of entries bzr has no cached stat for.
+   */
+  private static final String NULL_STAT = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+
+  private static final int TREE_FIELDS = 5;
+
+  private static final ConcurrentMap<File, BzrDirState> sm_cache = new ConcurrentHashMap<File, BzrDirState>();
+
+  private final File m_root;
+  private final long m_lastModified;
+  private final long m_length;
+  private final String m_head;
+  private final boolean m_conflicted;
+  private final Map<String, Entry> m_entries;
+
+  private BzrDirState(File root, long lastModified, long length, String head, boolean conflicted,
+                      Map<String, Entry> entries) {
+    m_root = root;
+    m_lastModified = lastModified;
+    m_length = length;
+    m_head = head;
+    m_conflicted = conflicted;
+    m_entries = entries;
+  }
+
+  /**
+   * @return the dirstate of the working tree at the given root, or null if it has none or it cannot be read
+   */
+  @Nullable
+  public static BzrDirState getInstance(File root) {
+    File file = new File(root, DIRSTATE_PATH);
+    long lastModified = file.lastModified();
+    long length = file.length();
+    if (lastModified == 0) {
+      sm_cache.remove(root);
+      return null;
+    }
+    BzrDirState retval = sm_cache.get(root);
+    // the header holds the crc32 of the entries, for rewrites which keep the length within one mtime tick
+    if (retval != null && retval.m_lastModified == lastModified && retval.m_length == length
+        && retval.m_head.equals(BzrRefreshCoordinator.readHead(file))) {
+      return retval;
+    }
+    try {
+      retval = read(root, file, lastModified, length);
+    } catch (IOException e) {
+      LOG.debug("could not read " + file, e);
+      retval = null;
+    }
+    if (retval != null) {
+      sm_cache.put(root, retval);
+    } else {
+      sm_cache.remove(root);
+    }
+    return retval;
+  }
+
+  public File getRoot() {
+    return m_root;
+  }
+
+  public int getEntryCount() {
+    return m_entries.size();
+  }
+
+  /**
+   * @param path the path relative to the root, with '/' separators
+   * @return the entry of the file present in the working tree at that path, or null if it is not versioned
+   */
+  @Nullable
+  public Entry getEntry(String path) {
+    return m_entries.get(path);
+  }
+
+  /**
+   * @param path the path relative to the root, with '/' separators
+   * @return true if the file is known to be unchanged from the basis revision, false if bzr has to tell
+   */
+  public boolean isUnchanged(String path) {
+    if (m_conflicted) {
+      return false;
+    }
+    Entry entry = m_entries.get(path);
+    if (entry == null || !entry.isCleanInBasis()) {
+      return false;
+    }
+    File file = new File(m_root, path);
+    if (!file.isFile() || file.length() != entry.getStatSize() || file.lastModified() / 1000 != entry.getStatMtime()) {
+      return false;
+    }
+    return SystemInfo.isWindows || file.canExecute() == entry.isExecutable();
+  }
+
+  /**
+   * @param path the path relative to the root, with '/' separators
+   * @return true if the file is versioned as a file both in the working tree and in the basis revision, so that
+   *         hashing it can tell whether it is unchanged
+   */
+  public boolean isHashCandidate(String path) {
+    Entry entry = m_entries.get(path);
+    return !m_conflicted && entry != null && entry.isFileInBasis();
+  }
+
+  /**
+   * Hashes the given candidates, reusing the hashes in the stat cache of the root, and compares them with the
+   * sha1s of the basis revision.
+   *
+   * @param paths paths for which {@link #isHashCandidate} is true
+   * @return true if every file has the content of the basis revision
+   */
+  public boolean isContentUnchanged(Collection<String> paths) {
+    Map<String, String> sha1s = BzrStatCache.getInstance(m_root).getSha1s(paths);
+    for (String path : paths) {
+      Entry entry = m_entries.get(path);
+      String sha1 = sha1s.get(path);
+      if (entry == null || sha1 == null || !sha1.equals(entry.getBasisSha1())) {
+        return false;
+      }
+      if (!SystemInfo.isWindows && new File(m_root, path).canExecute() != entry.isExecutable()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static BzrDirState read(File root, File file, long lastModified, long length) throws IOException {
+    // not mapped: bzr rewrites the file in place, and a mapping of a file which shrinks faults when read past its
+    // new end, besides keeping the file open on Windows until it is collected
+    ByteBuffer buffer;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      buffer = ByteBuffer.allocate((int)channel.size());
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+      }
+      buffer.flip();
+    } finally {
+      raf.close();
+    }
+    int headLength = Math.min(buffer.limit(), BzrRefreshCoordinator.FINGERPRINT_HEAD_LENGTH);
+    String head = new String(buffer.array(), 0, headLength, "ISO-8859-1");
+    Map<String, Entry> entries;
+    try {
+      entries = parse(buffer);
+    } catch (RuntimeException e) {
+      LOG.debug("could not parse " + file, e);
+      entries = null;
+    }
+    return entries != null ? new BzrDirState(root, lastModified, length, head, isConflicted(root), entries) : null;
+  }
+
+  /**
+   * @return the entries present in the working tree by path, or null if the buffer does not hold a complete
+   *         dirstate of a known format
+   */
+  @Nullable
+  static Map<String, Entry> parse(ByteBuffer buffer) {
+    if (!HEADER.equals(readLine(buffer))) {
+      return null;
+    }
+    String crcLine = readLine(buffer);
+    String countLine = readLine(buffer);
+    if (crcLine == null || !crcLine.startsWith("crc32: ") || countLine == null || !countLine.startsWith("num_entries: ")) {
+      return null;
+    }
+    long expectedCrc;
+    int expectedCount;
+    try {
+      expectedCrc = Long.parseLong(crcLine.substring("crc32: ".length()).trim());
+      expectedCount = Integer.parseInt(countLine.substring("num_entries: ".length()).trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (!checkCrc(buffer.slice(), expectedCrc)) {
+      // most likely read while bzr was rewriting it
+      return null;
+    }
+
+    Fields fields = new Fields(buffer);
+    int parentCount = Integer.parseInt(fields.next());
+    for (int i = 0; i < parentCount; i++) {
+      fields.skip();
+    }
+    fields.endOfLine();
+    int ghostCount = Integer.parseInt(fields.next());
+    for (int i = 0; i < ghostCount; i++) {
+      fields.skip();
+    }
+    fields.endOfLine();
+
+    Map<String, Entry> retval = new HashMap<String, Entry>(expectedCount * 4 / 3 + 1);
+    int count = 0;
+    while (fields.hasNext()) {
+      String dirname = fields.next();
+      String basename = fields.next();
+      String fileId = fields.next();
+      char kind = fields.nextChar();
+      String sha1 = fields.next();
+      long size = Long.parseLong(fields.next());
+      boolean executable = fields.nextChar() == 'y';
+      String packedStat = fields.next();
+      char basisKind = 'a';
+      String basisSha1 = "";
+      if (parentCount > 0) {
+        basisKind = fields.nextChar();
+        basisSha1 = fields.next();
+        fields.skip(); // size
+        fields.skip(); // executable
+        fields.skip(); // revision id
+        for (int i = 1; i < parentCount; i++) {
+          for (int j = 0; j < TREE_FIELDS; j++) {
+            fields.skip();
+          }
+        }
+      }
+      fields.endOfLine();
+      count++;
+      if (kind == 'a' || kind == 'r') {
+        // not in the working tree at this path
+        continue;
+      }
+      String path = dirname.length() == 0 ? basename : dirname + "/" + basename;
+      retval.put(path, new Entry(path, fileId, kind, size, executable, packedStat, sha1, basisKind, basisSha1));
+    }
+    if (count != expectedCount) {
+      return null;
+    }
+    return retval;
+  }
+
+  private static boolean checkCrc(ByteBuffer body, long expectedCrc) {
+    CRC32 crc = new CRC32();
+    if (body.hasArray()) {
+      crc.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+    } else {
+      byte[] chunk = new byte[8192];
+      while (body.hasRemaining()) {
+        int len = Math.min(chunk.length, body.remaining());
+        body.get(chunk, 0, len);
+        crc.update(chunk, 0, len);
+      }
+    }
+    // bzr writes the signed value of python's zlib.crc32
+    return crc.getValue() == expectedCrc || (int)crc.getValue() == expectedCrc;
+  }
+
+  @Nullable
+  private static String readLine(ByteBuffer buffer) {
+    int start = buffer.position();
+    while (buffer.hasRemaining()) {
+      if (buffer.get() == '\n') {
+        return decode(buffer, start, buffer.position());
+      }
+    }
+    return null;
+  }
+
+  private static String decode(ByteBuffer buffer, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(start + i);
+    }
+    return new String(bytes, UTF8);
+  }
+
+  private static boolean isConflicted(File root) {
+    File conflicts = new File(root, CONFLICTS_PATH);
+    return conflicts.length() > CONFLICTS_HEADER.length();
+  }
+
+  /**
+   * Reads the '\0' separated fields of the dirstate body, in which each line ends with a "\n" field.
+   */
+  private static class Fields {
+
+    private final ByteBuffer m_buffer;
+
+    private Fields(ByteBuffer buffer) {
+      m_buffer = buffer;
+    }
+
+    public boolean hasNext() {
+      return m_buffer.hasRemaining();
+    }
+
+    public String next() {
+      int start = m_buffer.position();
+      int end = skip();
+      return decode(m_buffer, start, end);
+    }
+
+    public char nextChar() {
+      int start = m_buffer.position();
+      int end = skip();
+      if (end - start != 1) {
+        throw new IllegalStateException("malformed dirstate field at " + start);
+      }
+      return (char)m_buffer.get(start);
+    }
+
+    /**
+     * @return the end of the skipped field
+     */
+    public int skip() {
+      while (m_buffer.hasRemaining()) {
+        if (m_buffer.get() == 0) {
+          return m_buffer.position() - 1;
+        }
+      }
+      throw new IllegalStateException("truncated dirstate");
+    }
+
+    public void endOfLine() {
+      if (nextChar() != '\n') {
+        throw new IllegalStateException("malformed dirstate line end at " + m_buffer.position());
+      }
+    }
+  }
+
+  public static class Entry {
+
+    private final String m_path;
+    private final String m_fileId;
+    private final char m_kind;
+    private final long m_size;
+    private final boolean m_executable;
+    private final String m_packedStat;
+    private final String m_sha1;
+    private final char m_basisKind;
+    private final String m_basisSha1;
+
+    Entry(String path, String fileId, char kind, long size, boolean executable, String packedStat, String sha1,
+          char basisKind, String basisSha1) {
+      m_path = path;
+      m_fileId = fileId;
+      m_kind = kind;
+      m_size = size;
+      m_executable = executable;
+      m_packedStat = packedStat;
+      m_sha1 = sha1;
+      m_basisKind = basisKind;
+      m_basisSha1 = basisSha1;
+    }
+
+    public String getPath() {
+      return m_path;
+    }
+
+    public String getFileId() {
+      return m_fileId;
+    }
+
+    /**
+     * @return 'f' for files, 'd' for directories, 'l' for symlinks and 't' for tree references
+     */
+    public char getKind() {
+      return m_kind;
+    }
+
+    public long getSize() {
+      return m_size;
+    }
+
+    public boolean isExecutable() {
+      return m_executable;
+    }
+
+    public String getPackedStat() {
+      return m_packedStat;
+    }
+
+    /**
+     * @return the sha1 bzr cached for the file, or an empty string if it has none
+     */
+    public String getSha1() {
+      return m_sha1;
+    }
+
+    /**
+     * @return the sha1 of the file in the basis revision, or an empty string if it is not a file there
+     */
+    public String getBasisSha1() {
+      return m_basisSha1;
+    }
+
+    boolean isFileInBasis() {
+      return m_kind == 'f' && m_basisKind == 'f' && m_basisSha1.length() > 0;
+    }
+
+    /**
+     * @return true if bzr cached a stat and sha1 for the file, and the sha1 is the one of the basis revision
+     */
+    boolean isCleanInBasis() {
+      return isFileInBasis() && m_sha1.equals(m_basisSha1) && hasStat();
+    }
+
+    private boolean hasStat() {
+      return m_packedStat.length() == NULL_STAT.length() && !NULL_STAT.equals(m_packedStat);
+    }
+
+    /**
+     * @return the file size packed into the stat fingerprint
+     */
+    public long getStatSize() {
+      return unpackStat(0);
+    }
+
+    /**
+     * @return the modification time in seconds packed into the stat fingerprint
+     */
+    public long getStatMtime() {
+      return unpackStat(1);
+    }
+
+    /**
+     * The packed stat is the base64 encoding of six big-endian unsigned ints: size, mtime, ctime, dev, ino and
+     * mode.
+     */
+    private long unpackStat(int index) {
+      if (!hasStat()) {
+        return -1;
+      }
+      long value = 0;
+      // 4 bytes at offset index * 4 are covered by the base64 characters of the 3-byte groups around them
+      int firstByte = index * 4;
+      for (int i = firstByte; i < firstByte + 4; i++) {
+        value = (value << 8) | decodedByte(i);
+      }
+      return value;
+    }
+
+    private int decodedByte(int index) {
+      int group = index / 3;
+      int bits = 0;
+      for (int i = 0; i < 4; i++) {
+        bits = (bits << 6) | base64Value(m_packedStat.charAt(group * 4 + i));
+      }
+      return (bits >> (8 * (2 - index % 3))) & 0xff;
+    }
+
+    private static int base64Value(char ch) {
+      if (ch >= 'A' && ch <= 'Z') {
+        return ch - 'A';
+      }
+      if (ch >= 'a' && ch <= 'z') {
+        return ch - 'a' + 26;
+      }
+      if (ch >= '0' && ch <= '9') {
+        return ch - '0' + 52;
+      }
+      if (ch == '+') {
+        return 62;
+      }
+      if (ch == '/') {
+        return 63;
+      }
+      throw new IllegalStateException("bad packed stat: " + ch);
+    }
+  }
+}
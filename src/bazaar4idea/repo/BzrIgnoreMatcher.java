@@ -0,0 +1,386 @@
+package bazaar4idea.repo;
+
+import bazaar4idea.BzrGlobalSettings;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Tells whether bzr ignores a path of a working tree without running bzr, following the rules of bzrlib's globbing
+ * module: a pattern without a slash matches the name of a file in any directory, one with a slash (or starting with
+ * {@code ./}) matches the path from the root of the tree, {@code RE:} introduces a regular expression over that
+ * path, a pattern prefixed with {@code !} is an exception which keeps matching paths from being ignored and one
+ * prefixed with {@code !!} ignores matching paths even if an exception matches them too.
+ * <p/>
+ * The patterns are those of the .bzrignore of the tree and of the user's ignore file, or of the defaults bzr writes
+ * into the latter when it does not exist yet. Plain names and {@code *.ext} patterns, which make up most ignore
+ * files, are looked up in hash sets and the rest of each kind are combined into a single regular expression. The
+ * matcher of a tree is rebuilt when either file changes.
+ */
+public class BzrIgnoreMatcher {
+
+  private static final Logger LOG = Logger.getInstance(BzrIgnoreMatcher.class.getName());
+
+  public static final String BZRIGNORE_PATH = ".bzrignore";
+
+  /**
+   * What bzr writes into the user's ignore file when it creates it.
+   */
+  static final List<String> USER_DEFAULTS = Arrays.asList(
+      "*.a", "*.o", "*.py[co]", "*.so", "*.sw[nop]", "*~", ".#*", "[#]*#", "__pycache__", "bzr-orphans");
+
+  private static final ConcurrentMap<File, Loaded> sm_instances = new ConcurrentHashMap<File, Loaded>();
+
+  private final Group m_ignores = new Group();
+  private final Group m_exceptions = new Group();
+  private final Group m_forced = new Group();
+
+  private BzrIgnoreMatcher() {
+  }
+
+  /**
+   * @param root the root of the working tree
+   * @return the matcher for the current ignore files of the tree
+   */
+  public static BzrIgnoreMatcher getInstance(File root) {
+    File bzrignore = new File(root, BZRIGNORE_PATH);
+    File userIgnore = getUserIgnoreFile();
+    String stamp = getStamp(bzrignore) + ";" + getStamp(userIgnore);
+    Loaded loaded = sm_instances.get(root);
+    if (loaded == null || !loaded.m_stamp.equals(stamp)) {
+      List<String> patterns = new ArrayList<String>();
+      if (userIgnore.isFile()) {
+        patterns.addAll(read(userIgnore));
+      } else {
+        patterns.addAll(USER_DEFAULTS);
+      }
+      patterns.addAll(read(bzrignore));
+      loaded = new Loaded(compile(patterns), stamp);
+      sm_instances.put(root, loaded);
+    }
+    return loaded.m_matcher;
+  }
+
+  static BzrIgnoreMatcher compile(Collection<String> patterns) {
+    BzrIgnoreMatcher retval = new BzrIgnoreMatcher();
+    for (String pattern : patterns) {
+      if (pattern.startsWith("!!")) {
+        retval.m_forced.add(pattern.substring(2));
+      } else if (pattern.startsWith("!")) {
+        retval.m_exceptions.add(pattern.substring(1));
+      } else {
+        retval.m_ignores.add(pattern);
+      }
+    }
+    retval.m_ignores.compile();
+    retval.m_exceptions.compile();
+    retval.m_forced.compile();
+    return retval;
+  }
+
+  /**
+   * Matches the path itself, as bzr's {@code is_ignored} does, whatever the directories it is in.
+   *
+   * @param path the path from the root of the tree, with '/' separators
+   * @return true if the path is ignored
+   */
+  public boolean isIgnored(String path) {
+    if (m_forced.matches(path)) {
+      return true;
+    }
+    return !m_exceptions.matches(path) && m_ignores.matches(path);
+  }
+
+  /**
+   * Also treats the path as ignored if it is in an unversioned directory which is ignored, as bzr does not walk
+   * into those. Versioned directories are walked whatever their names, so the directories above the innermost
+   * versioned one are not matched.
+   *
+   * @param path the path from the root of the tree, with '/' separators
+   * @param dirState the dirstate of the tree, or null if it cannot be read, when only the path itself is matched
+   * @return true if the path is ignored, or unversioned under an ignored directory
+   */
+  public boolean isIgnoredInTree(String path, @Nullable BzrDirState dirState) {
+    if (isIgnored(path)) {
+      return true;
+    }
+    if (dirState == null) {
+      return false;
+    }
+    for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+      String dir = path.substring(0, slash);
+      if (dirState.getEntry(dir) != null) {
+        return false;
+      }
+      if (isIgnored(dir)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the ignore file in the bzr configuration directory of the user, which may not exist
+   */
+  static File getUserIgnoreFile() {
+    String bzrHome = BzrGlobalSettings.getInstance().getBzrEnvVar("BZR_HOME");
+    if (bzrHome == null) {
+      bzrHome = System.getenv("BZR_HOME");
+    }
+    if (SystemInfo.isWindows) {
+      String base = bzrHome != null ? bzrHome : System.getenv("APPDATA");
+      return new File(new File(new File(base, "bazaar"), "2.0"), "ignore");
+    }
+    String base = bzrHome != null ? bzrHome : System.getProperty("user.home");
+    return new File(new File(base, ".bazaar"), "ignore");
+  }
+
+  private static String getStamp(File file) {
+    return file.length() + ":" + file.lastModified();
+  }
+
+  private static List<String> read(File file) {
+    List<String> retval = new ArrayList<String>();
+    if (!file.isFile()) {
+      return retval;
+    }
+    try {
+      for (String line : FileUtil.loadFile(file, "UTF-8").split("\r\n|\r|\n")) {
+        if (line.length() > 0 && !line.startsWith("#")) {
+          retval.add(line);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("could not read " + file, e);
+    }
+    return retval;
+  }
+
+  /**
+   * Turns a glob into a regular expression over the path from the root of the tree.
+   */
+  private static String translate(String pattern) {
+    if (pattern.startsWith("RE:")) {
+      return pattern.substring(3);
+    }
+    if (pattern.indexOf('/') >= 0) {
+      while (pattern.startsWith("./") || pattern.startsWith("/")) {
+        pattern = pattern.substring(pattern.charAt(0) == '/' ? 1 : 2);
+      }
+      return translateGlob(pattern, true);
+    }
+    return "(?:.*/)?(?!.*/)" + translateGlob(pattern, false);
+  }
+
+  /**
+   * @param fullPath true if wildcards stay within one directory, false if the pattern is matched against a name
+   */
+  private static String translateGlob(String glob, boolean fullPath) {
+    StringBuilder retval = new StringBuilder();
+    int i = 0;
+    while (i < glob.length()) {
+      char c = glob.charAt(i);
+      if (c == '*') {
+        int end = i;
+        while (end < glob.length() && glob.charAt(end) == '*') {
+          end++;
+        }
+        boolean atSegmentStart = i == 0 || glob.charAt(i - 1) == '/';
+        if (fullPath && end - i > 1 && atSegmentStart && end < glob.length() && glob.charAt(end) == '/') {
+          // "**/" matches any number of directories, including none
+          retval.append("(?:.*/)?");
+          i = end + 1;
+          continue;
+        }
+        retval.append(fullPath ? "[^/]*" : ".*");
+        i = end;
+      } else if (c == '?') {
+        retval.append(fullPath ? "[^/]" : ".");
+        i++;
+      } else if (c == '[' && findClassEnd(glob, i) > 0) {
+        int end = findClassEnd(glob, i);
+        retval.append(translateClass(glob.substring(i + 1, end)));
+        i = end + 1;
+      } else {
+        retval.append(Pattern.quote(String.valueOf(c)));
+        i++;
+      }
+    }
+    return retval.toString();
+  }
+
+  /**
+   * @return the index of the ']' closing the character class opened at start, or -1 if it is not closed
+   */
+  private static int findClassEnd(String glob, int start) {
+    int i = start + 1;
+    if (i < glob.length() && (glob.charAt(i) == '!' || glob.charAt(i) == '^')) {
+      i++;
+    }
+    if (i < glob.length() && glob.charAt(i) == ']') {
+      i++;
+    }
+    while (i < glob.length()) {
+      if (glob.startsWith("[:", i)) {
+        int end = glob.indexOf(":]", i + 2);
+        if (end > 0) {
+          i = end + 2;
+          continue;
+        }
+      }
+      if (glob.charAt(i) == ']') {
+        return i;
+      }
+      i++;
+    }
+    return -1;
+  }
+
+  private static String translateClass(String body) {
+    StringBuilder retval = new StringBuilder("[");
+    int i = 0;
+    if (body.startsWith("!") || body.startsWith("^")) {
+      retval.append('^');
+      i++;
+    }
+    while (i < body.length()) {
+      if (body.startsWith("[:", i)) {
+        int end = body.indexOf(":]", i + 2);
+        if (end > 0) {
+          retval.append(translateNamedClass(body.substring(i + 2, end)));
+          i = end + 2;
+          continue;
+        }
+      }
+      char c = body.charAt(i);
+      if (c == '\\' || c == '[' || c == ']' || c == '&' || c == '^') {
+        retval.append('\\');
+      }
+      retval.append(c);
+      i++;
+    }
+    return retval.append(']').toString();
+  }
+
+  private static String translateNamedClass(String name) {
+    if ("alnum".equals(name)) {
+      return "\\p{Alnum}";
+    } else if ("alpha".equals(name)) {
+      return "\\p{Alpha}";
+    } else if ("digit".equals(name)) {
+      return "\\d";
+    } else if ("space".equals(name)) {
+      return "\\s";
+    } else if ("upper".equals(name)) {
+      return "\\p{Upper}";
+    } else if ("lower".equals(name)) {
+      return "\\p{Lower}";
+    } else if ("punct".equals(name)) {
+      return "\\p{Punct}";
+    } else if ("ascii".equals(name)) {
+      return "\\p{ASCII}";
+    }
+    return Pattern.quote("[:" + name + ":]");
+  }
+
+  private static boolean isLiteral(String glob) {
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?' || c == '[') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The patterns of one kind: ignores, exceptions or forced ignores.
+   */
+  private static class Group {
+
+    private final Set<String> m_names = new HashSet<String>();
+    private final Set<String> m_extensions = new HashSet<String>();
+    private final List<String> m_regexes = new ArrayList<String>();
+    private Pattern m_pattern;
+
+    private void add(String pattern) {
+      if (!pattern.startsWith("RE:")) {
+        pattern = pattern.replaceAll("[\\\\/]+", "/");
+        if (pattern.length() > 1 && pattern.endsWith("/")) {
+          pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.indexOf('/') < 0) {
+          if (isLiteral(pattern)) {
+            m_names.add(pattern);
+            return;
+          }
+          if (pattern.startsWith("*.") && isLiteral(pattern.substring(2))) {
+            m_extensions.add(pattern.substring(2));
+            return;
+          }
+        }
+      }
+      String regex = translate(pattern);
+      try {
+        Pattern.compile(regex);
+        m_regexes.add(regex);
+      } catch (PatternSyntaxException e) {
+        LOG.debug("ignoring invalid ignore pattern " + pattern, e);
+      }
+    }
+
+    private void compile() {
+      if (m_regexes.isEmpty()) {
+        return;
+      }
+      StringBuilder combined = new StringBuilder();
+      for (String regex : m_regexes) {
+        if (combined.length() > 0) {
+          combined.append('|');
+        }
+        combined.append("(?:").append(regex).append(')');
+      }
+      m_pattern = Pattern.compile(combined.toString());
+    }
+
+    private boolean matches(String path) {
+      String name = path.substring(path.lastIndexOf('/') + 1);
+      if (m_names.contains(name)) {
+        return true;
+      }
+      if (!m_extensions.isEmpty()) {
+        for (int dot = name.indexOf('.'); dot >= 0; dot = name.indexOf('.', dot + 1)) {
+          if (m_extensions.contains(name.substring(dot + 1))) {
+            return true;
+          }
+        }
+      }
+      return m_pattern != null && m_pattern.matcher(path).matches();
+    }
+  }
+
+  private static class Loaded {
+
+    private final BzrIgnoreMatcher m_matcher;
+    private final String m_stamp;
+
+    private Loaded(BzrIgnoreMatcher matcher, String stamp) {
+      m_matcher = matcher;
+      m_stamp = stamp;
+    }
+  }
+}
@@ -0,0 +1,256 @@
+package bazaar4idea.repo;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.changes.VcsDirtyScopeManager;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Turns bursts of requests for a full change list refresh of a root, as fired by a branch switch, a pull or a
+ * build, into a single {@link VcsDirtyScopeManager#dirDirtyRecursively} once the requests have stopped for a
+ * while. The quiet period adapts to how long the last full refresh of the root took, and is cut short after
+ * {@link #MAX_DELAY} so that a steady stream of requests cannot postpone the refresh forever.
+ * <p/>
+ * The requests come from the change provider, when the VFS reports a change to one of the bzr files describing
+ * the state of the tree. The requested refresh is dropped if none of those files has changed since the last full
+ * refresh started, and the change provider runs at most {@link #MAX_CONCURRENT_FULL_REFRESHES} full scans at once.
+ */
+public class BzrRefreshCoordinator {
+
+  private static final Logger LOG = Logger.getInstance(BzrRefreshCoordinator.class.getName());
+
+  private static final long MIN_QUIET_PERIOD = 100;
+  private static final long MAX_QUIET_PERIOD = 1000;
+  private static final long MAX_DELAY = 5000;
+
+  /**
+   * As many as the roots the change provider refreshes in parallel, so that every refresh thread may be scanning;
+   * refreshes which only replay the last scan of a root, or only look at some of its files, take no permit.
+   */
+  public static final int MAX_CONCURRENT_FULL_REFRESHES = 8;
+
+  /**
+   * The files which bzr rewrites whenever the versioned state of the tree, its basis revision or the set of ignored
+   * files changes.
+   */
+  private static final String LAST_REVISION_PATH = ".bzr/branch/last-revision";
+
+  private static final String[] FINGERPRINT_PATHS = {
+      BzrDirState.DIRSTATE_PATH, ".bzr/checkout/conflicts", ".bzr/checkout/merge-hashes", LAST_REVISION_PATH,
+      ".bzrignore"};
+
+  /**
+   * Enough for the header of a dirstate and the contents of last-revision.
+   */
+  static final int FINGERPRINT_HEAD_LENGTH = 128;
+
+  private static final BzrRefreshCoordinator INSTANCE = new BzrRefreshCoordinator();
+
+  private final Timer m_timer = new Timer("bzr refresh coordinator", true);
+  private final Map<File, RootState> m_roots = new HashMap<File, RootState>();
+  private final Semaphore m_fullRefreshes = new Semaphore(MAX_CONCURRENT_FULL_REFRESHES, true);
+
+  private BzrRefreshCoordinator() {
+  }
+
+  public static BzrRefreshCoordinator getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Marks the root recursively dirty once the current burst of requests for it is over.
+   */
+  public void requestFullRefresh(Project project, VirtualFile root) {
+    long now = System.currentTimeMillis();
+    synchronized (this) {
+      RootState state = getState(VfsUtil.virtualToIoFile(root));
+      state.m_project = project;
+      state.m_vcsRoot = root;
+      state.m_lastRequest = now;
+      if (state.m_firstRequest == 0) {
+        state.m_firstRequest = now;
+        schedule(state, state.getQuietPeriod());
+      }
+    }
+  }
+
+  /**
+   * @param path the path of a file, with '/' separators
+   * @return the path of the tree whose state the file describes, or null if it is not such a file
+   */
+  @Nullable
+  public static String getStateFileRoot(String path) {
+    for (String statePath : FINGERPRINT_PATHS) {
+      if (path.endsWith(statePath) && path.length() > statePath.length()
+          && path.charAt(path.length() - statePath.length() - 1) == '/') {
+        return path.substring(0, path.length() - statePath.length() - 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Loads the state files of the tree into the VFS, which only reports changes to files it has loaded.
+   */
+  public static void watchStateFiles(File root) {
+    LocalFileSystem lfs = LocalFileSystem.getInstance();
+    for (String path : FINGERPRINT_PATHS) {
+      lfs.refreshAndFindFileByIoFile(new File(root, path));
+    }
+  }
+
+  /**
+   * To be called before the change provider scans the whole root. Waits while too many full refreshes are running.
+   *
+   * @return the token to pass to {@link #fullRefreshFinished}
+   */
+  public FullRefresh fullRefreshStarted(File root) throws InterruptedException {
+    m_fullRefreshes.acquire();
+    return new FullRefresh(root, getFingerprint(root));
+  }
+
+  /**
+   * @param completed true if the refresh reported the whole state of the root
+   */
+  public void fullRefreshFinished(FullRefresh refresh, boolean completed) {
+    m_fullRefreshes.release();
+    if (!completed) {
+      return;
+    }
+    synchronized (this) {
+      RootState state = getState(refresh.m_root);
+      state.m_lastFingerprint = refresh.m_fingerprint;
+      state.m_lastDuration = System.currentTimeMillis() - refresh.m_started;
+    }
+  }
+
+  private RootState getState(File root) {
+    RootState retval = m_roots.get(root);
+    if (retval == null) {
+      retval = new RootState(root);
+      m_roots.put(root, retval);
+    }
+    return retval;
+  }
+
+  private void schedule(final RootState state, long delay) {
+    m_timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        fire(state);
+      }
+    }, delay);
+  }
+
+  private void fire(RootState state) {
+    Project project;
+    VirtualFile vcsRoot;
+    String lastFingerprint;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      long due = Math.min(state.m_lastRequest + state.getQuietPeriod(), state.m_firstRequest + MAX_DELAY);
+      if (now < due) {
+        schedule(state, due - now);
+        return;
+      }
+      state.m_firstRequest = 0;
+      project = state.m_project;
+      vcsRoot = state.m_vcsRoot;
+      lastFingerprint = state.m_lastFingerprint;
+    }
+    if (project.isDisposed()) {
+      return;
+    }
+    if (getFingerprint(state.m_root).equals(lastFingerprint)) {
+      LOG.debug(String.format("no refresh of \"%s\": unchanged since the last one", state.m_root));
+      return;
+    }
+    VcsDirtyScopeManager.getInstance(project).dirDirtyRecursively(vcsRoot);
+  }
+
+  /**
+   * @return a string which changes whenever bzr changes the versioned state of the working tree, its basis revision
+   *         or the set of ignored files: the size and modification time of the files bzr keeps that state in, the
+   *         header of the dirstate (which holds its checksum) and the last revision of the branch
+   */
+  public static String getFingerprint(File root) {
+    StringBuilder retval = new StringBuilder();
+    for (String path : FINGERPRINT_PATHS) {
+      File file = new File(root, path);
+      retval.append(file.length()).append(':').append(file.lastModified()).append(';');
+    }
+    retval.append(readHead(new File(root, BzrDirState.DIRSTATE_PATH))).append(';');
+    retval.append(readHead(new File(root, LAST_REVISION_PATH)));
+    return retval.toString();
+  }
+
+  /**
+   * @return the first {@link #FINGERPRINT_HEAD_LENGTH} bytes of the file, or an empty string if it cannot be read
+   */
+  static String readHead(File file) {
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        byte[] buf = new byte[FINGERPRINT_HEAD_LENGTH];
+        int len = 0;
+        int read;
+        while (len < buf.length && (read = in.read(buf, len, buf.length - len)) > 0) {
+          len += read;
+        }
+        return new String(buf, 0, len, "ISO-8859-1");
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return "";
+    }
+  }
+
+  public static class FullRefresh {
+
+    private final File m_root;
+    private final String m_fingerprint;
+    private final long m_started = System.currentTimeMillis();
+
+    private FullRefresh(File root, String fingerprint) {
+      m_root = root;
+      m_fingerprint = fingerprint;
+    }
+  }
+
+  private static class RootState {
+
+    private final File m_root;
+    private Project m_project;
+    private VirtualFile m_vcsRoot;
+    private long m_firstRequest;
+    private long m_lastRequest;
+    private long m_lastDuration;
+    private String m_lastFingerprint;
+
+    private RootState(File root) {
+      m_root = root;
+    }
+
+    /**
+     * @return how long requests have to stop for before the refresh is started: half as long as the last full
+     *         refresh took, so that roots which are expensive to refresh wait longer for a burst to end
+     */
+    private long getQuietPeriod() {
+      return Math.max(MIN_QUIET_PERIOD, Math.min(MAX_QUIET_PERIOD, m_lastDuration / 2));
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package bazaar4idea.repo;
+
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VfsUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.emergent.bzr4j.core.BazaarRoot;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The Bazaar roots of a project arranged as a trie of path segments, answering which root owns a path and which
+ * roots are nested under a root in time proportional to the depth of the path rather than to the number of roots.
+ * <p/>
+ * An index is never modified once built; when the root mapping changes a new one is built and swapped in, so that
+ * refreshes already running keep the one they started with.
+ */
+public class BzrRootIndex {
+
+  private final Node m_top;
+
+  private BzrRootIndex(Node top) {
+    m_top = top;
+  }
+
+  public static BzrRootIndex build(VirtualFile[] roots) {
+    Node top = new Node();
+    for (VirtualFile root : roots) {
+      Node node = top;
+      for (String segment : split(root.getPath())) {
+        Node child = node.m_children.get(segment);
+        if (child == null) {
+          child = new Node();
+          node.m_children.put(segment, child);
+        }
+        node = child;
+      }
+      node.m_root = root;
+      BazaarRoot branch = BazaarRoot.findBranchLocation(VfsUtil.virtualToIoFile(root));
+      node.m_branch = branch != null ? branch.getFile() : null;
+    }
+    return new BzrRootIndex(top);
+  }
+
+  /**
+   * @return the innermost root the path is under, or is
+   */
+  @Nullable
+  public VirtualFile getRootFor(FilePath path) {
+    VirtualFile retval = m_top.m_root;
+    Node node = m_top;
+    for (String segment : split(path.getPath())) {
+      node = node.m_children.get(segment);
+      if (node == null) {
+        break;
+      }
+      if (node.m_root != null) {
+        retval = node.m_root;
+      }
+    }
+    return retval;
+  }
+
+  /**
+   * @return the branches of the roots nested under the root, other than the branch of the root itself
+   */
+  public Set<File> getNestedBranches(VirtualFile root) {
+    Node node = find(root);
+    if (node == null) {
+      return Collections.emptySet();
+    }
+    Set<File> retval = new HashSet<File>();
+    List<Node> pending = new ArrayList<Node>(node.m_children.values());
+    while (!pending.isEmpty()) {
+      Node child = pending.remove(pending.size() - 1);
+      if (child.m_branch != null && !child.m_branch.equals(node.m_branch)) {
+        retval.add(child.m_branch);
+      }
+      pending.addAll(child.m_children.values());
+    }
+    return retval;
+  }
+
+  @Nullable
+  private Node find(VirtualFile root) {
+    Node node = m_top;
+    for (String segment : split(root.getPath())) {
+      node = node.m_children.get(segment);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  private static List<String> split(String path) {
+    List<String> retval = new ArrayList<String>();
+    for (String segment : path.split("/")) {
+      if (segment.length() > 0) {
+        retval.add(SystemInfo.isFileSystemCaseSensitive ? segment : segment.toLowerCase());
+      }
+    }
+    return retval;
+  }
+
+  private static class Node {
+
+    private final Map<String, Node> m_children = new HashMap<String, Node>();
+    private VirtualFile m_root;
+    private File m_branch;
+  }
+}
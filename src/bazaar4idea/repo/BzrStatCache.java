@@ -0,0 +1,363 @@
+package bazaar4idea.repo;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.ShutDownTracker;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The sha1 of the last known content of the files of a working tree, with the size and modification time the
+ * file had when it was hashed, so that a file whose modification time changed without its content changing
+ * (after a branch switch, a pull or a build step) is only hashed once.
+ * <p/>
+ * Kept per root in the IDE system directory as a binary log of records, which is appended to as files are hashed
+ * and compacted when it has grown to several times the number of files it describes.
+ */
+public class BzrStatCache {
+
+  private static final Logger LOG = Logger.getInstance(BzrStatCache.class.getName());
+
+  private static final int MAGIC = 0x425a5343; // "BZSC"
+  private static final int VERSION = 1;
+  private static final int SHA1_LENGTH = 20;
+  private static final int COMPACT_FACTOR = 3;
+
+  /**
+   * Files modified this recently may still be being written to within the same second, so their hashes are not
+   * kept. bzr uses the same cutoff for its own stat cache.
+   */
+  private static final long MIN_AGE_MILLIS = 3000;
+
+  private static final int HASH_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+  private static final ExecutorService sm_hashExecutor = Executors.newFixedThreadPool(HASH_THREADS,
+      new ThreadFactory() {
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+          Thread retval = new Thread(r, "bzr stat cache " + m_count.incrementAndGet());
+          retval.setDaemon(true);
+          return retval;
+        }
+      });
+
+  private static final ConcurrentMap<File, BzrStatCache> sm_instances = new ConcurrentHashMap<File, BzrStatCache>();
+
+  static {
+    ShutDownTracker.getInstance().registerShutdownTask(new Runnable() {
+      public void run() {
+        for (BzrStatCache cache : sm_instances.values()) {
+          cache.close();
+        }
+      }
+    });
+  }
+
+  private final File m_root;
+  private final File m_file;
+  private final Map<String, Record> m_records = new HashMap<String, Record>();
+  private DataOutputStream m_out;
+  private int m_recordsInFile;
+  private boolean m_loaded;
+  private boolean m_broken;
+
+  BzrStatCache(File root, File file) {
+    m_root = root;
+    m_file = file;
+  }
+
+  /**
+   * @param root the root of the working tree, as returned by {@link BzrRepository#getRoot()}
+   */
+  public static BzrStatCache getInstance(File root) {
+    BzrStatCache retval = sm_instances.get(root);
+    if (retval == null) {
+      File dir = new File(new File(PathManager.getSystemPath(), "bazaar4idea"), "statcache");
+      String name = root.getName() + "." + Integer.toHexString(root.getAbsolutePath().hashCode());
+      retval = new BzrStatCache(root, new File(dir, name));
+      BzrStatCache existing = sm_instances.putIfAbsent(root, retval);
+      if (existing != null) {
+        retval = existing;
+      }
+    }
+    return retval;
+  }
+
+  public File getRoot() {
+    return m_root;
+  }
+
+  /**
+   * Hashes the given files in parallel, reusing the hashes of files that have not been touched since they were
+   * last hashed.
+   *
+   * @param paths paths relative to the root, with '/' separators
+   * @return the sha1 of each file that could be read, in hex
+   */
+  public Map<String, String> getSha1s(Collection<String> paths) {
+    Map<String, String> retval = new HashMap<String, String>();
+    List<String> toHash = new ArrayList<String>();
+    synchronized (this) {
+      load();
+      for (String path : paths) {
+        File file = new File(m_root, path);
+        Record record = m_records.get(path);
+        if (record != null && record.m_size == file.length() && record.m_mtime == file.lastModified()) {
+          retval.put(path, record.m_sha1);
+        } else {
+          toHash.add(path);
+        }
+      }
+    }
+    if (toHash.isEmpty()) {
+      return retval;
+    }
+
+    List<Future<Record>> futures = new ArrayList<Future<Record>>(toHash.size());
+    for (final String path : toHash) {
+      futures.add(sm_hashExecutor.submit(new Callable<Record>() {
+        public Record call() throws Exception {
+          return hash(path);
+        }
+      }));
+    }
+    List<Record> hashed = new ArrayList<Record>(futures.size());
+    try {
+      for (Future<Record> future : futures) {
+        try {
+          Record record = future.get();
+          if (record != null) {
+            hashed.add(record);
+            retval.put(record.m_path, record.m_sha1);
+          }
+        } catch (ExecutionException e) {
+          LOG.debug(e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (Future<Record> future : futures) {
+        future.cancel(true);
+      }
+    }
+    store(hashed);
+    return retval;
+  }
+
+  @Nullable
+  private Record hash(String path) throws IOException {
+    File file = new File(m_root, path);
+    long size = file.length();
+    long mtime = file.lastModified();
+    if (mtime == 0 || !file.isFile()) {
+      return null;
+    }
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buf = new byte[65536];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        digest.update(buf, 0, len);
+      }
+    } finally {
+      in.close();
+    }
+    if (file.length() != size || file.lastModified() != mtime) {
+      // changed while it was being read
+      return null;
+    }
+    return new Record(path, size, mtime, toHex(digest.digest()));
+  }
+
+  private synchronized void store(List<Record> records) {
+    long cutoff = System.currentTimeMillis() - MIN_AGE_MILLIS;
+    List<Record> toStore = new ArrayList<Record>(records.size());
+    for (Record record : records) {
+      if (record.m_mtime <= cutoff) {
+        toStore.add(record);
+      }
+    }
+    if (toStore.isEmpty()) {
+      return;
+    }
+    try {
+      DataOutputStream out = getOutput();
+      for (Record record : toStore) {
+        m_records.put(record.m_path, record);
+        write(out, record);
+        m_recordsInFile++;
+      }
+      out.flush();
+      if (m_recordsInFile > COMPACT_FACTOR * m_records.size() + 1000) {
+        compact();
+      }
+    } catch (IOException e) {
+      LOG.info("Could not write " + m_file, e);
+      close();
+    }
+  }
+
+  private void load() {
+    if (m_loaded) {
+      return;
+    }
+    m_loaded = true;
+    if (!m_file.isFile()) {
+      return;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+      try {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+          LOG.debug("ignoring stat cache of unknown format: " + m_file);
+          m_broken = true;
+          return;
+        }
+        byte[] sha1 = new byte[SHA1_LENGTH];
+        while (true) {
+          String path;
+          try {
+            path = in.readUTF();
+          } catch (EOFException e) {
+            break;
+          }
+          long size = in.readLong();
+          long mtime = in.readLong();
+          in.readFully(sha1);
+          m_records.put(path, new Record(path, size, mtime, toHex(sha1)));
+          m_recordsInFile++;
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // a record cut short by a crash; what was read before it is still good
+      LOG.debug("stat cache truncated: " + m_file, e);
+      m_broken = true;
+    }
+  }
+
+  private DataOutputStream getOutput() throws IOException {
+    if (m_out == null) {
+      if (!m_file.isFile() || m_broken) {
+        // start over rather than append to a file of another format or with a broken record at its end
+        writeFile(m_records.values());
+        m_recordsInFile = m_records.size();
+        m_broken = false;
+      }
+      m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_file, true)));
+    }
+    return m_out;
+  }
+
+  private void compact() throws IOException {
+    close();
+    writeFile(m_records.values());
+    m_recordsInFile = m_records.size();
+  }
+
+  private void writeFile(Collection<Record> records) throws IOException {
+    File dir = m_file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    File tmp = new File(dir, m_file.getName() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (Record record : records) {
+        write(out, record);
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(m_file)) {
+      m_file.delete();
+      if (!tmp.renameTo(m_file)) {
+        throw new IOException("Could not write " + m_file);
+      }
+    }
+  }
+
+  private static void write(DataOutputStream out, Record record) throws IOException {
+    out.writeUTF(record.m_path);
+    out.writeLong(record.m_size);
+    out.writeLong(record.m_mtime);
+    out.write(fromHex(record.m_sha1));
+  }
+
+  synchronized void close() {
+    if (m_out != null) {
+      try {
+        m_out.close();
+      } catch (IOException ignored) {
+      }
+      m_out = null;
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder retval = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      retval.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return retval.toString();
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] retval = new byte[hex.length() / 2];
+    for (int i = 0; i < retval.length; i++) {
+      retval[i] = (byte)Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return retval;
+  }
+
+  private static class Record {
+
+    private final String m_path;
+    private final long m_size;
+    private final long m_mtime;
+    private final String m_sha1;
+
+    private Record(String path, long size, long mtime, String sha1) {
+      m_path = path;
+      m_size = size;
+      m_mtime = mtime;
+      m_sha1 = sha1;
+    }
+  }
+}
@@ -17,6 +17,7 @@ package bazaar4idea.repo;
 
 import bazaar4idea.BzrUtil;
 import bazaar4idea.command.Bzr;
+import bazaar4idea.util.BzrFlightRecorder;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
@@ -181,7 +182,13 @@ public class BzrUntrackedFilesHolder implements Disposable, BulkFileListener {
    * Resets the list of untracked files after retrieving the full list of them from Git.
    */
   public void rescanAll() throws VcsException {
-    Set<VirtualFile> untrackedFiles = myBzr.untrackedFiles(myProject, myRoot, null);
+    BzrFlightRecorder.Event event = BzrFlightRecorder.begin(BzrFlightRecorder.REFRESH, "rescanAll", myRoot.getPath(), 0);
+    Set<VirtualFile> untrackedFiles = Collections.emptySet();
+    try {
+      untrackedFiles = myBzr.untrackedFiles(myProject, myRoot, null);
+    } finally {
+      event.commit(untrackedFiles.size());
+    }
     synchronized (myDefinitelyUntrackedFiles) {
       myDefinitelyUntrackedFiles.clear();
       myDefinitelyUntrackedFiles.addAll(untrackedFiles);
@@ -254,7 +261,7 @@ public class BzrUntrackedFilesHolder implements Disposable, BulkFileListener {
     // if index has changed, no need to refresh specific files - we get the full status of all files
     if (allChanged) {
       LOG.info(String.format("GitUntrackedFilesHolder: Index has changed, marking %s recursively dirty", myRoot));
-      myDirtyScopeManager.dirDirtyRecursively(myRoot);
+      BzrRefreshCoordinator.getInstance().requestFullRefresh(myProject, myRoot);
       synchronized (LOCK) {
         myReady = false;
       }
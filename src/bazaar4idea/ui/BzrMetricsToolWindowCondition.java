@@ -0,0 +1,18 @@
+package bazaar4idea.ui;
+
+import bazaar4idea.BzrVcs;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.vcs.ProjectLevelVcsManager;
+
+/**
+ * Shows the metrics tool window only in projects with Bazaar roots, or to everyone in internal mode.
+ */
+public class BzrMetricsToolWindowCondition implements Condition<Project> {
+
+  public boolean value(Project project) {
+    return ApplicationManager.getApplication().isInternal()
+        || ProjectLevelVcsManager.getInstance(project).checkVcsIsActive(BzrVcs.NAME);
+  }
+}
@@ -0,0 +1,92 @@
+package bazaar4idea.ui;
+
+import bazaar4idea.command.BzrExecMetrics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * Shows the bzr execution metrics recorded by {@link BzrExecMetrics}: latency percentiles per command and root,
+ * scheduler statistics and the slowest recent invocations.
+ */
+public class BzrMetricsToolWindowFactory implements ToolWindowFactory {
+
+  private static final int REFRESH_INTERVAL = 5000;
+
+  public void createToolWindowContent(Project project, ToolWindow toolWindow) {
+    final JTextArea text = new JTextArea();
+    text.setEditable(false);
+    text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, text.getFont().getSize()));
+
+    final Runnable refresh = new Runnable() {
+      public void run() {
+        BzrExecMetrics metrics = BzrExecMetrics.getInstance();
+        StringBuilder builder = new StringBuilder();
+        builder.append("Invocations: ").append(metrics.getInvocationCount()).append("\n\n");
+        append(builder, "Commands", metrics.getCommandSummaries());
+        append(builder, "Scheduler", metrics.getSchedulerStatistics());
+        append(builder, "Slowest invocations", metrics.getSlowestInvocations());
+        text.setText(builder.toString());
+        text.setCaretPosition(0);
+      }
+    };
+
+    JButton refreshButton = new JButton("Refresh");
+    refreshButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        refresh.run();
+      }
+    });
+    JButton resetButton = new JButton("Reset");
+    resetButton.addActionListener(new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        BzrExecMetrics.getInstance().reset();
+        refresh.run();
+      }
+    });
+    JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+    buttons.add(refreshButton);
+    buttons.add(resetButton);
+
+    final JPanel panel = new JPanel(new BorderLayout());
+    panel.add(buttons, BorderLayout.NORTH);
+    panel.add(new JBScrollPane(text), BorderLayout.CENTER);
+
+    // refresh periodically while the tool window is showing, until its content is disposed with the project
+    final Timer timer = new Timer(REFRESH_INTERVAL, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        if (panel.isShowing()) {
+          refresh.run();
+        }
+      }
+    });
+    timer.start();
+    refresh.run();
+
+    Content content = ContentFactory.SERVICE.getInstance().createContent(panel, "", false);
+    Disposer.register(content, new Disposable() {
+      public void dispose() {
+        timer.stop();
+      }
+    });
+    toolWindow.getContentManager().addContent(content);
+  }
+
+  private static void append(StringBuilder builder, String title, String[] lines) {
+    builder.append(title).append(":\n");
+    for (String line : lines) {
+      builder.append("  ").append(line).append("\n");
+    }
+    builder.append("\n");
+  }
+}
@@ -18,17 +18,22 @@ package bazaar4idea.util;
 import bazaar4idea.BzrUtil;
 import bazaar4idea.command.BzrCommand;
 import bazaar4idea.command.BzrSimpleHandler;
+import bazaar4idea.repo.BzrDirState;
+import bazaar4idea.repo.BzrIgnoreMatcher;
 import bazaar4idea.repo.BzrRepository;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.SystemInfo;
-import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
+import com.intellij.openapi.vfs.VfsUtil;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.vcsUtil.VcsFileUtil;
+import org.emergent.bzr4j.core.BazaarRoot;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.*;
 
 /**
@@ -163,20 +168,25 @@ public class BzrFileUtils {
     }
   }
 
+  /**
+   * Leaves out the paths ignored by the working tree of the root, matching them against its ignore patterns rather
+   * than asking bzr.
+   */
   @NotNull
   private static List<String> excludeIgnoredFiles(@NotNull Project project, @NotNull VirtualFile root,
                                                   @NotNull List<String> paths) throws VcsException {
-    BzrSimpleHandler handler = new BzrSimpleHandler(project, root, BzrCommand.LS_FILES);
-    handler.setSilent(true);
-    handler.addParameters("--recursive", "--unknown");
-    handler.endOptions();
-    handler.addParameters(paths);
-    String output = handler.run();
+    File ioRoot = VfsUtil.virtualToIoFile(root);
+    BazaarRoot bzrRoot = BazaarRoot.findBranchLocation(ioRoot);
+    if (bzrRoot == null) {
+      return paths;
+    }
+    BzrIgnoreMatcher matcher = BzrIgnoreMatcher.getInstance(bzrRoot.getFile());
+    BzrDirState dirState = BzrDirState.getInstance(bzrRoot.getFile());
 
     List<String> nonIgnoredFiles = new ArrayList<String>(paths.size());
-    Set<String> ignoredPaths = new HashSet<String>(Arrays.asList(StringUtil.splitByLines(output)));
     for (String pathToCheck : paths) {
-      if (!ignoredPaths.contains(pathToCheck)) {
+      String relpath = BzrUtil.relativePath(bzrRoot.getFile(), new File(ioRoot, pathToCheck));
+      if (!matcher.isIgnoredInTree(FileUtil.toSystemIndependentName(relpath), dirState)) {
         nonIgnoredFiles.add(pathToCheck);
       }
     }
@@ -0,0 +1,187 @@
+package bazaar4idea.util;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Emits Java Flight Recorder events for bzr work, so that a recording can attribute IDE freezes and CPU time to
+ * specific commands and refreshes. The plugin is built for JDKs without {@code jdk.jfr}, so the event types are
+ * defined at runtime through {@code jdk.jfr.EventFactory} by reflection; when that API is missing, or recording is
+ * off, every call is a cheap no-op.
+ * <p/>
+ * Each event carries the operation (the bzr subcommand, or the name of the refresh), the root, the argument
+ * count and the output size; duration and thread come with every JFR event.
+ */
+public final class BzrFlightRecorder {
+
+  private static final Logger LOG = Logger.getInstance(BzrFlightRecorder.class.getName());
+
+  public static final EventType COMMAND = new EventType("bazaar4idea.BzrCommand", "Bazaar Command",
+      "An invocation of the bzr executable or a pooled bzr worker");
+  public static final EventType REFRESH = new EventType("bazaar4idea.BzrRefresh", "Bazaar Refresh",
+      "A change list or untracked files refresh of a Bazaar root");
+
+  private static final int OPERATION = 0;
+  private static final int ROOT = 1;
+  private static final int ARGUMENT_COUNT = 2;
+  private static final int OUTPUT_SIZE = 3;
+
+  private static final Event NO_EVENT = new Event(null);
+
+  private BzrFlightRecorder() {
+  }
+
+  /**
+   * Starts timing an event. The event is only recorded once {@link Event#commit} is called.
+   */
+  public static Event begin(EventType type, String operation, @Nullable Object root, int argumentCount) {
+    Object event = type.newEvent();
+    if (event == null) {
+      return NO_EVENT;
+    }
+    try {
+      Reflection.SET.invoke(event, OPERATION, operation);
+      Reflection.SET.invoke(event, ROOT, root != null ? root.toString() : null);
+      Reflection.SET.invoke(event, ARGUMENT_COUNT, argumentCount);
+      Reflection.BEGIN.invoke(event);
+    } catch (Exception e) {
+      LOG.debug(e);
+      return NO_EVENT;
+    }
+    return new Event(event);
+  }
+
+  public static class Event {
+
+    @Nullable private final Object m_event;
+
+    private Event(@Nullable Object event) {
+      m_event = event;
+    }
+
+    /**
+     * Ends the event and records it.
+     *
+     * @param outputSize bytes of output read by commands, or untracked files found by refreshes; 0 if not known
+     */
+    public void commit(long outputSize) {
+      if (m_event == null) {
+        return;
+      }
+      try {
+        Reflection.SET.invoke(m_event, OUTPUT_SIZE, outputSize);
+        Reflection.END.invoke(m_event);
+        Reflection.COMMIT.invoke(m_event);
+      } catch (Exception e) {
+        LOG.debug(e);
+      }
+    }
+  }
+
+  public static class EventType {
+
+    private final String m_name;
+    private final String m_label;
+    private final String m_description;
+    private volatile Object m_factory;
+    private volatile boolean m_failed;
+
+    private EventType(String name, String label, String description) {
+      m_name = name;
+      m_label = label;
+      m_description = description;
+    }
+
+    @Nullable
+    private Object newEvent() {
+      if (m_failed || !Reflection.AVAILABLE) {
+        return null;
+      }
+      try {
+        Object event = Reflection.NEW_EVENT.invoke(getFactory());
+        return Boolean.TRUE.equals(Reflection.IS_ENABLED.invoke(event)) ? event : null;
+      } catch (Exception e) {
+        LOG.debug(e);
+        m_failed = true;
+        return null;
+      }
+    }
+
+    private Object getFactory() throws Exception {
+      if (m_factory == null) {
+        synchronized (this) {
+          if (m_factory == null) {
+            List<Object> annotations = Arrays.asList(
+                Reflection.annotation("jdk.jfr.Name", m_name),
+                Reflection.annotation("jdk.jfr.Label", m_label),
+                Reflection.annotation("jdk.jfr.Description", m_description),
+                Reflection.annotation("jdk.jfr.Category", new String[]{"Bazaar"}));
+            List<Object> fields = new ArrayList<Object>();
+            fields.add(Reflection.field(String.class, "operation", "Operation"));
+            fields.add(Reflection.field(String.class, "root", "Root"));
+            fields.add(Reflection.field(int.class, "argumentCount", "Argument Count"));
+            fields.add(Reflection.field(long.class, "outputSize", "Output Size"));
+            m_factory = Reflection.CREATE_FACTORY.invoke(null, annotations, fields);
+          }
+        }
+      }
+      return m_factory;
+    }
+  }
+
+  /**
+   * The {@code jdk.jfr} members used above, resolved once.
+   */
+  private static class Reflection {
+
+    private static final boolean AVAILABLE;
+    private static Method CREATE_FACTORY;
+    private static Method NEW_EVENT;
+    private static Method IS_ENABLED;
+    private static Method SET;
+    private static Method BEGIN;
+    private static Method END;
+    private static Method COMMIT;
+    private static Constructor<?> ANNOTATION_ELEMENT;
+    private static Constructor<?> VALUE_DESCRIPTOR;
+
+    static {
+      boolean available = false;
+      try {
+        Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+        Class<?> eventClass = Class.forName("jdk.jfr.Event");
+        CREATE_FACTORY = factoryClass.getMethod("create", List.class, List.class);
+        NEW_EVENT = factoryClass.getMethod("newEvent");
+        IS_ENABLED = eventClass.getMethod("isEnabled");
+        SET = eventClass.getMethod("set", int.class, Object.class);
+        BEGIN = eventClass.getMethod("begin");
+        END = eventClass.getMethod("end");
+        COMMIT = eventClass.getMethod("commit");
+        ANNOTATION_ELEMENT = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+        VALUE_DESCRIPTOR = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+        available = true;
+      } catch (ClassNotFoundException e) {
+        LOG.debug("JFR events not available: " + e.getMessage());
+      } catch (Exception e) {
+        LOG.info("JFR events not available", e);
+      }
+      AVAILABLE = available;
+    }
+
+    private static Object annotation(String type, Object value) throws Exception {
+      return ANNOTATION_ELEMENT.newInstance(Class.forName(type), value);
+    }
+
+    private static Object field(Class<?> type, String name, String label) throws Exception {
+      List<Object> annotations = new ArrayList<Object>();
+      annotations.add(annotation("jdk.jfr.Label", label));
+      return VALUE_DESCRIPTOR.newInstance(type, name, annotations);
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package org.emergent.bzr4j.core.cli;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the standard output of a command as the bytes it was written as, for output such as file contents which
+ * must not go through a charset. The output is collected in fixed size chunks shared through a small pool, so that
+ * it is copied once into an array of the right size rather than repeatedly as a {@link java.io.ByteArrayOutputStream}
+ * grows.
+ */
+public class BzrBytesResult extends BzrAbstractResult {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_CHUNKS = 64;
+
+  private static final ConcurrentLinkedQueue<byte[]> sm_chunkPool = new ConcurrentLinkedQueue<byte[]>();
+  private static final AtomicInteger sm_pooledChunks = new AtomicInteger();
+
+  private final ChunkedOutputStream m_out = new ChunkedOutputStream();
+
+  public BzrBytesResult() {
+  }
+
+  /**
+   * @return the output, assembled on the first call
+   */
+  public byte[] getByteOut() {
+    return m_out.toByteArray();
+  }
+
+  /**
+   * @return the output, decoded with the given charset
+   */
+  public String getStdOutAsString(Charset charset) {
+    return new String(getByteOut(), charset);
+  }
+
+  @Override
+  Thread startOutRelay(java.io.InputStream in) {
+    return startRelay(in, m_out, false);
+  }
+
+  private static byte[] takeChunk() {
+    byte[] retval = sm_chunkPool.poll();
+    if (retval != null) {
+      sm_pooledChunks.decrementAndGet();
+      return retval;
+    }
+    return new byte[CHUNK_SIZE];
+  }
+
+  private static void releaseChunk(byte[] chunk) {
+    if (sm_pooledChunks.incrementAndGet() <= MAX_POOLED_CHUNKS) {
+      sm_chunkPool.offer(chunk);
+    } else {
+      sm_pooledChunks.decrementAndGet();
+    }
+  }
+
+  private static class ChunkedOutputStream extends OutputStream {
+
+    private final List<byte[]> m_chunks = new ArrayList<byte[]>();
+    private int m_lastChunkLength = CHUNK_SIZE;
+    private long m_size;
+    private byte[] m_bytes;
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[]{(byte)b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      m_size += len;
+      while (len > 0) {
+        if (m_lastChunkLength == CHUNK_SIZE) {
+          m_chunks.add(takeChunk());
+          m_lastChunkLength = 0;
+        }
+        int count = Math.min(len, CHUNK_SIZE - m_lastChunkLength);
+        System.arraycopy(b, off, m_chunks.get(m_chunks.size() - 1), m_lastChunkLength, count);
+        m_lastChunkLength += count;
+        off += count;
+        len -= count;
+      }
+    }
+
+    private synchronized byte[] toByteArray() {
+      if (m_bytes != null) {
+        return m_bytes;
+      }
+      m_bytes = new byte[(int)m_size];
+      int pos = 0;
+      for (byte[] chunk : m_chunks) {
+        int count = Math.min(CHUNK_SIZE, m_bytes.length - pos);
+        System.arraycopy(chunk, 0, m_bytes, pos, count);
+        pos += count;
+        releaseChunk(chunk);
+      }
+      m_chunks.clear();
+      return m_bytes;
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package org.emergent.bzr4j.core.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link BzrSinkResult} which also keeps the standard error as the bytes it was written as, so that it can be
+ * replayed into other results without going through a charset and back.
+ */
+public class BzrCapturingSinkResult extends BzrSinkResult {
+
+  private final ByteArrayOutputStream m_errBytes = new ByteArrayOutputStream();
+
+  public BzrCapturingSinkResult(OutputStream os, boolean closeOut) {
+    super(os, closeOut);
+  }
+
+  public byte[] getStdErrBytes() {
+    return m_errBytes.toByteArray();
+  }
+
+  @Override
+  Thread startErrRelay(InputStream in) {
+    return super.startErrRelay(new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int retval = super.read();
+        if (retval >= 0) {
+          m_errBytes.write(retval);
+        }
+        return retval;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int retval = super.read(b, off, len);
+        if (retval > 0) {
+          m_errBytes.write(b, off, retval);
+        }
+        return retval;
+      }
+    });
+  }
+}
@@ -0,0 +1,26 @@
+package org.emergent.bzr4j.core.cli;
+
+import java.io.InputStream;
+
+/**
+ * Gives the plugin access to the package-private relay hooks of {@link BzrAbstractResult}, so that output which
+ * does not come straight from a forked {@link Process} (pooled workers, shared output of coalesced commands) can be
+ * fed to the existing result types unchanged.
+ */
+public final class BzrResultBridge {
+
+  private BzrResultBridge() {
+  }
+
+  public static Thread startOutRelay(BzrAbstractResult result, InputStream in) {
+    return result.startOutRelay(in);
+  }
+
+  public static Thread startErrRelay(BzrAbstractResult result, InputStream in) {
+    return result.startErrRelay(in);
+  }
+
+  public static void setExitValue(BzrAbstractResult result, int exitValue) {
+    result.setExitValue(exitValue);
+  }
+}
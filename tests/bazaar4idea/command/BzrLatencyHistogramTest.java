@@ -0,0 +1,38 @@
+package bazaar4idea.command;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+public class BzrLatencyHistogramTest {
+
+  @Test
+  public void testPercentiles() {
+    BzrLatencyHistogram histogram = new BzrLatencyHistogram();
+    for (long i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000);
+    }
+    assertEquals(histogram.getCount(), 1000);
+    assertEquals(histogram.getMax(), 1000000);
+    assertEquals(histogram.getMean(), 500500);
+    assertWithin(histogram.getPercentile(50), 500000);
+    assertWithin(histogram.getPercentile(99), 990000);
+    assertEquals(histogram.getPercentile(100), 1000000);
+  }
+
+  @Test
+  public void testExtremes() {
+    BzrLatencyHistogram histogram = new BzrLatencyHistogram();
+    assertEquals(histogram.getPercentile(50), 0);
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(histogram.getPercentile(50), 0);
+    assertEquals(histogram.getPercentile(100), Long.MAX_VALUE);
+    histogram.reset();
+    assertEquals(histogram.getCount(), 0);
+  }
+
+  private static void assertWithin(long actual, long expected) {
+    assertTrue(actual >= expected && actual <= expected * 107 / 100, actual + " not within 7% of " + expected);
+  }
+}
@@ -0,0 +1,102 @@
+package bazaar4idea.provider;
+
+import static org.testng.Assert.*;
+
+import bazaar4idea.BzrRevisionNumber;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class BzrStatusSnapshotTest {
+
+  private static final String KEY = "/work/project";
+  private static final String FINGERPRINT = "dirstate:1234:5678";
+
+  private File m_dir;
+  private File m_file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    m_dir = File.createTempFile("snapshot", "");
+    assertTrue(m_dir.delete());
+    m_file = new File(new File(m_dir, "status"), "project");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(m_dir);
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Set<File> subRoots = new HashSet<File>();
+    subRoots.add(new File("/work/project/lib/nested"));
+    BzrStatusSnapshot snapshot = new BzrStatusSnapshot(FINGERPRINT, 42, subRoots);
+    snapshot.setRevision(BzrRevisionNumber.getLocalInstance("17"));
+    snapshot.save(m_file, KEY);
+
+    BzrStatusSnapshot loaded = BzrStatusSnapshot.load(m_file, KEY, null, null);
+    assertNotNull(loaded);
+    assertEquals(loaded.getRevision(), BzrRevisionNumber.getLocalInstance("17"));
+    assertTrue(loaded.matches(FINGERPRINT, subRoots));
+    assertFalse(loaded.matches(FINGERPRINT, Collections.<File>emptySet()));
+    assertFalse(loaded.matches("dirstate:1234:5679", subRoots));
+    // the event count is not saved; it is set by whoever loads the snapshot
+    assertFalse(loaded.matches(FINGERPRINT, 42, subRoots));
+    loaded.setEventCount(42);
+    assertTrue(loaded.matches(FINGERPRINT, 42, subRoots));
+  }
+
+  @Test
+  public void testNoRevision() {
+    new BzrStatusSnapshot(FINGERPRINT, 0, Collections.<File>emptySet()).save(m_file, KEY);
+    BzrStatusSnapshot loaded = BzrStatusSnapshot.load(m_file, KEY, null, null);
+    assertNotNull(loaded);
+    assertNull(loaded.getRevision());
+    assertTrue(loaded.matches(FINGERPRINT, 0, Collections.<File>emptySet()));
+  }
+
+  @Test
+  public void testOtherKey() {
+    new BzrStatusSnapshot(FINGERPRINT, 0, Collections.<File>emptySet()).save(m_file, KEY);
+    assertNull(BzrStatusSnapshot.load(m_file, "/other/project", null, null));
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    new BzrStatusSnapshot(FINGERPRINT, 0, Collections.<File>emptySet()).save(m_file, KEY);
+    RandomAccessFile raf = new RandomAccessFile(m_file, "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    assertNull(BzrStatusSnapshot.load(m_file, KEY, null, null));
+
+    // saving again replaces the broken file
+    new BzrStatusSnapshot(FINGERPRINT, 0, Collections.<File>emptySet()).save(m_file, KEY);
+    assertNotNull(BzrStatusSnapshot.load(m_file, KEY, null, null));
+  }
+
+  @Test
+  public void testMissing() {
+    assertNull(BzrStatusSnapshot.load(m_file, KEY, null, null));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
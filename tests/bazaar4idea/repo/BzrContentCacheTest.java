@@ -0,0 +1,215 @@
+package bazaar4idea.repo;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+public class BzrContentCacheTest {
+
+  private static final String TIP = "3 rev-3";
+  private static final String NEXT_TIP = "4 rev-4";
+  private static final String REWRITTEN_TIP = "3 rev-3b";
+
+  private File m_dir;
+  private File m_branch;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    m_dir = File.createTempFile("contentcache", "");
+    assertTrue(m_dir.delete());
+    assertTrue(m_dir.mkdirs());
+    m_branch = new File(m_dir, "branch");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(m_dir);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    assertNull(cache.getTip(m_branch));
+    cache.moveTip(m_branch, TIP, false);
+    cache.put(m_branch, TIP, "2", "src/a.txt", bytes("hello"));
+    cache.put(m_branch, TIP, "3", "src/a.txt", bytes("hello"));
+    cache.close();
+
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.getTip(m_branch), TIP);
+    assertEquals(cache.get(m_branch, TIP, "2", "src/a.txt"), bytes("hello"));
+    assertEquals(cache.get(m_branch, TIP, "3", "src/a.txt"), bytes("hello"));
+    assertNull(cache.get(m_branch, TIP, "1", "src/a.txt"));
+    assertNull(cache.get(m_branch, NEXT_TIP, "2", "src/a.txt"));
+    cache.close();
+  }
+
+  @Test
+  public void testPutUnderOldTip() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    cache.moveTip(m_branch, NEXT_TIP, false);
+    cache.put(m_branch, TIP, "2", "a.txt", bytes("hello"));
+    assertFalse(cache.contains(m_branch, TIP, "2", "a.txt"));
+    assertFalse(cache.contains(m_branch, NEXT_TIP, "2", "a.txt"));
+    cache.close();
+  }
+
+  @Test
+  public void testMoveTipKeepingEntries() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    cache.moveTip(m_branch, TIP, false);
+    cache.put(m_branch, TIP, "2", "a.txt", bytes("hello"));
+    cache.moveTip(m_branch, NEXT_TIP, true);
+    assertFalse(cache.contains(m_branch, TIP, "2", "a.txt"));
+    assertTrue(cache.contains(m_branch, NEXT_TIP, "2", "a.txt"));
+    cache.close();
+
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.getTip(m_branch), NEXT_TIP);
+    assertEquals(cache.get(m_branch, NEXT_TIP, "2", "a.txt"), bytes("hello"));
+    cache.close();
+  }
+
+  @Test
+  public void testMoveTipDroppingEntries() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    cache.moveTip(m_branch, TIP, false);
+    cache.put(m_branch, TIP, "2", "a.txt", bytes("hello"));
+    cache.moveTip(m_branch, REWRITTEN_TIP, false);
+    assertFalse(cache.contains(m_branch, REWRITTEN_TIP, "2", "a.txt"));
+    cache.put(m_branch, REWRITTEN_TIP, "3", "a.txt", bytes("world"));
+    cache.close();
+
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.getTip(m_branch), REWRITTEN_TIP);
+    assertFalse(cache.contains(m_branch, REWRITTEN_TIP, "2", "a.txt"));
+    assertEquals(cache.get(m_branch, REWRITTEN_TIP, "3", "a.txt"), bytes("world"));
+    cache.close();
+  }
+
+  @Test
+  public void testTruncatedIndex() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    cache.moveTip(m_branch, TIP, false);
+    cache.put(m_branch, TIP, "1", "a.txt", bytes("one"));
+    cache.put(m_branch, TIP, "2", "a.txt", bytes("two"));
+    cache.close();
+    truncate(new File(m_dir, "index"), 1);
+
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.get(m_branch, TIP, "1", "a.txt"), bytes("one"));
+    assertFalse(cache.contains(m_branch, TIP, "2", "a.txt"));
+    // the broken record is not appended to
+    cache.put(m_branch, TIP, "3", "a.txt", bytes("three"));
+    cache.close();
+
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.get(m_branch, TIP, "1", "a.txt"), bytes("one"));
+    assertFalse(cache.contains(m_branch, TIP, "2", "a.txt"));
+    assertEquals(cache.get(m_branch, TIP, "3", "a.txt"), bytes("three"));
+    cache.close();
+  }
+
+  @Test
+  public void testUnknownIndexFormat() throws IOException {
+    BzrContentCache cache = open(Long.MAX_VALUE);
+    cache.moveTip(m_branch, TIP, false);
+    cache.close();
+    RandomAccessFile index = new RandomAccessFile(new File(m_dir, "index"), "rw");
+    try {
+      index.writeInt(0);
+    } finally {
+      index.close();
+    }
+
+    cache = open(Long.MAX_VALUE);
+    assertNull(cache.getTip(m_branch));
+    cache.moveTip(m_branch, NEXT_TIP, false);
+    cache.close();
+    cache = open(Long.MAX_VALUE);
+    assertEquals(cache.getTip(m_branch), NEXT_TIP);
+    cache.close();
+  }
+
+  @Test
+  public void testEvictionAndCompaction() throws IOException {
+    byte[] first = random(600, 1);
+    byte[] second = random(600, 2);
+    BzrContentCache cache = open(1000);
+    cache.moveTip(m_branch, TIP, false);
+    cache.put(m_branch, TIP, "1", "a.bin", first);
+    age(new File(m_dir, "objects"));
+    cache.put(m_branch, TIP, "2", "a.bin", second);
+
+    // the least recently used content is gone, but its entry stays until the index is compacted
+    assertNull(cache.get(m_branch, TIP, "1", "a.bin"));
+    assertTrue(cache.contains(m_branch, TIP, "1", "a.bin"));
+    assertEquals(cache.get(m_branch, TIP, "2", "a.bin"), second);
+
+    cache.compact();
+    assertFalse(cache.contains(m_branch, TIP, "1", "a.bin"));
+    assertTrue(cache.contains(m_branch, TIP, "2", "a.bin"));
+    cache.close();
+
+    cache = open(1000);
+    assertEquals(cache.getTip(m_branch), TIP);
+    assertFalse(cache.contains(m_branch, TIP, "1", "a.bin"));
+    assertEquals(cache.get(m_branch, TIP, "2", "a.bin"), second);
+    cache.close();
+  }
+
+  private BzrContentCache open(final long maxSize) {
+    return new BzrContentCache(m_dir) {
+      @Override
+      long getMaxSize() {
+        return maxSize;
+      }
+    };
+  }
+
+  private static byte[] bytes(String content) throws IOException {
+    return content.getBytes("UTF-8");
+  }
+
+  private static byte[] random(int length, long seed) {
+    byte[] retval = new byte[length];
+    new Random(seed).nextBytes(retval);
+    return retval;
+  }
+
+  private static void truncate(File file, int count) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - count);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void age(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        age(child);
+      }
+    }
+    assertTrue(file.setLastModified(System.currentTimeMillis() - 3600000));
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -0,0 +1,170 @@
+package bazaar4idea.repo;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+public class BzrDirStateTest {
+
+  private static final String SHA1 = "da39a3ee5e6b4b0d3255bfef95601890afd80709";
+  private static final String OTHER_SHA1 = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+  private static final String NULL_STAT = "xxxxxxxxxxxxxxxxxxxxxxxxxxxxxxxx";
+
+  private File m_root;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    m_root = File.createTempFile("dirstate", "");
+    assertTrue(m_root.delete());
+    assertTrue(new File(m_root, ".bzr/checkout").mkdirs());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(m_root);
+  }
+
+  @Test
+  public void testParse() throws IOException {
+    Map<String, BzrDirState.Entry> entries = BzrDirState.parse(ByteBuffer.wrap(dirstate(
+        entry("", "", "TREE_ROOT", "d", "", 0, NULL_STAT, "d", ""),
+        entry("", "a.txt", "a-id", "f", SHA1, 5, packStat(5, 1262600000), "f", SHA1),
+        entry("", "gone.txt", "gone-id", "a", "", 0, "", "f", SHA1),
+        entry("src", "b.txt", "b-id", "f", "", 7, NULL_STAT, "f", SHA1))));
+    assertNotNull(entries);
+    assertEquals(entries.size(), 3);
+    BzrDirState.Entry a = entries.get("a.txt");
+    assertEquals(a.getFileId(), "a-id");
+    assertEquals(a.getKind(), 'f');
+    assertEquals(a.getSha1(), SHA1);
+    assertEquals(a.getStatSize(), 5);
+    assertEquals(a.getStatMtime(), 1262600000);
+    assertTrue(a.isCleanInBasis());
+    assertFalse(entries.get("src/b.txt").isCleanInBasis());
+    assertNull(entries.get("gone.txt"));
+  }
+
+  @Test
+  public void testCorruptDirstate() throws IOException {
+    byte[] bytes = dirstate(entry("", "a.txt", "a-id", "f", SHA1, 5, packStat(5, 1262600000), "f", SHA1));
+    bytes[bytes.length - 4] = 'X';
+    assertNull(BzrDirState.parse(ByteBuffer.wrap(bytes)));
+  }
+
+  @Test
+  public void testIsUnchanged() throws IOException {
+    File clean = write("clean.txt", "hello");
+    write("edited.txt", "hello");
+    write("other.txt", "hello");
+    long mtime = clean.lastModified() / 1000;
+    write(BzrDirState.DIRSTATE_PATH, new String(dirstate(
+        entry("", "clean.txt", "clean-id", "f", SHA1, 5, packStat(5, mtime), "f", SHA1),
+        entry("", "edited.txt", "edited-id", "f", SHA1, 5, packStat(5, mtime - 10), "f", SHA1),
+        entry("", "other.txt", "other-id", "f", OTHER_SHA1, 5, packStat(5, mtime), "f", SHA1)), "UTF-8"));
+    assertTrue(clean.setExecutable(false) || !clean.canExecute());
+
+    BzrDirState dirState = BzrDirState.getInstance(m_root);
+    assertNotNull(dirState);
+    assertTrue(dirState.isUnchanged("clean.txt"));
+    assertFalse(dirState.isUnchanged("edited.txt"));
+    assertFalse(dirState.isUnchanged("other.txt"));
+    assertFalse(dirState.isUnchanged("unknown.txt"));
+  }
+
+  @Test
+  public void testRewriteWithinMtimeTick() throws IOException {
+    File clean = write("clean.txt", "hello");
+    long mtime = clean.lastModified() / 1000;
+    File file = write(BzrDirState.DIRSTATE_PATH, new String(dirstate(
+        entry("", "clean.txt", "clean-id", "f", SHA1, 5, packStat(5, mtime), "f", SHA1)), "UTF-8"));
+    long lastModified = file.lastModified();
+    BzrDirState dirState = BzrDirState.getInstance(m_root);
+    assertNotNull(dirState);
+    assertTrue(dirState.isUnchanged("clean.txt"));
+
+    // same length and modification time, different entries
+    write(BzrDirState.DIRSTATE_PATH, new String(dirstate(
+        entry("", "clean.txt", "clean-id", "f", SHA1, 5, packStat(5, mtime), "f", OTHER_SHA1)), "UTF-8"));
+    assertTrue(file.setLastModified(lastModified));
+    dirState = BzrDirState.getInstance(m_root);
+    assertNotNull(dirState);
+    assertFalse(dirState.isUnchanged("clean.txt"));
+  }
+
+  private static String entry(String dirname, String basename, String fileId, String kind, String sha1, long size,
+                              String packedStat, String basisKind, String basisSha1) {
+    return dirname + "\0" + basename + "\0" + fileId + "\0"
+        + kind + "\0" + sha1 + "\0" + size + "\0n\0" + packedStat + "\0"
+        + basisKind + "\0" + basisSha1 + "\0" + size + "\0n\0" + "rev-1";
+  }
+
+  /**
+   * @return a dirstate with one parent and the given entry lines, laid out as bzr writes it
+   */
+  private static byte[] dirstate(String... entries) throws IOException {
+    StringBuilder body = new StringBuilder("1\0rev-1\0\n\0" + "0\0\n\0");
+    for (String entry : entries) {
+      body.append(entry).append("\0\n\0");
+    }
+    byte[] bodyBytes = body.toString().getBytes("UTF-8");
+    CRC32 crc = new CRC32();
+    crc.update(bodyBytes);
+    String header = "#bazaar dirstate flat format 3\ncrc32: " + (int)crc.getValue() + "\nnum_entries: "
+        + entries.length + "\n";
+    byte[] headerBytes = header.getBytes("UTF-8");
+    byte[] retval = new byte[headerBytes.length + bodyBytes.length];
+    System.arraycopy(headerBytes, 0, retval, 0, headerBytes.length);
+    System.arraycopy(bodyBytes, 0, retval, headerBytes.length, bodyBytes.length);
+    return retval;
+  }
+
+  private static String packStat(long size, long mtime) {
+    long[] values = {size, mtime, mtime, 2049, 1234567, 0100644};
+    byte[] bytes = new byte[24];
+    for (int i = 0; i < values.length; i++) {
+      for (int j = 0; j < 4; j++) {
+        bytes[i * 4 + j] = (byte)(values[i] >> (8 * (3 - j)));
+      }
+    }
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    StringBuilder retval = new StringBuilder();
+    for (int i = 0; i < bytes.length; i += 3) {
+      int bits = ((bytes[i] & 0xff) << 16) | ((bytes[i + 1] & 0xff) << 8) | (bytes[i + 2] & 0xff);
+      for (int j = 3; j >= 0; j--) {
+        retval.append(alphabet.charAt((bits >> (6 * j)) & 0x3f));
+      }
+    }
+    return retval.toString();
+  }
+
+  private File write(String path, String content) throws IOException {
+    File file = new File(m_root, path);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
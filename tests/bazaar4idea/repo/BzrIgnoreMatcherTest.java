@@ -0,0 +1,74 @@
+package bazaar4idea.repo;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+public class BzrIgnoreMatcherTest {
+
+  @Test
+  public void testBasename() {
+    BzrIgnoreMatcher matcher = compile("target", "*.class", "*.sw[nop]", "#*#", "foo?.txt");
+    assertTrue(matcher.isIgnored("target"));
+    assertTrue(matcher.isIgnored("module/target"));
+    assertTrue(matcher.isIgnored("module/target/classes/A.class"));
+    assertTrue(matcher.isIgnored("src/A.class"));
+    assertTrue(matcher.isIgnored("src/.A.java.swp"));
+    assertTrue(matcher.isIgnored("#notes#"));
+    assertTrue(matcher.isIgnored("doc/foo1.txt"));
+    assertFalse(matcher.isIgnored("doc/foo12.txt"));
+    assertFalse(matcher.isIgnored("src/A.java"));
+    assertFalse(matcher.isIgnored("targets"));
+    // only the path itself is matched, not the directories it is in
+    assertFalse(matcher.isIgnored("module/target/Foo.java"));
+  }
+
+  @Test
+  public void testFullPath() {
+    BzrIgnoreMatcher matcher = compile("./build", "doc/*.html", "lib/**/*.jar", "out/");
+    assertTrue(matcher.isIgnored("build"));
+    assertFalse(matcher.isIgnored("build/a.o"));
+    assertFalse(matcher.isIgnored("module/build"));
+    assertTrue(matcher.isIgnored("doc/index.html"));
+    assertFalse(matcher.isIgnored("doc/api/index.html"));
+    assertTrue(matcher.isIgnored("lib/a.jar"));
+    assertTrue(matcher.isIgnored("lib/x/y/a.jar"));
+    assertTrue(matcher.isIgnored("out"));
+  }
+
+  @Test
+  public void testRegex() {
+    BzrIgnoreMatcher matcher = compile("RE:.*\\.(orig|rej)", "RE:gen/[0-9]+");
+    assertTrue(matcher.isIgnored("src/a.c.orig"));
+    assertTrue(matcher.isIgnored("a.rej"));
+    assertTrue(matcher.isIgnored("gen/42"));
+    assertFalse(matcher.isIgnored("gen/x42"));
+    assertFalse(matcher.isIgnored("src/a.c"));
+  }
+
+  @Test
+  public void testExceptions() {
+    BzrIgnoreMatcher matcher = compile("*.log", "!keep.log", "!!secret.log", "!secret.log");
+    assertTrue(matcher.isIgnored("a.log"));
+    assertFalse(matcher.isIgnored("logs/keep.log"));
+    assertTrue(matcher.isIgnored("secret.log"));
+  }
+
+  @Test
+  public void testDefaults() {
+    BzrIgnoreMatcher matcher = BzrIgnoreMatcher.compile(BzrIgnoreMatcher.USER_DEFAULTS);
+    assertTrue(matcher.isIgnored("a/b.pyc"));
+    assertTrue(matcher.isIgnored("lib.so"));
+    assertTrue(matcher.isIgnored("notes.txt~"));
+    assertTrue(matcher.isIgnored("src/__pycache__"));
+    assertTrue(matcher.isIgnored("bzr-orphans"));
+    assertTrue(matcher.isIgnored("src/bzr-orphans"));
+    assertFalse(matcher.isIgnored("a/b.py"));
+  }
+
+  private static BzrIgnoreMatcher compile(String... patterns) {
+    return BzrIgnoreMatcher.compile(Arrays.asList(patterns));
+  }
+}
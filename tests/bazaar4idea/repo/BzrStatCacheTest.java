@@ -0,0 +1,147 @@
+package bazaar4idea.repo;
+
+import static org.testng.Assert.*;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class BzrStatCacheTest {
+
+  private static final String HELLO_SHA1 = "aaf4c61ddcc5e8a2dabede0f3b482cd9aea9434d";
+  private static final String WORLD_SHA1 = "7c211433f02071597741e6ff5a8ea34789abbf43";
+  private static final String THERE_SHA1 = "490528f36debf7c15cea5e9a9d1ea024cf6b2921";
+  private static final String JELLO_SHA1 = "2ced3ee86f82bf91c15cc30605df6d3ddf0769ff";
+  private static final String WORLD_BANG_SHA1 = "a6794c8314ad6aeb08ed149660ee3fefbcda5e6c";
+
+  private File m_root;
+  private File m_file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    m_root = File.createTempFile("statcache", "");
+    assertTrue(m_root.delete());
+    assertTrue(m_root.mkdirs());
+    m_file = new File(new File(m_root, ".cache"), "statcache");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    delete(m_root);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    write("a.txt", "hello");
+    write("b.txt", "world");
+    BzrStatCache cache = new BzrStatCache(m_root, m_file);
+    Map<String, String> sha1s = cache.getSha1s(Arrays.asList("a.txt", "b.txt", "missing.txt"));
+    assertEquals(sha1s.size(), 2);
+    assertEquals(sha1s.get("a.txt"), HELLO_SHA1);
+    assertEquals(sha1s.get("b.txt"), WORLD_SHA1);
+    cache.close();
+
+    // the same size and modification time: the stored hash is used without reading the file
+    write("a.txt", "jello");
+    cache = new BzrStatCache(m_root, m_file);
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), HELLO_SHA1);
+    cache.close();
+  }
+
+  @Test
+  public void testRecentlyModified() throws IOException {
+    write("a.txt", "hello");
+    new File(m_root, "a.txt").setLastModified(System.currentTimeMillis());
+    BzrStatCache cache = new BzrStatCache(m_root, m_file);
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), HELLO_SHA1);
+    cache.close();
+
+    write("a.txt", "jello");
+    cache = new BzrStatCache(m_root, m_file);
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), JELLO_SHA1);
+    cache.close();
+  }
+
+  @Test
+  public void testModified() throws IOException {
+    write("a.txt", "hello");
+    BzrStatCache cache = new BzrStatCache(m_root, m_file);
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), HELLO_SHA1);
+    write("a.txt", "world!");
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), WORLD_BANG_SHA1);
+    cache.close();
+
+    cache = new BzrStatCache(m_root, m_file);
+    assertEquals(cache.getSha1s(Collections.singleton("a.txt")).get("a.txt"), WORLD_BANG_SHA1);
+    cache.close();
+  }
+
+  @Test
+  public void testTruncated() throws IOException {
+    write("a.txt", "hello");
+    write("b.txt", "world");
+    BzrStatCache cache = new BzrStatCache(m_root, m_file);
+    cache.getSha1s(Arrays.asList("a.txt", "b.txt"));
+    cache.close();
+    truncate(m_file, 1);
+
+    write("a.txt", "jello");
+    write("b.txt", "there");
+    cache = new BzrStatCache(m_root, m_file);
+    Map<String, String> sha1s = cache.getSha1s(Arrays.asList("a.txt", "b.txt"));
+    // the record read before the cut is still used, the one cut short is not
+    assertEquals(sha1s.get("a.txt"), HELLO_SHA1);
+    assertEquals(sha1s.get("b.txt"), THERE_SHA1);
+    cache.close();
+
+    // the file was written over rather than appended to
+    cache = new BzrStatCache(m_root, m_file);
+    sha1s = cache.getSha1s(Arrays.asList("a.txt", "b.txt"));
+    assertEquals(sha1s.get("a.txt"), HELLO_SHA1);
+    assertEquals(sha1s.get("b.txt"), THERE_SHA1);
+    cache.close();
+  }
+
+  /**
+   * Writes the file with a modification time old enough for its hash to be kept.
+   */
+  private File write(String path, String content) throws IOException {
+    File file = new File(m_root, path);
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    assertTrue(file.setLastModified(1262600000000L));
+    return file;
+  }
+
+  private static void truncate(File file, int count) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - count);
+    } finally {
+      raf.close();
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}